@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all Samba benchmarks with the GC profiler enabled (so allocation rates are reported) 
+ * while sweeping thread counts for single-operation benchmarks 
+ * and reader/writer ratios for the grouped (read/write mixed) benchmarks.
+ * 
+ * Optional first argument is a regular expression to filter benchmarks 
+ * (default: all Samba benchmarks). For ad-hoc runs, 
+ * <code>java -jar target/benchmarks.jar</code> accepts the standard JMH options.
+ */
+public final class SambaBenchmarkRunner {
+
+    private static final String DEFAULT_INCLUDE = "tr\\.com\\.serkanozal\\.samba\\..*";
+    // Grouped benchmark methods are matched by their group names
+    private static final String GROUP_PATTERN = "\\.(readWrite|readPopulate)$";
+    private static final int[][] READER_WRITER_RATIOS = {
+        { 1, 1 },
+        { 3, 1 },
+        { 9, 1 },
+        { 1, 3 }
+    };
+    
+    private SambaBenchmarkRunner() {
+        
+    }
+    
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : DEFAULT_INCLUDE;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        
+        for (int threads = 1; ; threads <<= 1) {
+            if (threads > maxThreads) {
+                threads = maxThreads;
+            }
+            new Runner(
+                    baseOptions(include).
+                        exclude(GROUP_PATTERN).
+                        threads(threads).
+                        build()).run();
+            if (threads == maxThreads) {
+                break;
+            }
+        }
+        
+        for (int[] ratio : READER_WRITER_RATIOS) {
+            new Runner(
+                    baseOptions("^(?=.*(?:" + include + ")).*" + GROUP_PATTERN).
+                        threadGroups(ratio).
+                        build()).run();
+        }
+    }
+    
+    private static ChainedOptionsBuilder baseOptions(String include) {
+        return new OptionsBuilder().
+                    include(include).
+                    addProfiler(GCProfiler.class).
+                    shouldFailOnError(true);
+    }
+    
+}
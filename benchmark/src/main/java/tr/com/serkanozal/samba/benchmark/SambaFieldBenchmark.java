@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tr.com.serkanozal.samba.SambaField;
+import tr.com.serkanozal.samba.SambaFieldProcessor;
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheProvider;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+
+/**
+ * Benchmarks {@link SambaField} accessors and mutators. 
+ * 
+ * Plain benchmarks are meant to be swept over thread counts (<code>-t</code>) 
+ * and the <code>readWrite</code> group over reader/writer ratios (<code>-tg</code>). 
+ * See {@link SambaBenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SambaFieldBenchmark {
+
+    private static final int FIELD_COUNT = 64;
+    private static final int FIELD_MASK = FIELD_COUNT - 1;
+    private static final int VALUE_COUNT = 1024;
+    private static final int VALUE_MASK = VALUE_COUNT - 1;
+    private static final Integer[] VALUES = new Integer[VALUE_COUNT];
+    
+    static {
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            VALUES[i] = new Integer(i);
+        }
+    }
+    
+    private static final SambaFieldProcessor<Integer> INCREMENTER = 
+            new SambaFieldProcessor<Integer>() {
+                @Override
+                public Integer process(Integer currentValue) {
+                    if (currentValue == null) {
+                        return VALUES[0];
+                    } else {
+                        return VALUES[(currentValue.intValue() + 1) & VALUE_MASK];
+                    }
+                }
+            };
+    
+    @Param({ "LOCAL" })
+    private SambaCacheType cacheType;
+    
+    private SambaCache cache;
+    private SambaField<Integer>[] fields;
+    
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setup() {
+        cache = SambaCacheProvider.createCache(cacheType);
+        fields = new SambaField[FIELD_COUNT];
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            fields[i] = new SambaField<Integer>("SambaField-" + i, cache);
+            fields[i].set(VALUES[i]);
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        cache.clear();
+    }
+    
+    @State(Scope.Thread)
+    public static class ThreadState {
+        
+        private int seed = (int) System.nanoTime() | 1;
+        
+        int next() {
+            // Xorshift, cheap enough not to dominate the measured operation
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return x;
+        }
+        
+    }
+    
+    @Benchmark
+    public Integer get(ThreadState state) {
+        return fields[state.next() & FIELD_MASK].get();
+    }
+    
+    @Benchmark
+    public void set(ThreadState state) {
+        int r = state.next();
+        fields[r & FIELD_MASK].set(VALUES[(r >>> 8) & VALUE_MASK]);
+    }
+    
+    @Benchmark
+    public boolean compareAndSet(ThreadState state) {
+        int r = state.next();
+        SambaField<Integer> field = fields[r & FIELD_MASK];
+        return field.compareAndSet(field.get(), VALUES[(r >>> 8) & VALUE_MASK]);
+    }
+    
+    @Benchmark
+    public Integer processAtomically(ThreadState state) {
+        return fields[state.next() & FIELD_MASK].processAtomically(INCREMENTER);
+    }
+    
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Integer reader(ThreadState state) {
+        return fields[state.next() & FIELD_MASK].get();
+    }
+    
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void writer(ThreadState state) {
+        int r = state.next();
+        fields[r & FIELD_MASK].set(VALUES[(r >>> 8) & VALUE_MASK]);
+    }
+    
+}
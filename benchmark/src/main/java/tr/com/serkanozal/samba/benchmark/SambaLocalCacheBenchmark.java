@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
+
+/**
+ * Benchmarks raw {@link SambaLocalCache} operations without the 
+ * {@link tr.com.serkanozal.samba.SambaField} proxy fast path in front of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SambaLocalCacheBenchmark {
+
+    private static final int VALUE_COUNT = 1024;
+    private static final int VALUE_MASK = VALUE_COUNT - 1;
+    private static final Integer[] VALUES = new Integer[VALUE_COUNT];
+    
+    static {
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            VALUES[i] = new Integer(i);
+        }
+    }
+    
+    @Param({ "1024", "65536" })
+    private int keyCount;
+    
+    private SambaLocalCache cache;
+    private String[] keys;
+    private int keyMask;
+    
+    @Setup
+    public void setup() {
+        if (Integer.bitCount(keyCount) != 1) {
+            throw new IllegalArgumentException("Key count must be power of two: " + keyCount);
+        }
+        cache = new SambaLocalCache();
+        keys = new String[keyCount];
+        keyMask = keyCount - 1;
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "SambaLocalCache-" + i;
+            cache.put(keys[i], VALUES[i & VALUE_MASK]);
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        cache.clear();
+    }
+    
+    @State(Scope.Thread)
+    public static class ThreadState {
+        
+        private int seed = (int) System.nanoTime() | 1;
+        
+        int next() {
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return x;
+        }
+        
+    }
+    
+    @Benchmark
+    public Object get(ThreadState state) {
+        return cache.get(keys[state.next() & keyMask]);
+    }
+    
+    @Benchmark
+    public void put(ThreadState state) {
+        int r = state.next();
+        cache.put(keys[r & keyMask], VALUES[(r >>> 16) & VALUE_MASK]);
+    }
+    
+    @Benchmark
+    public boolean replace(ThreadState state) {
+        int r = state.next();
+        int valueIndex = (r >>> 16) & VALUE_MASK;
+        return cache.replace(keys[r & keyMask], VALUES[valueIndex], VALUES[(valueIndex + 1) & VALUE_MASK]);
+    }
+    
+    @Benchmark
+    public void removeAndPut(ThreadState state) {
+        int r = state.next();
+        String key = keys[r & keyMask];
+        cache.remove(key);
+        cache.put(key, VALUES[(r >>> 16) & VALUE_MASK]);
+    }
+    
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Object reader(ThreadState state) {
+        return cache.get(keys[state.next() & keyMask]);
+    }
+    
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void writer(ThreadState state) {
+        int r = state.next();
+        cache.put(keys[r & keyMask], VALUES[(r >>> 16) & VALUE_MASK]);
+    }
+    
+}
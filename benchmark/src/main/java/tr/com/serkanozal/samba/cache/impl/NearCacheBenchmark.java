@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the ownership protocol (<code>tryOwn</code> / <code>putIfAvailable</code> / 
+ * <code>releaseIfOwned</code>) of the near-cache in {@link SambaTieredCache}. 
+ * 
+ * Lives in the same package as {@link SambaTieredCache} since 
+ * {@link SambaTieredCache.NearCache} is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class NearCacheBenchmark {
+
+    private static final Object VALUE = "NearCacheValue";
+    
+    // Fewer keys than slots means threads mostly contend on the same keys, 
+    // more keys than slots means different keys also collide on the same slots
+    @Param({ "16", "1024", "65536" })
+    private int keyCount;
+    
+    private SambaTieredCache.NearCache nearCache;
+    private String[] keys;
+    private int keyMask;
+    
+    @Setup
+    public void setup() {
+        if (Integer.bitCount(keyCount) != 1) {
+            throw new IllegalArgumentException("Key count must be power of two: " + keyCount);
+        }
+        nearCache = new SambaTieredCache.NearCache(new SambaLocalCache());
+        keys = new String[keyCount];
+        keyMask = keyCount - 1;
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "NearCache-" + i;
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        nearCache.clear();
+    }
+    
+    @State(Scope.Thread)
+    public static class ThreadState {
+        
+        private int seed = (int) System.nanoTime() | 1;
+        
+        int next() {
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return x;
+        }
+        
+    }
+    
+    @Benchmark
+    public long ownAndRelease(ThreadState state) {
+        String key = keys[state.next() & keyMask];
+        long ownId = nearCache.tryOwn(key);
+        nearCache.releaseIfOwned(ownId, key);
+        return ownId;
+    }
+    
+    @Benchmark
+    public boolean populate(ThreadState state) {
+        String key = keys[state.next() & keyMask];
+        long ownId = nearCache.tryOwn(key);
+        try {
+            return nearCache.putIfAvailable(ownId, key, VALUE);
+        } finally {
+            nearCache.releaseIfOwned(ownId, key);
+        }
+    }
+    
+    @Benchmark
+    @Group("readPopulate")
+    @GroupThreads(3)
+    public Object reader(ThreadState state) {
+        return nearCache.get(keys[state.next() & keyMask]);
+    }
+    
+    @Benchmark
+    @Group("readPopulate")
+    @GroupThreads(1)
+    public boolean populator(ThreadState state) {
+        return populate(state);
+    }
+    
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheProvider;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+import tr.com.serkanozal.samba.metrics.SambaMetricsRegistry;
+
+/**
+ * Counter whose increments are spread over multiple stripes (separate cache entries), 
+ * so concurrent increments from many processes don't all hit the same entry 
+ * (and the same partition in case of remote caches). 
+ * Sum is aggregated from all the stripes by a single batch read 
+ * and it can be cached for a bounded staleness to serve frequent reads locally.
+ */
+public class SambaCounterField {
+
+    public static final int DEFAULT_STRIPE_COUNT = 16;
+    
+    // Different processes start from different stripes even if they have the same thread ids
+    private static final int PROCESS_SEED = new Random().nextInt();
+    private static final SambaMetrics METRICS = SambaMetricsRegistry.register("counterField");
+    private static final SambaCounter SUM_READS = METRICS.counter("sumReads");
+    private static final SambaCounter CACHED_SUM_READS = METRICS.counter("cachedSumReads");
+    
+    private final SambaCache cache;
+    private final String id;
+    private final List<String> stripeKeys;
+    private final long maxStalenessNanos;
+    private volatile CachedSum cachedSum;
+    
+    public SambaCounterField(SambaCacheType cacheType) {
+        this(SambaField.generateIdFromCallee(), cacheType);
+    }
+    
+    public SambaCounterField(String id, SambaCacheType cacheType) {
+        this(id, SambaCacheProvider.getCache(cacheType));
+    }
+    
+    public SambaCounterField(String id, SambaCache cache) {
+        this(id, cache, DEFAULT_STRIPE_COUNT, 0, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * @param stripeCount   count of the stripes which increments are spread over. 
+     *                      Note that all the counter fields with the same id must use the same stripe count.
+     * @param maxStaleness  how long the aggregated sum can be served without reading the stripes again 
+     *                      (<code>0</code> means that sum is always read from the stripes)
+     */
+    public SambaCounterField(String id, SambaCache cache, int stripeCount, long maxStaleness, TimeUnit timeUnit) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+        if (maxStaleness < 0) {
+            throw new IllegalArgumentException("Max staleness cannot be negative: " + maxStaleness);
+        }
+        this.id = id;
+        this.cache = cache;
+        List<String> keys = new ArrayList<String>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            keys.add(stripeKeyOf(id, i));
+        }
+        this.stripeKeys = Collections.unmodifiableList(keys);
+        this.maxStalenessNanos = timeUnit.toNanos(maxStaleness);
+    }
+    
+    private static String stripeKeyOf(String id, int stripe) {
+        return id + "#" + stripe;
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public SambaCache getCache() {
+        return cache;
+    }
+    
+    public int getStripeCount() {
+        return stripeKeys.size();
+    }
+    
+    public void add(long delta) {
+        cache.addAndGet(stripeKeys.get(stripeOfCurrentThread()), delta);
+        CachedSum sum = cachedSum;
+        if (sum != null) {
+            // Own updates are reflected to the cached sum, so they are visible to the subsequent reads 
+            // of the same field (concurrent ones might be missed but only until the cached sum expires)
+            cachedSum = new CachedSum(sum.value + delta, sum.expirationTime);
+        }
+    }
+    
+    public void increment() {
+        add(1);
+    }
+    
+    public void decrement() {
+        add(-1);
+    }
+    
+    private int stripeOfCurrentThread() {
+        int hash = (int) Thread.currentThread().getId() ^ PROCESS_SEED;
+        // Spread the bits, so consecutive thread ids don't map to the consecutive stripes only
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & Integer.MAX_VALUE) % stripeKeys.size();
+    }
+    
+    /**
+     * Gets the sum of all the stripes (possibly stale up to the configured max staleness).
+     */
+    public long sum() {
+        CachedSum sum = cachedSum;
+        if (sum != null && System.nanoTime() - sum.expirationTime < 0) {
+            CACHED_SUM_READS.increment();
+            return sum.value;
+        }
+        return refresh();
+    }
+    
+    /**
+     * Gets the sum of all the stripes by reading them regardless of the cached sum.
+     */
+    public long refresh() {
+        SUM_READS.increment();
+        long sum = 0;
+        Map<String, Object> values = cache.getAll(stripeKeys);
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            sum += numberOf(entry.getKey(), entry.getValue());
+        }
+        if (maxStalenessNanos > 0) {
+            cachedSum = new CachedSum(sum, System.nanoTime() + maxStalenessNanos);
+        }
+        return sum;
+    }
+    
+    private long numberOf(String key, Object value) {
+        // Values might be served from local copies as proxies which can be invalidated concurrently
+        while (value instanceof SambaValueProxy) {
+            value = ((SambaValueProxy) value).getValue();
+            if (value == SambaValueProxy.INVALIDATED) {
+                value = cache.get(key);
+            }
+        }
+        return value != null ? ((Number) value).longValue() : 0;
+    }
+    
+    public void reset() {
+        cache.removeAll(stripeKeys);
+        cachedSum = null;
+    }
+    
+    private static final class CachedSum {
+        
+        private final long value;
+        private final long expirationTime;
+        
+        private CachedSum(long value, long expirationTime) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+        
+    }
+    
+    @Override
+    public String toString() {
+        return "SambaCounterField [" + 
+                    "cacheType=" + cache.getType() + 
+                    ", id=" + id + 
+                    ", stripeCount=" + stripeKeys.size() + 
+                    ", sum=" + sum() + 
+               "]";
+    }
+
+}
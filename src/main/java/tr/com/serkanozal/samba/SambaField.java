@@ -15,17 +15,33 @@
  */
 package tr.com.serkanozal.samba;
 
+import java.util.Collection;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
 import tr.com.serkanozal.samba.cache.SambaCacheProvider;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaFuture;
+import tr.com.serkanozal.samba.cache.SambaFutureListener;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+import tr.com.serkanozal.samba.metrics.SambaMetricsRegistry;
 
 public class SambaField<V> {
 
     private static final SambaValueProxy EMPTY_PROXY = 
             new SambaValueProxy(SambaValueProxy.INVALIDATED);
+    private static final SambaValueProxy ABSENT_PROXY = new SambaValueProxy(null);
+    // Metrics are shared by all the fields and only updated out of the fast path of "get()" 
+    // (when the value is already available locally), so the fast path doesn't pay for them
+    private static final SambaMetrics METRICS = SambaMetricsRegistry.register("field");
+    private static final SambaCounter RELOADS = METRICS.counter("reloads");
+    private static final SambaCounter CAS_SUCCESSES = METRICS.counter("casSuccesses");
+    private static final SambaCounter CAS_FAILURES = METRICS.counter("casFailures");
+    private static final SambaCounter PROCESS_ATOMICALLY_RETRIES = METRICS.counter("processAtomicallyRetries");
     
     private final SambaCache cache;
     private final String id;
@@ -35,7 +51,11 @@ public class SambaField<V> {
         this(generateIdFromCallee(), cacheType);
     }
     
-    private static String generateIdFromCallee() {
+    /**
+     * Generates the id from the location creating the field, so the same field gets the same id on every JVM. 
+     * It must be called directly by the constructor of the field (also used by {@link SambaCounterField}).
+     */
+    static String generateIdFromCallee() {
         StackTraceElement callee = Thread.currentThread().getStackTrace()[3];
         String calleeId = callee.getClassName() + "#" + callee.getMethodName() + ":" + callee.getLineNumber();
         return UUID.nameUUIDFromBytes(calleeId.getBytes()).toString();
@@ -51,6 +71,19 @@ public class SambaField<V> {
         this.valueProxy = EMPTY_PROXY;
     }
     
+    public SambaField(SambaCacheType cacheType, SambaSerializer serializer) {
+        this(generateIdFromCallee(), cacheType, serializer);
+    }
+    
+    public SambaField(String id, SambaCacheType cacheType, SambaSerializer serializer) {
+        this(id, SambaCacheProvider.getCache(cacheType), serializer);
+    }
+    
+    public SambaField(String id, SambaCache cache, SambaSerializer serializer) {
+        this(id, cache);
+        cache.setSerializer(id, serializer);
+    }
+    
     public String getId() {
         return id;
     }
@@ -69,6 +102,7 @@ public class SambaField<V> {
         if (value != SambaValueProxy.INVALIDATED) {
             return (V) value;
         }  
+        RELOADS.increment();
         for (;;) {
             value = cache.get(id);
             if (value instanceof SambaValueProxy) {
@@ -87,6 +121,45 @@ public class SambaField<V> {
         }    
     }
     
+    @SuppressWarnings("unchecked")
+    public SambaFuture<V> getAsync() {
+        Object value = valueProxy.getValue();
+        if (value != SambaValueProxy.INVALIDATED) {
+            return SambaFuture.completed((V) value);
+        }
+        SambaFuture<V> future = new SambaFuture<V>();
+        loadAsync(future);
+        return future;
+    }
+    
+    private void loadAsync(final SambaFuture<V> future) {
+        cache.getAsync(id).addListener(new SambaFutureListener<Object>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public void onSuccess(Object value) {
+                if (value instanceof SambaValueProxy) {
+                    SambaValueProxy proxy = (SambaValueProxy) value;
+                    valueProxy = proxy;
+                    value = proxy.getValue();
+                    if (value == SambaValueProxy.INVALIDATED) {
+                        // Invalidated concurrently, so load again asynchronously 
+                        // instead of blocking the thread completing this load
+                        loadAsync(future);
+                        return;
+                    }
+                } else {
+                    valueProxy = EMPTY_PROXY;
+                }
+                future.complete((V) value);
+            }
+            
+            @Override
+            public void onFailure(Throwable error) {
+                future.fail(error);
+            }
+        });
+    }
+    
     public V getOrCreate(SambaValueFactory<V> factory) {
         V value = get();
         if (value != null) {
@@ -137,13 +210,110 @@ public class SambaField<V> {
         // TODO Also set proxy on update eagerly as atomic 
     }
     
+    public void set(V value, long ttl, TimeUnit timeUnit) {
+        if (value == null) {
+            clear();
+        } else {
+            cache.put(id, value, ttl, timeUnit);
+        }
+    }
+    
+    public SambaFuture<Void> setAsync(V value) {
+        if (value == null) {
+            return clearAsync();
+        } else {
+            return cache.putAsync(id, value);
+        }
+    }
+    
     public boolean compareAndSet(V oldValue, V newValue) {
-        return cache.replace(id, oldValue, newValue);
+        SambaValueProxy proxy = valueProxy;
+        boolean replaced;
+        // If the old value is the one we have read with its version, 
+        // it is enough to compare the versions instead of the values
+        if (oldValue != null && proxy.hasVersion() && proxy.getValue() == oldValue) {
+            replaced = cache.replaceVersioned(id, proxy.getVersion(), newValue);
+        } else {
+            replaced = cache.replace(id, oldValue, newValue);
+        }
+        (replaced ? CAS_SUCCESSES : CAS_FAILURES).increment();
+        return replaced;
         // TODO Also set proxy on update eagerly as atomic 
     }
     
     public boolean compareAndSet(V newValue) {
-        return compareAndSet(get(), newValue);
+        return compareAndSetVersioned(getVersioned(false), newValue);
+    }
+    
+    private boolean compareAndSetVersioned(SambaValueProxy current, V newValue) {
+        boolean replaced;
+        if (current.hasVersion()) {
+            replaced = cache.replaceVersioned(id, current.getVersion(), newValue);
+        } else {
+            replaced = cache.replace(id, current.getValue(), newValue);
+        }
+        (replaced ? CAS_SUCCESSES : CAS_FAILURES).increment();
+        return replaced;
+    }
+    
+    /**
+     * Gets the current value with its version as a snapshot 
+     * which is not affected by the further invalidations.
+     */
+    private SambaValueProxy getVersioned(boolean refresh) {
+        for (;;) {
+            SambaValueProxy proxy = refresh ? cache.refreshVersioned(id) : cache.getVersioned(id);
+            if (proxy == null) {
+                return ABSENT_PROXY;
+            }
+            Object value = proxy.getValue();
+            if (value != SambaValueProxy.INVALIDATED) {
+                return new SambaValueProxy(value, proxy.getVersion());
+            }
+        }
+    }
+    
+    public SambaFuture<Boolean> compareAndSetAsync(V oldValue, V newValue) {
+        return cache.replaceAsync(id, oldValue, newValue);
+    }
+    
+    /**
+     * Adds the delta to the number value (treated as zero if there is no value) atomically 
+     * on the cache side without reading it first and returns the new value.
+     */
+    public long addAndGet(long delta) {
+        return cache.addAndGet(id, delta);
+    }
+    
+    /**
+     * Appends the elements to the list value (created if there is no value) atomically 
+     * on the cache side without reading it first.
+     */
+    public void appendToList(Collection<?> elements) {
+        cache.appendToList(id, elements);
+    }
+    
+    /**
+     * Adds the elements (either all strings or all numbers) to the set value 
+     * (created if there is no value) atomically on the cache side without reading it first.
+     */
+    public void addToSet(Collection<?> elements) {
+        cache.addToSet(id, elements);
+    }
+    
+    /**
+     * Removes the elements from the set value atomically on the cache side without reading it first.
+     */
+    public void removeFromSet(Collection<?> elements) {
+        cache.removeFromSet(id, elements);
+    }
+    
+    /**
+     * Sets the value only if there is no value 
+     * and returns the existing value or <code>null</code> if the value has been set.
+     */
+    public V setIfAbsent(V value) {
+        return cache.putIfAbsent(id, value);
     }
     
     public void clear() {
@@ -151,6 +321,10 @@ public class SambaField<V> {
         // TODO Also clear proxy on update eagerly as atomic
     }
     
+    public SambaFuture<Void> clearAsync() {
+        return cache.removeAsync(id);
+    }
+    
     public V process(SambaFieldProcessor<V> processor) {
         V currentValue = get();
         V newValue = processor.process(currentValue);
@@ -158,14 +332,16 @@ public class SambaField<V> {
         return newValue;
     }
     
+    @SuppressWarnings("unchecked")
     public V processAtomically(SambaFieldProcessor<V> processor) {
-        V currentValue = get();
+        SambaValueProxy current = getVersioned(false);
         for (;;) {
-            V newValue = processor.process(currentValue);
-            if (compareAndSet(currentValue, newValue)) {
+            V newValue = processor.process((V) current.getValue());
+            if (compareAndSetVersioned(current, newValue)) {
                 return newValue;
             }
-            currentValue = refresh();
+            PROCESS_ATOMICALLY_RETRIES.increment();
+            current = getVersioned(true);
         }
     }
 
@@ -18,19 +18,59 @@ package tr.com.serkanozal.samba;
 public final class SambaValueProxy {
 
     public static final Object INVALIDATED = new Object();
+    public static final long NO_VERSION = -1;
     
     private volatile Object value;
+    // Version of the value in the remote store (if there is any), 
+    // so conditional updates don't need to ship the old value for comparison
+    private final long version;
+    // Plain (non-volatile) flag to keep the access path cheap, 
+    // it is only used for approximating idle times of entries
+    private boolean accessed;
     
     public SambaValueProxy() {
+        this.version = NO_VERSION;
     }
     
     public SambaValueProxy(Object value) {
+        this(value, NO_VERSION);
+    }
+    
+    public SambaValueProxy(Object value, long version) {
         this.value = value;
+        this.version = version;
     }
     
     public Object getValue() {
+        if (!accessed) {
+            accessed = true;
+        }
         return value;
     }
+    
+    /**
+     * Gets the value without marking it as accessed, 
+     * so background tasks reading it don't keep an idle value alive.
+     */
+    public Object peekValue() {
+        return value;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public boolean hasVersion() {
+        return version != NO_VERSION;
+    }
+    
+    public boolean clearAccessed() {
+        if (accessed) {
+            accessed = false;
+            return true;
+        }
+        return false;
+    }
 
     public void invalidateValue() {
         value = INVALIDATED;
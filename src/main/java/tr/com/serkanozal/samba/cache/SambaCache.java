@@ -15,6 +15,12 @@
  */
 package tr.com.serkanozal.samba.cache;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import tr.com.serkanozal.samba.SambaValueProxy;
+
 public interface SambaCache {
 
     SambaCacheType getType();
@@ -23,8 +29,86 @@ public interface SambaCache {
     <V> V get(String key);
     <V> V refresh(String key);
     void put(String key, Object value);
+    void put(String key, Object value, long ttl, TimeUnit timeUnit);
     boolean replace(String key, Object oldValue, Object newValue);
     void remove(String key);
     void clear();
     
+    /**
+     * Asynchronous versions of the basic operations.
+     * Operations which don't need any remote call (such as near-cache hits)
+     * return already completed futures.
+     */
+    <V> SambaFuture<V> getAsync(String key);
+    SambaFuture<Void> putAsync(String key, Object value);
+    SambaFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue);
+    SambaFuture<Void> removeAsync(String key);
+    
+    /**
+     * Gets values of the given keys in batch.
+     * Values are the same as the ones returned from {@link #get(String)} for each key
+     * and absent keys are not included in the returned map.
+     */
+    Map<String, Object> getAll(Collection<String> keys);
+    /**
+     * Puts the given entries in batch. Entries with <code>null</code> value are removed.
+     * Note that the batch as a whole is not atomic.
+     */
+    void putAll(Map<String, ?> entries);
+    /**
+     * Removes the given keys in batch.
+     * Note that the batch as a whole is not atomic.
+     */
+    void removeAll(Collection<String> keys);
+
+    /**
+     * Gets the value with its version as {@link SambaValueProxy} 
+     * or <code>null</code> if there is no value.
+     * Entries of the caches which don't keep versions have {@link SambaValueProxy#NO_VERSION}.
+     */
+    SambaValueProxy getVersioned(String key);
+    /**
+     * Same as {@link #getVersioned(String)} but bypasses the local copies (if there is any).
+     */
+    SambaValueProxy refreshVersioned(String key);
+    /**
+     * Replaces the value with the given one (or removes it if <code>null</code>) 
+     * only if its current version is still the expected one.
+     * Only the new value is sent instead of comparing the whole old value.
+     */
+    boolean replaceVersioned(String key, long expectedVersion, Object newValue);
+
+    /**
+     * Atomic operations which are applied to the current value in place 
+     * without reading it first (by a single request in case of remote caches). 
+     * Absent values are treated as zero, empty list and empty set respectively. 
+     * Note that values of the remote caches updated by these operations are stored natively 
+     * instead of being serialized, so numbers are read back as {@link Long} (or {@link Double}), 
+     * lists as {@link java.util.List} and sets as {@link java.util.Set}. 
+     * Set elements must be either all strings or all numbers.
+     */
+    long addAndGet(String key, long delta);
+    void appendToList(String key, Collection<?> elements);
+    void addToSet(String key, Collection<?> elements);
+    void removeFromSet(String key, Collection<?> elements);
+    /**
+     * Puts the value only if there is no value 
+     * and returns the existing value or <code>null</code> if the value has been put.
+     */
+    <V> V putIfAbsent(String key, Object value);
+    
+    /**
+     * Writes the pending writes (if the cache buffers its writes, such as in write-behind mode) 
+     * and returns when all the writes done before the call have been written. 
+     * It should be called before shutdown not to lose the pending writes.
+     */
+    void flush();
+    
+    /**
+     * Sets the serializer to be used for the value of the given key 
+     * instead of the serializer of the cache.
+     * Caches which don't serialize their values ignore it.
+     */
+    void setSerializer(String key, SambaSerializer serializer);
+
 }
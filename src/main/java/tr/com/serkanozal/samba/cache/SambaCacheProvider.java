@@ -16,8 +16,8 @@
 package tr.com.serkanozal.samba.cache;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache;
 import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
@@ -25,25 +25,30 @@ import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
 
 public class SambaCacheProvider {
 
-    private static final Map<SambaCacheType, SambaCache> CACHE_MAP = 
-            new HashMap<SambaCacheType, SambaCache>(SambaCacheType.values().length);
-    
-    static {
-        CACHE_MAP.put(SambaCacheType.LOCAL, new SambaLocalCache());
-        CACHE_MAP.put(SambaCacheType.GLOBAL, new SambaGlobalCache());
-        CACHE_MAP.put(SambaCacheType.TIERED, new SambaTieredCache());
-    }
+    // Caches are created on demand, so unused cache types (especially remote ones) 
+    // don't increase the cold start time
+    private static final ConcurrentMap<SambaCacheType, SambaCache> CACHE_MAP = 
+            new ConcurrentHashMap<SambaCacheType, SambaCache>(SambaCacheType.values().length);
     
     private SambaCacheProvider() {
         
     }
     
     public static SambaCache getCache(SambaCacheType cacheType) {
-        SambaCache cache = CACHE_MAP.get(cacheType);
-        if (cache == null) {
+        if (cacheType == null) {
             throw new IllegalArgumentException("Unknow cache type: " + cacheType + 
                     "! Valid values are " + Arrays.asList(SambaCacheType.values()));
         }
+        SambaCache cache = CACHE_MAP.get(cacheType);
+        if (cache == null) {
+            synchronized (CACHE_MAP) {
+                cache = CACHE_MAP.get(cacheType);
+                if (cache == null) {
+                    cache = createCache(cacheType);
+                    CACHE_MAP.put(cacheType, cache);
+                }
+            }
+        }
         return cache;
     }
     
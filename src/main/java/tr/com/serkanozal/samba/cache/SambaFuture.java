@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link Future} of an asynchronous cache operation
+ * which notifies its {@link SambaFutureListener}s on completion.
+ *
+ * Listeners are called on the thread which completes the future
+ * (or on the registering thread if it is already completed),
+ * so they should not block.
+ * Cancellation is not supported since the underlying requests cannot be cancelled.
+ */
+public class SambaFuture<V> implements Future<V> {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaFuture.class);
+    
+    private boolean done;
+    private V value;
+    private Throwable error;
+    private List<SambaFutureListener<V>> listeners;
+    
+    public static <V> SambaFuture<V> completed(V value) {
+        SambaFuture<V> future = new SambaFuture<V>();
+        future.complete(value);
+        return future;
+    }
+    
+    public static <V> SambaFuture<V> failed(Throwable error) {
+        SambaFuture<V> future = new SambaFuture<V>();
+        future.fail(error);
+        return future;
+    }
+    
+    public boolean complete(V value) {
+        List<SambaFutureListener<V>> listenersToNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.value = value;
+            this.done = true;
+            listenersToNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        if (listenersToNotify != null) {
+            for (SambaFutureListener<V> listener : listenersToNotify) {
+                notifySuccess(listener, value);
+            }
+        }
+        return true;
+    }
+    
+    public boolean fail(Throwable error) {
+        List<SambaFutureListener<V>> listenersToNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.error = error;
+            this.done = true;
+            listenersToNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        if (listenersToNotify != null) {
+            for (SambaFutureListener<V> listener : listenersToNotify) {
+                notifyFailure(listener, error);
+            }
+        }
+        return true;
+    }
+    
+    public SambaFuture<V> addListener(SambaFutureListener<V> listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<SambaFutureListener<V>>(2);
+                }
+                listeners.add(listener);
+                return this;
+            }
+        }
+        if (error != null) {
+            notifyFailure(listener, error);
+        } else {
+            notifySuccess(listener, value);
+        }
+        return this;
+    }
+    
+    private static <V> void notifySuccess(SambaFutureListener<V> listener, V value) {
+        try {
+            listener.onSuccess(value);
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred while notifying listener about success!", t);
+        }
+    }
+    
+    private static <V> void notifyFailure(SambaFutureListener<V> listener, Throwable error) {
+        try {
+            listener.onFailure(error);
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred while notifying listener about failure!", t);
+        }
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+    
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+    
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+    
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+    
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (!done) {
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return getResult();
+    }
+    
+    private V getResult() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache;
+
+/**
+ * Serializes the values stored in remote caches.
+ * 
+ * ID of the serializer is stored in front of each value, 
+ * so a value is always deserialized by the serializer which has written it.
+ * Therefore, the same serializer must be registered with the same ID 
+ * by all the clients sharing the cache.
+ * By default, built-in codecs are used for <code>String</code>, <code>byte[]</code>,
+ * primitive wrappers and <b>Kryo</b> for all other objects.
+ */
+public interface SambaSerializer {
+
+    /**
+     * IDs up to this one (inclusive) are reserved for the built-in serializers.
+     */
+    byte MAX_RESERVED_ID = 15;
+    
+    byte getId();
+    byte[] serialize(Object value);
+    Object deserialize(byte[] data, int offset, int length);
+
+}
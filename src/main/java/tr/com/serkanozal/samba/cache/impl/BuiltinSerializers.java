@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Built-in codecs for the common value types 
+ * which are written without any class information or reflection.
+ * Each value is written with the ID of its codec in front of it 
+ * and its length is implied by the stored value, so it is not written.
+ */
+final class BuiltinSerializers {
+
+    static final byte KRYO_ID = 0;
+    static final byte STRING_ID = 1;
+    static final byte BYTE_ARRAY_ID = 2;
+    static final byte LONG_ID = 3;
+    static final byte INTEGER_ID = 4;
+    static final byte SHORT_ID = 5;
+    static final byte BYTE_ID = 6;
+    static final byte DOUBLE_ID = 7;
+    static final byte FLOAT_ID = 8;
+    static final byte BOOLEAN_ID = 9;
+    static final byte CHARACTER_ID = 10;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private BuiltinSerializers() {
+        
+    }
+    
+    static boolean isBuiltin(byte id) {
+        return id >= 0 && id <= CHARACTER_ID;
+    }
+    
+    /**
+     * Writes the value if there is a built-in codec for its type, 
+     * otherwise returns <code>false</code> without writing anything.
+     */
+    static boolean write(Output output, Object value) {
+        // Exact class checks are cheaper than "instanceof" chain and all of these classes are final
+        Class<?> clazz = value.getClass();
+        if (clazz == String.class) {
+            output.writeByte(STRING_ID);
+            output.writeBytes(((String) value).getBytes(UTF_8));
+        } else if (clazz == byte[].class) {
+            output.writeByte(BYTE_ARRAY_ID);
+            output.writeBytes((byte[]) value);
+        } else if (clazz == Long.class) {
+            output.writeByte(LONG_ID);
+            output.writeVarLong((Long) value, false);
+        } else if (clazz == Integer.class) {
+            output.writeByte(INTEGER_ID);
+            output.writeVarInt((Integer) value, false);
+        } else if (clazz == Short.class) {
+            output.writeByte(SHORT_ID);
+            output.writeVarInt((Short) value, false);
+        } else if (clazz == Byte.class) {
+            output.writeByte(BYTE_ID);
+            output.writeByte((Byte) value);
+        } else if (clazz == Double.class) {
+            output.writeByte(DOUBLE_ID);
+            output.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (clazz == Float.class) {
+            output.writeByte(FLOAT_ID);
+            output.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (clazz == Boolean.class) {
+            output.writeByte(BOOLEAN_ID);
+            output.writeBoolean((Boolean) value);
+        } else if (clazz == Character.class) {
+            output.writeByte(CHARACTER_ID);
+            output.writeChar((Character) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Reads the value written by the built-in codec with the given ID (except Kryo)
+     * from the remaining of the given input.
+     */
+    static Object read(byte id, Input input) {
+        switch (id) {
+            case STRING_ID: 
+                return new String(input.getBuffer(), input.position(), remaining(input), UTF_8);
+            case BYTE_ARRAY_ID: 
+                return Arrays.copyOfRange(input.getBuffer(), input.position(), input.limit());
+            case LONG_ID: 
+                return input.readVarLong(false);
+            case INTEGER_ID: 
+                return input.readVarInt(false);
+            case SHORT_ID: 
+                return (short) input.readVarInt(false);
+            case BYTE_ID: 
+                return input.readByte();
+            case DOUBLE_ID: 
+                return Double.longBitsToDouble(input.readLong());
+            case FLOAT_ID: 
+                return Float.intBitsToFloat(input.readInt());
+            case BOOLEAN_ID: 
+                return input.readBoolean();
+            case CHARACTER_ID: 
+                return input.readChar();
+            default: 
+                throw new IllegalArgumentException("Unknown built-in serializer id: " + id);
+        }
+    }
+    
+    private static int remaining(Input input) {
+        return input.limit() - input.position();
+    }
+
+}
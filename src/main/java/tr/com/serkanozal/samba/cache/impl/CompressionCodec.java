@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.Arrays;
+
+/**
+ * Codecs to compress the serialized values stored in global cache.
+ * 
+ * Each stored value starts with the header byte of the codec it is written with,
+ * so compressed and uncompressed values (or values written by caches 
+ * configured with different codecs) can coexist in the same table.
+ * Header bytes are chosen from the values which are never written by Kryo
+ * as first byte with the default class registrations, 
+ * so values stored before the header was introduced can still be read.
+ */
+enum CompressionCodec {
+
+    NONE((byte) 0xFF), 
+    DEFLATE((byte) 0xFE);
+    
+    final byte header;
+    
+    private CompressionCodec(byte header) {
+        this.header = header;
+    }
+    
+    static CompressionCodec of(String name) {
+        for (CompressionCodec codec : values()) {
+            if (codec.name().equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression codec: " + name + 
+                "! Valid values are " + Arrays.asList(values()));
+    }
+    
+    static CompressionCodec ofHeader(byte header) {
+        if (header == NONE.header) {
+            return NONE;
+        } else if (header == DEFLATE.header) {
+            return DEFLATE;
+        } else {
+            return null;
+        }
+    }
+
+}
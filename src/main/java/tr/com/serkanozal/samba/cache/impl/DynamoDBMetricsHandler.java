@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaHistogram;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+
+/**
+ * Records latencies (in microseconds, including retries) and errors of the DynamoDB requests by operation, 
+ * such as <code>dynamoDB.UpdateItem.latencyMicros</code>. 
+ * Since it is attached to the clients, both synchronous and asynchronous requests are covered.
+ */
+class DynamoDBMetricsHandler extends RequestHandler2 {
+
+    private static final HandlerContextKey<Long> START_TIME = 
+            new HandlerContextKey<Long>(DynamoDBMetricsHandler.class.getName() + ".startTime");
+    
+    private final SambaMetrics metrics;
+    private final ConcurrentMap<Class<?>, OperationMetrics> operationMetricsMap = 
+            new ConcurrentHashMap<Class<?>, OperationMetrics>();
+    
+    DynamoDBMetricsHandler(SambaMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    @Override
+    public void beforeRequest(Request<?> request) {
+        request.addHandlerContext(START_TIME, System.nanoTime());
+    }
+    
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        Long startTime = request.getHandlerContext(START_TIME);
+        if (startTime != null) {
+            operationMetricsOf(request).latency.record((System.nanoTime() - startTime) / 1000);
+        }
+    }
+    
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        operationMetricsOf(request).errors.increment();
+    }
+    
+    private OperationMetrics operationMetricsOf(Request<?> request) {
+        Class<?> requestClass = request.getOriginalRequest().getClass();
+        OperationMetrics operationMetrics = operationMetricsMap.get(requestClass);
+        if (operationMetrics == null) {
+            String operationName = requestClass.getSimpleName();
+            if (operationName.endsWith("Request")) {
+                operationName = operationName.substring(0, operationName.length() - "Request".length());
+            }
+            operationMetrics = 
+                    new OperationMetrics(
+                            metrics.histogram("dynamoDB." + operationName + ".latencyMicros"), 
+                            metrics.counter("dynamoDB." + operationName + ".errors"));
+            OperationMetrics existingOperationMetrics = 
+                    operationMetricsMap.putIfAbsent(requestClass, operationMetrics);
+            if (existingOperationMetrics != null) {
+                operationMetrics = existingOperationMetrics;
+            }
+        }
+        return operationMetrics;
+    }
+    
+    private static final class OperationMetrics {
+        
+        private final SambaHistogram latency;
+        private final SambaCounter errors;
+        
+        private OperationMetrics(SambaHistogram latency, SambaCounter errors) {
+            this.latency = latency;
+            this.errors = errors;
+        }
+        
+    }
+
+}
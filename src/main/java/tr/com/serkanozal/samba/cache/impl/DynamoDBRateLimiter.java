@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaGauge;
+import tr.com.serkanozal.samba.metrics.SambaHistogram;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+
+/**
+ * Limits the rate of the DynamoDB data-plane requests on the client side 
+ * by the provisioned read and write capacities.
+ * 
+ * Reads and writes are limited by their own token buckets (as they are provisioned separately), 
+ * so a backlog of writes never delays reads. 
+ * Each request reserves its estimated capacity units before being sent 
+ * and the reservation is corrected by the consumed capacity returned with the response. 
+ * Throttled requests (including partially processed batches) slow the bucket down 
+ * and they are retried with exponential backoff with full jitter, 
+ * so throttling turns into queueing on the client instead of synchronized retry storms.
+ */
+class DynamoDBRateLimiter extends RequestHandler2 implements RetryPolicy.BackoffStrategy {
+
+    private static final HandlerContextKey<Double> RESERVED_UNITS = 
+            new HandlerContextKey<Double>(DynamoDBRateLimiter.class.getName() + ".reservedUnits");
+    private static final long THROTTLE_BACKOFF_BASE_MILLIS = 50;
+    private static final long THROTTLE_BACKOFF_MAX_MILLIS = 5000;
+    // Capacity which is not used for a while is kept up to this duration to absorb short bursts
+    private static final double BURST_SECONDS = 1;
+    
+    private final TokenBucket readBucket;
+    private final TokenBucket writeBucket;
+    private final Random random = new Random();
+    private final SambaHistogram waitMicros;
+    private final SambaCounter throttles;
+    
+    DynamoDBRateLimiter(int readCapacityPerSecond, int writeCapacityPerSecond, SambaMetrics metrics) {
+        this.readBucket = new TokenBucket(readCapacityPerSecond, BURST_SECONDS);
+        this.writeBucket = new TokenBucket(writeCapacityPerSecond, BURST_SECONDS);
+        this.waitMicros = metrics.histogram("rateLimiter.waitMicros");
+        this.throttles = metrics.counter("rateLimiter.throttles");
+        metrics.gauge("rateLimiter.readRate", new SambaGauge() {
+            @Override
+            public long getValue() {
+                return (long) readBucket.getRate();
+            }
+        });
+        metrics.gauge("rateLimiter.writeRate", new SambaGauge() {
+            @Override
+            public long getValue() {
+                return (long) writeBucket.getRate();
+            }
+        });
+    }
+    
+    /**
+     * Creates the retry policy of the client which backs off by this rate limiter.
+     */
+    RetryPolicy createRetryPolicy() {
+        return new RetryPolicy(
+                PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION, 
+                this, 
+                PredefinedRetryPolicies.DYNAMODB_DEFAULT_MAX_ERROR_RETRY, 
+                true);
+    }
+    
+    private TokenBucket bucketOf(AmazonWebServiceRequest request) {
+        if (request instanceof GetItemRequest
+                || request instanceof BatchGetItemRequest
+                || request instanceof QueryRequest
+                || request instanceof ScanRequest) {
+            return readBucket;
+        } else if (request instanceof PutItemRequest
+                || request instanceof UpdateItemRequest
+                || request instanceof DeleteItemRequest
+                || request instanceof BatchWriteItemRequest) {
+            return writeBucket;
+        }
+        // Control-plane requests (such as "DescribeTable") are not limited
+        return null;
+    }
+    
+    /**
+     * Estimates the capacity units of the request as an item of up to 1 KB (for writes) or 4 KB (for reads) 
+     * for each key, it is corrected later by the actually consumed capacity.
+     */
+    private static double estimatedUnitsOf(AmazonWebServiceRequest request) {
+        if (request instanceof BatchGetItemRequest) {
+            int keyCount = 0;
+            Map<String, KeysAndAttributes> requestItems = ((BatchGetItemRequest) request).getRequestItems();
+            if (requestItems != null) {
+                for (KeysAndAttributes keysAndAttributes : requestItems.values()) {
+                    keyCount += keysAndAttributes.getKeys().size();
+                }
+            }
+            return keyCount;
+        } else if (request instanceof BatchWriteItemRequest) {
+            int writeCount = 0;
+            Map<String, List<WriteRequest>> requestItems = ((BatchWriteItemRequest) request).getRequestItems();
+            if (requestItems != null) {
+                for (List<WriteRequest> writeRequests : requestItems.values()) {
+                    writeCount += writeRequests.size();
+                }
+            }
+            return writeCount;
+        }
+        return 1;
+    }
+    
+    @Override
+    public AmazonWebServiceRequest beforeMarshalling(AmazonWebServiceRequest request) {
+        // Consumed capacity is only returned if it is requested
+        if (request instanceof GetItemRequest) {
+            ((GetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof BatchGetItemRequest) {
+            ((BatchGetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof QueryRequest) {
+            ((QueryRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof ScanRequest) {
+            ((ScanRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof PutItemRequest) {
+            ((PutItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof UpdateItemRequest) {
+            ((UpdateItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof DeleteItemRequest) {
+            ((DeleteItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof BatchWriteItemRequest) {
+            ((BatchWriteItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        }
+        return request;
+    }
+    
+    @Override
+    public void beforeRequest(Request<?> request) {
+        AmazonWebServiceRequest originalRequest = request.getOriginalRequest();
+        TokenBucket bucket = bucketOf(originalRequest);
+        if (bucket != null) {
+            double units = estimatedUnitsOf(originalRequest);
+            long start = System.nanoTime();
+            bucket.acquire(units);
+            waitMicros.record((System.nanoTime() - start) / 1000);
+            request.addHandlerContext(RESERVED_UNITS, units);
+        }
+    }
+    
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        AmazonWebServiceRequest originalRequest = request.getOriginalRequest();
+        TokenBucket bucket = bucketOf(originalRequest);
+        Double reservedUnits = request.getHandlerContext(RESERVED_UNITS);
+        if (bucket == null || reservedUnits == null) {
+            return;
+        }
+        Object result = response.getAwsResponse();
+        Double consumedUnits = consumedUnitsOf(result);
+        if (consumedUnits != null) {
+            bucket.adjust(consumedUnits - reservedUnits);
+        }
+        // Unprocessed items are the way of batch requests to report throttling
+        if (result instanceof BatchGetItemResult) {
+            Map<String, KeysAndAttributes> unprocessedKeys = ((BatchGetItemResult) result).getUnprocessedKeys();
+            if (unprocessedKeys != null && !unprocessedKeys.isEmpty()) {
+                onThrottle(bucket);
+            }
+        } else if (result instanceof BatchWriteItemResult) {
+            Map<String, List<WriteRequest>> unprocessedItems = ((BatchWriteItemResult) result).getUnprocessedItems();
+            if (unprocessedItems != null && !unprocessedItems.isEmpty()) {
+                onThrottle(bucket);
+            }
+        }
+    }
+    
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        TokenBucket bucket = bucketOf(request.getOriginalRequest());
+        Double reservedUnits = request.getHandlerContext(RESERVED_UNITS);
+        if (bucket == null || reservedUnits == null) {
+            return;
+        }
+        // Failed conditional writes still consume their capacity, 
+        // but errors don't report how much, so the reservation is kept as the estimate of it
+        if (e instanceof ConditionalCheckFailedException) {
+            return;
+        }
+        // Other failed requests (such as the ones throttled out of retries or rejected as invalid) 
+        // consume no capacity, so their reservations are given back
+        bucket.adjust(-reservedUnits);
+    }
+    
+    private static Double consumedUnitsOf(Object result) {
+        if (result instanceof GetItemResult) {
+            return unitsOf(((GetItemResult) result).getConsumedCapacity());
+        } else if (result instanceof UpdateItemResult) {
+            return unitsOf(((UpdateItemResult) result).getConsumedCapacity());
+        } else if (result instanceof PutItemResult) {
+            return unitsOf(((PutItemResult) result).getConsumedCapacity());
+        } else if (result instanceof DeleteItemResult) {
+            return unitsOf(((DeleteItemResult) result).getConsumedCapacity());
+        } else if (result instanceof QueryResult) {
+            return unitsOf(((QueryResult) result).getConsumedCapacity());
+        } else if (result instanceof ScanResult) {
+            return unitsOf(((ScanResult) result).getConsumedCapacity());
+        } else if (result instanceof BatchGetItemResult) {
+            return unitsOf(((BatchGetItemResult) result).getConsumedCapacity());
+        } else if (result instanceof BatchWriteItemResult) {
+            return unitsOf(((BatchWriteItemResult) result).getConsumedCapacity());
+        }
+        return null;
+    }
+    
+    private static Double unitsOf(ConsumedCapacity consumedCapacity) {
+        return consumedCapacity != null ? consumedCapacity.getCapacityUnits() : null;
+    }
+    
+    private static Double unitsOf(Collection<ConsumedCapacity> consumedCapacities) {
+        if (consumedCapacities == null) {
+            return null;
+        }
+        double units = 0;
+        for (ConsumedCapacity consumedCapacity : consumedCapacities) {
+            if (consumedCapacity.getCapacityUnits() != null) {
+                units += consumedCapacity.getCapacityUnits();
+            }
+        }
+        return units;
+    }
+    
+    private void onThrottle(TokenBucket bucket) {
+        throttles.increment();
+        bucket.onThrottle();
+    }
+    
+    @Override
+    public long delayBeforeNextRetry(AmazonWebServiceRequest originalRequest, 
+                                     AmazonClientException exception, 
+                                     int retriesAttempted) {
+        if (exception instanceof AmazonServiceException
+                && RetryUtils.isThrottlingException((AmazonServiceException) exception)) {
+            TokenBucket bucket = bucketOf(originalRequest);
+            if (bucket != null) {
+                onThrottle(bucket);
+            }
+            return throttleBackoffMillis(retriesAttempted);
+        }
+        return PredefinedRetryPolicies.DYNAMODB_DEFAULT_BACKOFF_STRATEGY.delayBeforeNextRetry(
+                originalRequest, exception, retriesAttempted);
+    }
+    
+    /**
+     * Exponential backoff with full jitter, so the retries of the clients throttled together are spread out.
+     */
+    long throttleBackoffMillis(int retriesAttempted) {
+        long maxBackoff = 
+                Math.min(THROTTLE_BACKOFF_MAX_MILLIS, THROTTLE_BACKOFF_BASE_MILLIS << Math.min(retriesAttempted, 16));
+        return (long) (random.nextDouble() * maxBackoff);
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreamsClient;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.Record;
+
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+import tr.com.serkanozal.samba.metrics.SambaMetricsRegistry;
+
+/**
+ * Connection to a DynamoDB table shared by all the global caches on the same table in the process.
+ * 
+ * Clients, executors and the stream consumption of the table are created by the first cache acquiring it 
+ * and closed when the last cache releases it, so the stream is polled only once per table 
+ * and each record is fanned out to all the subscribed caches. 
+ * Requests of all the caches are served by the same clients, 
+ * so their metrics are recorded into the <code>cache.global.table.&lt;tableName&gt;</code> metrics group.
+ */
+final class DynamoDBTableConnection {
+
+    private static final Logger LOGGER = Logger.getLogger(DynamoDBTableConnection.class);
+    
+    // Guards also the reference counts of the connections
+    private static final Map<String, DynamoDBTableConnection> CONNECTIONS = 
+            new HashMap<String, DynamoDBTableConnection>();
+    
+    final String tableName;
+    final AmazonDynamoDBAsync dynamoDB;
+    final DynamoDB dynamoDBDocument;
+    final Table table;
+    final AmazonDynamoDBStreamsClient dynamoDBStreams;
+    final ScheduledExecutorService scheduledExecutorService;
+    final StreamConsumer streamConsumer;
+    private final ScheduledExecutorService streamExecutorService;
+    private final SambaMetrics metrics;
+    private final List<StreamConsumer.RecordProcessor> recordProcessors = 
+            new CopyOnWriteArrayList<StreamConsumer.RecordProcessor>();
+    private int referenceCount;
+    private boolean streamStarted;
+    
+    private DynamoDBTableConnection(String tableName, Properties sambaProps) throws IOException {
+        this.tableName = tableName;
+        this.metrics = SambaMetricsRegistry.register("cache.global.table." + tableName);
+        
+        Properties awsProps = SambaProperties.getProperties(SambaProperties.AWS_CREDENTIALS_PROPERTIES_FILE_NAME);
+        AWSCredentials awsCredentials = 
+                new BasicAWSCredentials(
+                        awsProps.getProperty("aws.accessKey"), 
+                        awsProps.getProperty("aws.secretKey"));
+        
+        // Async client is also a sync client, so the same client (and its connection pool) serves both
+        ExecutorService asyncExecutorService = 
+                Executors.newFixedThreadPool(
+                        SambaProperties.getInt(sambaProps, "cache.global.asyncThreadCount", 50), 
+                        createDaemonThreadFactory());
+        // Records latencies and errors of all the requests (both sync and async ones)
+        DynamoDBMetricsHandler metricsHandler = new DynamoDBMetricsHandler(metrics);
+        AmazonDynamoDBAsyncClient dynamoDBClient;
+        if (SambaProperties.getBoolean(sambaProps, "cache.global.rateLimiting", false)) {
+            // Capacities are provisioned for the whole table, 
+            // so the limiters start from them and slow down as the table throttles the others too
+            DynamoDBRateLimiter rateLimiter = 
+                    new DynamoDBRateLimiter(
+                            SambaProperties.getInt(sambaProps, "cache.global.readCapacityPerSecond", 1000), 
+                            SambaProperties.getInt(sambaProps, "cache.global.writeCapacityPerSecond", 100), 
+                            metrics);
+            dynamoDBClient = 
+                    new AmazonDynamoDBAsyncClient(
+                            awsCredentials, 
+                            new ClientConfiguration().withRetryPolicy(rateLimiter.createRetryPolicy()), 
+                            asyncExecutorService);
+            // Metrics handler is added first, so latencies include the time waited for capacity
+            dynamoDBClient.addRequestHandler(metricsHandler);
+            dynamoDBClient.addRequestHandler(rateLimiter);
+        } else {
+            dynamoDBClient = new AmazonDynamoDBAsyncClient(awsCredentials, asyncExecutorService);
+            dynamoDBClient.addRequestHandler(metricsHandler);
+        }
+        dynamoDB = dynamoDBClient;
+        dynamoDBDocument = new DynamoDB(dynamoDB);
+        table = new Table(dynamoDB, tableName);
+        dynamoDBStreams = new AmazonDynamoDBStreamsClient(awsCredentials);
+        dynamoDBStreams.addRequestHandler(metricsHandler);
+        
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(createDaemonThreadFactory());
+        // Shards are consumed in parallel by their own tasks, 
+        // so stream consumption doesn't interfere with the table availability tasks
+        streamExecutorService = 
+                Executors.newScheduledThreadPool(
+                        SambaProperties.getInt(sambaProps, "cache.global.streamThreadCount", 4), 
+                        createDaemonThreadFactory());
+        streamConsumer = 
+                new StreamConsumer(
+                        dynamoDB, dynamoDBStreams, tableName, streamExecutorService, 
+                        SambaProperties.getLong(sambaProps, "cache.global.streamMinPollDelayMillis", 50), 
+                        SambaProperties.getLong(sambaProps, "cache.global.streamMaxPollDelayMillis", 1000), 
+                        new StreamConsumer.RecordProcessor() {
+                            @Override
+                            public void process(Record record) {
+                                for (StreamConsumer.RecordProcessor recordProcessor : recordProcessors) {
+                                    // A failing cache doesn't prevent the others from processing the record
+                                    try {
+                                        recordProcessor.process(record);
+                                    } catch (Throwable t) {
+                                        LOGGER.error("Error occurred while processing stream record!", t);
+                                    }
+                                }
+                            }
+                            
+                            @Override
+                            public void onRecordsMissed() {
+                                for (StreamConsumer.RecordProcessor recordProcessor : recordProcessors) {
+                                    try {
+                                        recordProcessor.onRecordsMissed();
+                                    } catch (Throwable t) {
+                                        LOGGER.error("Error occurred while processing missed stream records!", t);
+                                    }
+                                }
+                            }
+                        });
+    }
+    
+    private static ThreadFactory createDaemonThreadFactory() {
+        return new ThreadFactory() {
+            private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = delegatedThreadFactory.newThread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+    
+    /**
+     * Gets the connection to the given table (creates it if there is no connection yet) 
+     * which must be released by {@link #release()} when it is not used anymore.
+     */
+    static DynamoDBTableConnection acquire(String tableName, Properties sambaProps) throws IOException {
+        synchronized (CONNECTIONS) {
+            DynamoDBTableConnection connection = CONNECTIONS.get(tableName);
+            if (connection == null) {
+                connection = new DynamoDBTableConnection(tableName, sambaProps);
+                CONNECTIONS.put(tableName, connection);
+                
+                LOGGER.info(String.format("Connection to DynamoDB table (%s) has been opened", tableName));
+            }
+            connection.referenceCount++;
+            return connection;
+        }
+    }
+    
+    /**
+     * Releases the connection and closes it if it is not used by any other cache anymore.
+     */
+    void release() {
+        synchronized (CONNECTIONS) {
+            if (--referenceCount > 0) {
+                return;
+            }
+            CONNECTIONS.remove(tableName);
+        }
+        streamConsumer.stop();
+        streamExecutorService.shutdownNow();
+        scheduledExecutorService.shutdownNow();
+        // Also shuts down the async executor
+        dynamoDB.shutdown();
+        dynamoDBStreams.shutdown();
+        SambaMetricsRegistry.unregister(metrics);
+        
+        LOGGER.info(String.format("Connection to DynamoDB table (%s) has been closed", tableName));
+    }
+    
+    /**
+     * Subscribes the given processor to the records of the stream. 
+     * Records are delivered once the stream is started (by any of the subscribers).
+     */
+    void subscribe(StreamConsumer.RecordProcessor recordProcessor) {
+        recordProcessors.add(recordProcessor);
+    }
+    
+    void unsubscribe(StreamConsumer.RecordProcessor recordProcessor) {
+        recordProcessors.remove(recordProcessor);
+    }
+    
+    /**
+     * Starts consuming the stream from the latest records unless it has already been started.
+     * Failure to take the initial positions is thrown, then it can be called again.
+     */
+    synchronized void startStream() {
+        if (!streamStarted) {
+            streamConsumer.start();
+            streamStarted = true;
+        }
+    }
+    
+    /**
+     * Starts consuming the stream from the given checkpoint unless it has already been started. 
+     * Returns <code>true</code> if the stream has been resumed from the checkpoint.
+     */
+    synchronized boolean startStream(StreamConsumer.Checkpoint checkpoint) {
+        if (streamStarted) {
+            // Stream is already consumed for the other subscribers from its own position 
+            // and it cannot be moved back without replaying the records to them
+            LOGGER.info(
+                    String.format("Stream of DynamoDB table (%s) has already been started, " + 
+                                  "so it cannot be resumed from checkpoint", tableName));
+            return false;
+        }
+        boolean resumed = streamConsumer.start(checkpoint);
+        streamStarted = true;
+        return resumed;
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min sketch with 4-bit counters (16 counters per <code>long</code>, 4 hash functions)
+ * to estimate access frequencies of keys for TinyLFU admission.
+ *
+ * Counters are halved periodically (after <code>10 * capacity</code> increments)
+ * so that the sketch ages and keeps track of the recent popularity.
+ *
+ * Increments are lock-free (CAS on the counter word), so it can be called from the read path.
+ * The increment count used to trigger aging is deliberately racy since it only needs to be approximate.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 
+        0xb492b66fbe98f273L, 
+        0x9ae16a3b2f90404fL, 
+        0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_TABLE_SIZE = 1 << 22;
+    
+    private volatile AtomicLongArray table;
+    private volatile int sampleSize;
+    private int size;
+    
+    FrequencySketch(long expectedSize) {
+        resize(expectedSize);
+    }
+    
+    /**
+     * Grows the sketch to be able to track given number of entries.
+     * Counters are not migrated, the sketch just starts warming up again.
+     */
+    void ensureCapacity(long expectedSize) {
+        if (expectedSize > table.length() && table.length() < MAX_TABLE_SIZE) {
+            resize(expectedSize);
+        }
+    }
+    
+    private void resize(long expectedSize) {
+        int tableSize = (int) Math.min(Math.max(expectedSize, 16), MAX_TABLE_SIZE);
+        tableSize = Integer.highestOneBit(tableSize - 1) << 1;
+        sampleSize = (int) Math.min(10L * tableSize, Integer.MAX_VALUE);
+        size = 0;
+        table = new AtomicLongArray(tableSize);
+    }
+    
+    int frequency(int hashCode) {
+        AtomicLongArray t = table;
+        int mask = t.length() - 1;
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i, mask);
+            int count = (int) ((t.get(index) >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+    
+    void increment(int hashCode) {
+        AtomicLongArray t = table;
+        int mask = t.length() - 1;
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(t, indexOf(hash, i, mask), start + i);
+        }
+        if (added && ++size >= sampleSize) {
+            reset(t);
+        }
+    }
+    
+    private static boolean incrementAt(AtomicLongArray t, int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        for (;;) {
+            long current = t.get(index);
+            if ((current & mask) == mask) {
+                // Counter is saturated
+                return false;
+            }
+            if (t.compareAndSet(index, current, current + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+    
+    private void reset(AtomicLongArray t) {
+        size = sampleSize >>> 1;
+        for (int i = 0; i < t.length(); i++) {
+            for (;;) {
+                long current = t.get(i);
+                if (t.compareAndSet(i, current, (current >>> 1) & RESET_MASK)) {
+                    break;
+                }
+            }
+        }
+    }
+    
+    private static int indexOf(int hash, int i, int mask) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & mask;
+    }
+    
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of {@link PooledKryo} instances.
+ * 
+ * Instances are not bound to threads, so many short-lived threads 
+ * don't create (and keep) their own instances.
+ * When the pool is empty a new instance is created 
+ * and when it is full the released instance is just dropped.
+ * 
+ * Registered classes are written by their IDs instead of their names.
+ * IDs are fixed (not depending on registration order of Kryo's own defaults),
+ * but custom classes must be registered in the same order by all the clients sharing the table.
+ */
+final class KryoPool {
+
+    private static final int BUILTIN_CLASS_ID_BASE = 64;
+    private static final int CUSTOM_CLASS_ID_BASE = 128;
+    // Never reorder or remove, only append since IDs are part of the stored format
+    private static final Class<?>[] BUILTIN_CLASSES = {
+        byte[].class, 
+        int[].class, 
+        long[].class, 
+        double[].class, 
+        String[].class, 
+        Object[].class, 
+        ArrayList.class, 
+        LinkedList.class, 
+        HashMap.class, 
+        LinkedHashMap.class, 
+        TreeMap.class, 
+        HashSet.class, 
+        LinkedHashSet.class, 
+        TreeSet.class, 
+        Date.class, 
+        BigInteger.class, 
+        BigDecimal.class
+    };
+    
+    private final BlockingQueue<PooledKryo> pool;
+    private final List<Class<?>> customClasses;
+    
+    KryoPool(int maxSize, List<Class<?>> customClasses) {
+        this.pool = new ArrayBlockingQueue<PooledKryo>(maxSize);
+        this.customClasses = customClasses;
+    }
+    
+    /**
+     * Resolves the given comma separated class names in the given order.
+     */
+    static List<Class<?>> resolveClasses(String classNames) {
+        if (classNames == null || classNames.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (String className : classNames.split(",")) {
+            className = className.trim();
+            if (className.isEmpty()) {
+                continue;
+            }
+            try {
+                classes.add(Class.forName(className, false, Thread.currentThread().getContextClassLoader()));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Unable to find class to register: " + className, e);
+            }
+        }
+        return classes;
+    }
+    
+    PooledKryo borrow() {
+        PooledKryo kryo = pool.poll();
+        if (kryo == null) {
+            kryo = create();
+        }
+        return kryo;
+    }
+    
+    void release(PooledKryo kryo) {
+        pool.offer(kryo);
+    }
+    
+    private PooledKryo create() {
+        PooledKryo kryo = new PooledKryo();
+        for (int i = 0; i < BUILTIN_CLASSES.length; i++) {
+            kryo.register(BUILTIN_CLASSES[i], BUILTIN_CLASS_ID_BASE + i);
+        }
+        for (int i = 0; i < customClasses.size(); i++) {
+            kryo.register(customClasses.get(i), CUSTOM_CLASS_ID_BASE + i);
+        }
+        return kryo;
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache.Entry;
+
+/**
+ * Entries of a near-cache together with the stream checkpoint taken just before visiting them, 
+ * so the entries can be restored later and only the ones changed after the checkpoint are invalidated 
+ * by resuming the stream from there. 
+ * An entry changed while the entries are being visited is just invalidated again by its replayed record.
+ * 
+ * Snapshot is written into a temporary file first and then renamed, 
+ * so a crash while writing never leaves a partial snapshot behind.
+ */
+final class NearCacheSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(NearCacheSnapshot.class);
+    
+    private static final int MAGIC = 0x53414D42;
+    private static final int FORMAT_VERSION = 1;
+    
+    final StreamConsumer.Checkpoint checkpoint;
+    final Map<String, Entry> entries;
+    
+    private NearCacheSnapshot(StreamConsumer.Checkpoint checkpoint, Map<String, Entry> entries) {
+        this.checkpoint = checkpoint;
+        this.entries = entries;
+    }
+    
+    /**
+     * Writes the entries of the local cache with the checkpoint and returns the number of the written entries.
+     */
+    static int write(File file, StreamConsumer.Checkpoint checkpoint, 
+                     SambaLocalCache localCache, final OffHeapStore.Codec codec) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = 
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        final int[] count = new int[1];
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(checkpoint.streamArn);
+            out.writeInt(checkpoint.sequenceNumbers.size());
+            for (Map.Entry<String, String> entry : checkpoint.sequenceNumbers.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue() != null);
+                if (entry.getValue() != null) {
+                    out.writeUTF(entry.getValue());
+                }
+            }
+            out.writeInt(checkpoint.completedShardIds.size());
+            for (String shardId : checkpoint.completedShardIds) {
+                out.writeUTF(shardId);
+            }
+            final long now = System.currentTimeMillis();
+            try {
+                localCache.forEachEntry(new SambaLocalCache.EntryVisitor() {
+                    @Override
+                    public void visit(String key, Object value, long version, long remainingTtlMillis) {
+                        ByteBuffer data;
+                        try {
+                            data = codec.encode(key, value);
+                        } catch (Throwable t) {
+                            LOGGER.warn("Unable to serialize value with key " + key + ", so it is not snapshotted", t);
+                            return;
+                        }
+                        try {
+                            out.writeBoolean(true);
+                            out.writeUTF(key);
+                            out.writeLong(version);
+                            out.writeLong(
+                                    remainingTtlMillis != NO_TTL ? now + remainingTtlMillis : Entry.NO_EXPIRATION);
+                            byte[] bytes = new byte[data.remaining()];
+                            data.duplicate().get(bytes);
+                            out.writeInt(bytes.length);
+                            out.write(bytes);
+                        } catch (IOException e) {
+                            throw new WriteFailure(e);
+                        }
+                        count[0]++;
+                    }
+                });
+            } catch (WriteFailure e) {
+                throw (IOException) e.getCause();
+            }
+            out.writeBoolean(false);
+        } catch (IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+        if (!tempFile.renameTo(file)) {
+            // Renaming over an existing file is not supported on some platforms
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + file);
+            }
+        }
+        return count[0];
+    }
+    
+    /**
+     * Reads the snapshot. Entries whose values cannot be deserialized are skipped.
+     */
+    static NearCacheSnapshot read(File file, OffHeapStore.Codec codec) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a near-cache snapshot file");
+            }
+            int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported near-cache snapshot format version: " + formatVersion);
+            }
+            String streamArn = in.readUTF();
+            int shardCount = in.readInt();
+            Map<String, String> sequenceNumbers = new HashMap<String, String>(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                String shardId = in.readUTF();
+                sequenceNumbers.put(shardId, in.readBoolean() ? in.readUTF() : null);
+            }
+            int completedShardCount = in.readInt();
+            Set<String> completedShardIds = new HashSet<String>(completedShardCount);
+            for (int i = 0; i < completedShardCount; i++) {
+                completedShardIds.add(in.readUTF());
+            }
+            Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+            while (in.readBoolean()) {
+                String key = in.readUTF();
+                long version = in.readLong();
+                long expirationTime = in.readLong();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try {
+                    entries.put(key, new Entry(codec.decode(ByteBuffer.wrap(bytes)), expirationTime, version));
+                } catch (Throwable t) {
+                    LOGGER.warn("Unable to deserialize value with key " + key + ", so it is not restored", t);
+                }
+            }
+            return new NearCacheSnapshot(
+                    new StreamConsumer.Checkpoint(streamArn, sequenceNumbers, completedShardIds), entries);
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static final class WriteFailure extends RuntimeException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private WriteFailure(IOException cause) {
+            super(cause);
+        }
+        
+    }
+
+}
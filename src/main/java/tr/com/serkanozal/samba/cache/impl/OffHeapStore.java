@@ -0,0 +1,808 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaGauge;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+
+/**
+ * Keeps serialized values out of the heap in direct memory within the given memory budget, 
+ * so a large number of entries can be cached without increasing the GC pressure.
+ * 
+ * Store is split into segments (each one guarded by its own lock) by the hash of the keys.
+ * Each segment has an open addressing hash index (also in direct memory) pointing to its records 
+ * and allocates the records from its slabs in power of two sized chunks. 
+ * Chunks of the removed records are kept in free lists (linked through the chunks themselves) 
+ * per size class to be reused. Both the slabs and the index of a segment are charged to its share 
+ * of the memory budget.
+ * 
+ * When there is no free chunk of the requested size class and the budget is exhausted, 
+ * a hand sweeping over the index evicts the expired records and the records of the requested size class 
+ * until a chunk is freed. Records are not marked on access like CLOCK does, 
+ * since the accessed ones are taken out by the owner of the store anyway. 
+ * If there is still no chunk (the slabs have been carved for the other size classes), 
+ * a whole slab is reclaimed in round robin order by evicting all of its records 
+ * and then it is carved again for the requested size class. 
+ * Index grows by releasing a slab in the same way when the budget is exhausted.
+ * 
+ * Values are stored as they are given and deserializing them is up to the caller 
+ * when (and if) the value is requested.
+ * 
+ * If a spill directory is given, slabs are mapped from a temporary file in that directory 
+ * instead of being allocated in direct memory, so the store can be much larger than the memory 
+ * (the OS pages the slabs in and out). Index is always kept in direct memory. 
+ * File is only a backing storage for this process and it is deleted when the store is closed 
+ * (or on exit if it is never closed).
+ */
+class OffHeapStore {
+
+    private static final Logger LOGGER = Logger.getLogger(OffHeapStore.class);
+
+    static final long NO_EXPIRATION = Long.MIN_VALUE;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private static final int MAX_SEGMENT_COUNT = 16;
+    private static final int MIN_SEGMENT_BUDGET = 64 * 1024;
+    // Segment budget is shared by a few slabs at least, so a slab can be reclaimed without emptying the segment
+    private static final int MIN_SLAB_COUNT_PER_SEGMENT = 4;
+    private static final int MAX_SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE_SHIFT = 6;
+    private static final int INITIAL_INDEX_CAPACITY = 64;
+    private static final int NO_SLAB = -1;
+    
+    // Index slot layout: record address (8 bytes) + key hash (4 bytes) + padding (4 bytes)
+    private static final int SLOT_SIZE = 16;
+    private static final int SLOT_HASH_OFFSET = 8;
+    private static final long EMPTY_ADDRESS = 0;
+    private static final long TOMBSTONE_ADDRESS = -1;
+    
+    // Record layout: size class (1 byte) + key length (4 bytes) + value length (4 bytes) + key hash (4 bytes) 
+    //                + version (8 bytes) + expiration time (8 bytes) + key + value
+    private static final int SIZE_CLASS_OFFSET = 0;
+    private static final int KEY_LENGTH_OFFSET = 1;
+    private static final int VALUE_LENGTH_OFFSET = 5;
+    private static final int HASH_OFFSET = 9;
+    private static final int VERSION_OFFSET = 13;
+    private static final int EXPIRATION_TIME_OFFSET = 21;
+    private static final int HEADER_SIZE = 29;
+    // Free chunks keep their flagged size class and the addresses of the next and the previous free chunks 
+    // of the same size class, so the free chunks of a reclaimed slab can be unlinked from anywhere in the list
+    private static final int FREE_FLAG = 0x80;
+    private static final int SIZE_CLASS_MASK = 0x7F;
+    private static final int NEXT_FREE_OFFSET = 1;
+    private static final int PREV_FREE_OFFSET = 9;
+    
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long segmentBudget;
+    private final int slabSize;
+    private final int maxSlabCountPerSegment;
+    private final int sizeClassCount;
+    private final File spillFile;
+    private final FileChannel spillChannel;
+    private final SambaCounter evictions;
+    private final SambaCounter rejections;
+    
+    OffHeapStore(long memoryBudget, SambaMetrics metrics) {
+        this(memoryBudget, null, metrics);
+    }
+    
+    OffHeapStore(long memoryBudget, File spillDirectory, SambaMetrics metrics) {
+        if (memoryBudget < MIN_SEGMENT_BUDGET) {
+            throw new IllegalArgumentException(
+                    "Memory budget must be at least " + MIN_SEGMENT_BUDGET + " bytes: " + memoryBudget);
+        }
+        if (spillDirectory != null) {
+            this.spillFile = createSpillFile(spillDirectory);
+            this.spillChannel = openSpillChannel(spillFile);
+        } else {
+            this.spillFile = null;
+            this.spillChannel = null;
+        }
+        int segmentCount = 
+                (int) Math.min(MAX_SEGMENT_COUNT, Long.highestOneBit(memoryBudget / MIN_SEGMENT_BUDGET));
+        this.segmentBudget = memoryBudget / segmentCount;
+        this.slabSize = 
+                (int) Math.min(MAX_SLAB_SIZE, Long.highestOneBit(segmentBudget / MIN_SLAB_COUNT_PER_SEGMENT));
+        this.maxSlabCountPerSegment = (int) (segmentBudget / slabSize);
+        this.sizeClassCount = Integer.numberOfTrailingZeros(slabSize) - MIN_CHUNK_SIZE_SHIFT + 1;
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(i);
+        }
+        String metricsPrefix = spillDirectory != null ? "diskSpill" : "offHeap";
+        this.evictions = metrics.counter(metricsPrefix + "Evictions");
+        this.rejections = metrics.counter(metricsPrefix + "Rejections");
+        metrics.gauge(metricsPrefix + "UsedBytes", new SambaGauge() {
+            @Override
+            public long getValue() {
+                return usedBytes();
+            }
+        });
+        metrics.gauge(metricsPrefix + "AllocatedBytes", new SambaGauge() {
+            @Override
+            public long getValue() {
+                return allocatedBytes();
+            }
+        });
+        metrics.gauge(metricsPrefix + "Entries", new SambaGauge() {
+            @Override
+            public long getValue() {
+                return size();
+            }
+        });
+    }
+    
+    /**
+     * Puts the value by replacing the existing one (if there is).
+     * Returns <code>false</code> if the value doesn't fit into the memory budget, 
+     * then there is no value with the key anymore.
+     */
+    boolean put(String key, ByteBuffer value, long version, long expirationTime) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hashOf(key);
+        Segment segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            return segment.put(hash, keyBytes, value, version, expirationTime);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+    
+    /**
+     * Removes the entry and returns it or returns <code>null</code> if there is no entry with the key.
+     */
+    Entry remove(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hashOf(key);
+        Segment segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            return segment.remove(hash, keyBytes);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+    
+    void clear() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.reset();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+    
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+    
+    long usedBytes() {
+        long usedBytes = 0;
+        for (Segment segment : segments) {
+            usedBytes += segment.usedBytes;
+        }
+        return usedBytes;
+    }
+    
+    /**
+     * Returns the bytes allocated for the slabs and the indexes, which never exceed the memory budget.
+     */
+    long allocatedBytes() {
+        long allocatedBytes = 0;
+        for (Segment segment : segments) {
+            allocatedBytes += segment.allocatedBytes;
+        }
+        return allocatedBytes;
+    }
+    
+    /**
+     * Releases the slabs and the indexes, and closes and deletes the spill file (if there is). 
+     * Puts are rejected and nothing is found in the store after it is closed.
+     */
+    void close() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.release();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        if (spillChannel != null) {
+            try {
+                // Also closes the file it is opened from
+                spillChannel.close();
+            } catch (IOException e) {
+                LOGGER.error("Error occurred while closing spill file " + spillFile + "!", e);
+            }
+            if (!spillFile.delete() && spillFile.exists()) {
+                LOGGER.warn("Unable to delete spill file " + spillFile + ", so it will be deleted on exit");
+            }
+        }
+    }
+    
+    private static File createSpillFile(File spillDirectory) {
+        try {
+            if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+                throw new IOException("Unable to create directory " + spillDirectory);
+            }
+            File spillFile = File.createTempFile("samba-", ".spill", spillDirectory);
+            spillFile.deleteOnExit();
+            return spillFile;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create spill file in " + spillDirectory, e);
+        }
+    }
+    
+    private static FileChannel openSpillChannel(File spillFile) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(spillFile, "rw");
+            return file.getChannel();
+        } catch (IOException e) {
+            spillFile.delete();
+            throw new IllegalStateException("Unable to open spill file " + spillFile, e);
+        }
+    }
+    
+    /**
+     * Releases the direct memory (or the mapping) of the buffer right away instead of waiting for the GC. 
+     * This relies on the JDK internals, so the buffer is just left to the GC if it is not possible. 
+     * Buffer must never be accessed after it is released.
+     */
+    private static void release(ByteBuffer buffer) {
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Throwable t) {
+            // Not available, so fallback to the cleaner of the buffer
+        }
+        try {
+            // Java 8 and before
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Throwable t) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to release buffer, so it is left to the GC: " + t);
+            }
+        }
+    }
+    
+    private ByteBuffer allocateSlab(int segmentIndex, int slabIndex) {
+        if (spillChannel == null) {
+            return ByteBuffer.allocateDirect(slabSize);
+        }
+        // Each slab of each segment has its own fixed region in the file
+        long position = ((long) segmentIndex * maxSlabCountPerSegment + slabIndex) * slabSize;
+        try {
+            return spillChannel.map(FileChannel.MapMode.READ_WRITE, position, slabSize);
+        } catch (IOException e) {
+            // Such as there is no space left on the disk, then the put is just rejected
+            LOGGER.error("Error occurred while mapping slab of spill file at position " + position + "!", e);
+            return null;
+        }
+    }
+    
+    private static int hashOf(String key) {
+        // Keys are mostly similar strings, so the bits are spread before taking the segment from the high ones
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    private Segment segmentOf(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+    
+    private static int sizeClassOf(int recordSize) {
+        if (recordSize <= (1 << MIN_CHUNK_SIZE_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(recordSize - 1) - MIN_CHUNK_SIZE_SHIFT;
+    }
+    
+    private static int chunkSizeOf(int sizeClass) {
+        return 1 << (sizeClass + MIN_CHUNK_SIZE_SHIFT);
+    }
+    
+    private static long addressOf(int slabIndex, int offset) {
+        // Slab index is shifted by one, so zero is never a valid address
+        return ((long) (slabIndex + 1) << 32) | offset;
+    }
+    
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+    
+    /**
+     * Entry removed from the store.
+     */
+    static final class Entry {
+        
+        final ByteBuffer value;
+        final long version;
+        final long expirationTime;
+        
+        private Entry(ByteBuffer value, long version, long expirationTime) {
+            this.value = value;
+            this.version = version;
+            this.expirationTime = expirationTime;
+        }
+        
+        boolean isExpired() {
+            return expirationTime != NO_EXPIRATION && System.nanoTime() - expirationTime >= 0;
+        }
+        
+    }
+    
+    /**
+     * Converts the values to bytes to be stored and back.
+     */
+    interface Codec {
+        
+        ByteBuffer encode(String key, Object value);
+        
+        Object decode(ByteBuffer data);
+        
+    }
+    
+    /**
+     * All the states of a segment are only accessed while holding its lock 
+     * except for the counts read by the gauges.
+     */
+    private final class Segment {
+        
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int segmentIndex;
+        // Slabs released to grow the index leave holes, which are filled first by the new slabs
+        private final ByteBuffer[] slabs = new ByteBuffer[maxSlabCountPerSegment];
+        private final long[] freeChunks = new long[sizeClassCount];
+        private int slabCount;
+        private int currentSlab;
+        private int slabPosition;
+        private int slabHand;
+        private ByteBuffer index;
+        private int indexCapacity;
+        private int tombstoneCount;
+        private int clockHand;
+        private volatile int count;
+        private volatile long usedBytes;
+        private volatile long allocatedBytes;
+        private boolean closed;
+        
+        private Segment(int segmentIndex) {
+            this.segmentIndex = segmentIndex;
+            reset();
+        }
+        
+        private void reset() {
+            if (closed) {
+                return;
+            }
+            releaseBuffers();
+            for (int i = 0; i < freeChunks.length; i++) {
+                freeChunks[i] = EMPTY_ADDRESS;
+            }
+            slabCount = 0;
+            currentSlab = NO_SLAB;
+            slabPosition = 0;
+            slabHand = 0;
+            index = ByteBuffer.allocateDirect(INITIAL_INDEX_CAPACITY * SLOT_SIZE);
+            indexCapacity = INITIAL_INDEX_CAPACITY;
+            tombstoneCount = 0;
+            clockHand = 0;
+            count = 0;
+            usedBytes = 0;
+            updateAllocatedBytes();
+        }
+        
+        private void release() {
+            if (closed) {
+                return;
+            }
+            releaseBuffers();
+            index = null;
+            indexCapacity = 0;
+            slabCount = 0;
+            currentSlab = NO_SLAB;
+            count = 0;
+            usedBytes = 0;
+            allocatedBytes = 0;
+            closed = true;
+        }
+        
+        private void releaseBuffers() {
+            for (int i = 0; i < slabs.length; i++) {
+                if (slabs[i] != null) {
+                    OffHeapStore.release(slabs[i]);
+                    slabs[i] = null;
+                }
+            }
+            if (index != null) {
+                OffHeapStore.release(index);
+            }
+        }
+        
+        private void updateAllocatedBytes() {
+            allocatedBytes = (long) slabCount * slabSize + (long) indexCapacity * SLOT_SIZE;
+        }
+        
+        private ByteBuffer slabOf(long address) {
+            return slabs[(int) (address >>> 32) - 1];
+        }
+        
+        private long addressAt(int slot) {
+            return index.getLong(slot * SLOT_SIZE);
+        }
+        
+        private int findSlot(int hash, byte[] keyBytes) {
+            int mask = indexCapacity - 1;
+            for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+                long address = addressAt(slot);
+                if (address == EMPTY_ADDRESS) {
+                    return -1;
+                }
+                if (address != TOMBSTONE_ADDRESS
+                        && index.getInt(slot * SLOT_SIZE + SLOT_HASH_OFFSET) == hash
+                        && keyEquals(address, keyBytes)) {
+                    return slot;
+                }
+            }
+        }
+        
+        private int slotOf(long address, int hash) {
+            int mask = indexCapacity - 1;
+            int slot = hash & mask;
+            while (addressAt(slot) != address) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+        
+        private boolean keyEquals(long address, byte[] keyBytes) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            if (slab.getInt(offset + KEY_LENGTH_OFFSET) != keyBytes.length) {
+                return false;
+            }
+            int keyOffset = offset + HEADER_SIZE;
+            for (int i = 0; i < keyBytes.length; i++) {
+                if (slab.get(keyOffset + i) != keyBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private boolean put(int hash, byte[] keyBytes, ByteBuffer value, long version, long expirationTime) {
+            if (closed) {
+                rejections.increment();
+                return false;
+            }
+            int existingSlot = findSlot(hash, keyBytes);
+            if (existingSlot >= 0) {
+                removeAt(existingSlot);
+            }
+            int valueLength = value.remaining();
+            int recordSize = HEADER_SIZE + keyBytes.length + valueLength;
+            if (recordSize > slabSize) {
+                rejections.increment();
+                return false;
+            }
+            // Index is grown before the allocation, since growing it might release the slab of the new record
+            if (!ensureIndexCapacity()) {
+                rejections.increment();
+                return false;
+            }
+            int sizeClass = sizeClassOf(recordSize);
+            long address = allocate(sizeClass);
+            if (address == EMPTY_ADDRESS) {
+                rejections.increment();
+                return false;
+            }
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            slab.put(offset + SIZE_CLASS_OFFSET, (byte) sizeClass);
+            slab.putInt(offset + KEY_LENGTH_OFFSET, keyBytes.length);
+            slab.putInt(offset + VALUE_LENGTH_OFFSET, valueLength);
+            slab.putInt(offset + HASH_OFFSET, hash);
+            slab.putLong(offset + VERSION_OFFSET, version);
+            slab.putLong(offset + EXPIRATION_TIME_OFFSET, expirationTime);
+            ByteBuffer target = slab.duplicate();
+            target.position(offset + HEADER_SIZE);
+            target.put(keyBytes);
+            target.put(value.duplicate());
+            
+            int mask = indexCapacity - 1;
+            int slot = hash & mask;
+            long slotAddress;
+            // Allocation might have evicted some records, so there might be tombstones on the way now
+            while ((slotAddress = addressAt(slot)) != EMPTY_ADDRESS && slotAddress != TOMBSTONE_ADDRESS) {
+                slot = (slot + 1) & mask;
+            }
+            if (slotAddress == TOMBSTONE_ADDRESS) {
+                tombstoneCount--;
+            }
+            index.putLong(slot * SLOT_SIZE, address);
+            index.putInt(slot * SLOT_SIZE + SLOT_HASH_OFFSET, hash);
+            count++;
+            usedBytes += chunkSizeOf(sizeClass);
+            return true;
+        }
+        
+        private Entry remove(int hash, byte[] keyBytes) {
+            if (closed) {
+                return null;
+            }
+            int slot = findSlot(hash, keyBytes);
+            if (slot < 0) {
+                return null;
+            }
+            long address = addressAt(slot);
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            int keyLength = slab.getInt(offset + KEY_LENGTH_OFFSET);
+            int valueLength = slab.getInt(offset + VALUE_LENGTH_OFFSET);
+            long version = slab.getLong(offset + VERSION_OFFSET);
+            long expirationTime = slab.getLong(offset + EXPIRATION_TIME_OFFSET);
+            // Value is copied into the heap, since its chunk is reused as soon as it is removed
+            byte[] valueBytes = new byte[valueLength];
+            ByteBuffer source = slab.duplicate();
+            source.position(offset + HEADER_SIZE + keyLength);
+            source.get(valueBytes);
+            removeAt(slot);
+            return new Entry(ByteBuffer.wrap(valueBytes), version, expirationTime);
+        }
+        
+        private int removeAt(int slot) {
+            long address = addressAt(slot);
+            int sizeClass = slabOf(address).get(offsetOf(address) + SIZE_CLASS_OFFSET);
+            free(address, sizeClass);
+            unindex(slot, sizeClass);
+            return sizeClass;
+        }
+        
+        private void unindex(int slot, int sizeClass) {
+            index.putLong(slot * SLOT_SIZE, TOMBSTONE_ADDRESS);
+            tombstoneCount++;
+            count--;
+            usedBytes -= chunkSizeOf(sizeClass);
+        }
+        
+        private void free(long address, int sizeClass) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            long next = freeChunks[sizeClass];
+            slab.put(offset + SIZE_CLASS_OFFSET, (byte) (sizeClass | FREE_FLAG));
+            slab.putLong(offset + NEXT_FREE_OFFSET, next);
+            slab.putLong(offset + PREV_FREE_OFFSET, EMPTY_ADDRESS);
+            if (next != EMPTY_ADDRESS) {
+                slabOf(next).putLong(offsetOf(next) + PREV_FREE_OFFSET, address);
+            }
+            freeChunks[sizeClass] = address;
+        }
+        
+        private void unlinkFree(long address, int sizeClass) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            long next = slab.getLong(offset + NEXT_FREE_OFFSET);
+            long prev = slab.getLong(offset + PREV_FREE_OFFSET);
+            if (prev == EMPTY_ADDRESS) {
+                freeChunks[sizeClass] = next;
+            } else {
+                slabOf(prev).putLong(offsetOf(prev) + NEXT_FREE_OFFSET, next);
+            }
+            if (next != EMPTY_ADDRESS) {
+                slabOf(next).putLong(offsetOf(next) + PREV_FREE_OFFSET, prev);
+            }
+        }
+        
+        private long allocate(int sizeClass) {
+            long address = freeChunks[sizeClass];
+            if (address != EMPTY_ADDRESS) {
+                unlinkFree(address, sizeClass);
+                return address;
+            }
+            int chunkSize = chunkSizeOf(sizeClass);
+            if (currentSlab == NO_SLAB || slabPosition + chunkSize > slabSize) {
+                if (currentSlab != NO_SLAB) {
+                    freeRemainingOfSlab();
+                }
+                if (!addSlab()) {
+                    address = evictFor(sizeClass);
+                    if (address != EMPTY_ADDRESS || slabCount == 0) {
+                        return address;
+                    }
+                    // Carve a whole slab again for the requested size class
+                    int slabIndex = evictSlab();
+                    currentSlab = slabIndex;
+                    slabPosition = 0;
+                }
+            }
+            address = addressOf(currentSlab, slabPosition);
+            slabPosition += chunkSize;
+            return address;
+        }
+        
+        private boolean addSlab() {
+            if ((long) (slabCount + 1) * slabSize + (long) indexCapacity * SLOT_SIZE > segmentBudget) {
+                return false;
+            }
+            int slabIndex = 0;
+            while (slabs[slabIndex] != null) {
+                slabIndex++;
+            }
+            ByteBuffer slab = allocateSlab(segmentIndex, slabIndex);
+            if (slab == null) {
+                return false;
+            }
+            slabs[slabIndex] = slab;
+            slabCount++;
+            currentSlab = slabIndex;
+            slabPosition = 0;
+            updateAllocatedBytes();
+            return true;
+        }
+        
+        /**
+         * Splits the unused tail of the current slab into chunks to be reused before moving on to another slab,
+         * so every slab other than the current one is fully covered by the chunks.
+         */
+        private void freeRemainingOfSlab() {
+            for (int sizeClass = sizeClassCount - 1; sizeClass >= 0; sizeClass--) {
+                int chunkSize = chunkSizeOf(sizeClass);
+                while (slabPosition + chunkSize <= slabSize) {
+                    free(addressOf(currentSlab, slabPosition), sizeClass);
+                    slabPosition += chunkSize;
+                }
+            }
+            currentSlab = NO_SLAB;
+        }
+        
+        private long evictFor(int sizeClass) {
+            long now = System.nanoTime();
+            for (int i = 0; i < indexCapacity && count > 0; i++) {
+                int slot = clockHand;
+                clockHand = (clockHand + 1) & (indexCapacity - 1);
+                long address = addressAt(slot);
+                if (address == EMPTY_ADDRESS || address == TOMBSTONE_ADDRESS) {
+                    continue;
+                }
+                ByteBuffer slab = slabOf(address);
+                int offset = offsetOf(address);
+                long expirationTime = slab.getLong(offset + EXPIRATION_TIME_OFFSET);
+                boolean expired = expirationTime != NO_EXPIRATION && now - expirationTime >= 0;
+                // Records of the other size classes are not evicted unless they are expired, 
+                // since their chunks cannot be used for the requested size class anyway
+                if (!expired && slab.get(offset + SIZE_CLASS_OFFSET) != sizeClass) {
+                    continue;
+                }
+                int evictedSizeClass = removeAt(slot);
+                evictions.increment();
+                if (evictedSizeClass == sizeClass) {
+                    return allocate(sizeClass);
+                }
+            }
+            return EMPTY_ADDRESS;
+        }
+        
+        /**
+         * Evicts all the records of the next slab in round robin order and takes its free chunks back,
+         * then returns its index to be carved again or to be released.
+         */
+        private int evictSlab() {
+            while (slabs[slabHand] == null) {
+                slabHand = (slabHand + 1) % slabs.length;
+            }
+            int slabIndex = slabHand;
+            slabHand = (slabHand + 1) % slabs.length;
+            ByteBuffer slab = slabs[slabIndex];
+            int end = slabIndex == currentSlab ? slabPosition : slabSize;
+            int chunkSize;
+            for (int offset = 0; offset < end; offset += chunkSize) {
+                int flaggedSizeClass = slab.get(offset + SIZE_CLASS_OFFSET) & 0xFF;
+                int sizeClass = flaggedSizeClass & SIZE_CLASS_MASK;
+                long address = addressOf(slabIndex, offset);
+                if ((flaggedSizeClass & FREE_FLAG) != 0) {
+                    unlinkFree(address, sizeClass);
+                } else {
+                    unindex(slotOf(address, slab.getInt(offset + HASH_OFFSET)), sizeClass);
+                    evictions.increment();
+                }
+                chunkSize = chunkSizeOf(sizeClass);
+            }
+            if (slabIndex == currentSlab) {
+                currentSlab = NO_SLAB;
+            }
+            return slabIndex;
+        }
+        
+        private boolean ensureIndexCapacity() {
+            if ((count + tombstoneCount + 1) * 4L <= indexCapacity * 3L) {
+                return true;
+            }
+            // Grow only if the live records need it, otherwise just clean up the tombstones
+            while ((count + 1) * 2L > indexCapacity
+                    && (long) slabCount * slabSize + indexCapacity * 2L * SLOT_SIZE > segmentBudget) {
+                if (slabCount == 0) {
+                    return false;
+                }
+                // Index takes the budget of a whole slab (whose records don't need the index anymore)
+                int slabIndex = evictSlab();
+                OffHeapStore.release(slabs[slabIndex]);
+                slabs[slabIndex] = null;
+                slabCount--;
+            }
+            int newCapacity = (count + 1) * 2L > indexCapacity ? indexCapacity * 2 : indexCapacity;
+            ByteBuffer oldIndex = index;
+            int oldCapacity = indexCapacity;
+            ByteBuffer newIndex = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+            int mask = newCapacity - 1;
+            for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+                long address = oldIndex.getLong(oldSlot * SLOT_SIZE);
+                if (address == EMPTY_ADDRESS || address == TOMBSTONE_ADDRESS) {
+                    continue;
+                }
+                int hash = oldIndex.getInt(oldSlot * SLOT_SIZE + SLOT_HASH_OFFSET);
+                int slot = hash & mask;
+                while (newIndex.getLong(slot * SLOT_SIZE) != EMPTY_ADDRESS) {
+                    slot = (slot + 1) & mask;
+                }
+                newIndex.putLong(slot * SLOT_SIZE, address);
+                newIndex.putInt(slot * SLOT_SIZE + SLOT_HASH_OFFSET, hash);
+            }
+            OffHeapStore.release(oldIndex);
+            index = newIndex;
+            indexCapacity = newCapacity;
+            tombstoneCount = 0;
+            clockHand = 0;
+            updateAllocatedBytes();
+            return true;
+        }
+        
+    }
+
+}
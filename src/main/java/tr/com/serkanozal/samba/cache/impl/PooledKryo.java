@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.FastInput;
+import com.esotericsoftware.kryo.io.FastOutput;
+
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+
+/**
+ * {@link Kryo} instance with its own reusable buffers (and compressors)
+ * which is borrowed from {@link KryoPool} for each serialization.
+ */
+final class PooledKryo extends Kryo {
+
+    private static final int BUFFER_SIZE = 4096;
+    // Buffers grown by large values are not retained, so idle pooled instances don't hold much memory
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+    // Header byte of the codec and the original length of the value, 
+    // so the decompression buffer can be allocated at once
+    private static final int COMPRESSED_HEADER_SIZE = 5;
+    private static final byte[] EMPTY_BUFFER = new byte[0];
+    
+    private final FastOutput output = new FastOutput(BUFFER_SIZE, -1);
+    private final FastInput input = new FastInput();
+    private Deflater deflater;
+    private Inflater inflater;
+    
+    /**
+     * Serializes the value by the given serializer 
+     * or by the built-in ones if there is no given serializer.
+     */
+    ByteBuffer encode(Object obj, SambaSerializer serializer, CompressionCodec codec, int compressionThreshold) {
+        output.clear();
+        // Header is written in place, so the value is copied only once out of the reused buffer
+        output.writeByte(CompressionCodec.NONE.header);
+        if (serializer != null) {
+            output.writeByte(serializer.getId());
+            output.writeBytes(serializer.serialize(obj));
+        } else if (!BuiltinSerializers.write(output, obj)) {
+            output.writeByte(BuiltinSerializers.KRYO_ID);
+            writeClassAndObject(output, obj);
+        }
+        byte[] buffer = output.getBuffer();
+        int length = output.position();
+        byte[] data = null;
+        if (codec == CompressionCodec.DEFLATE && length - 1 >= compressionThreshold) {
+            data = deflate(buffer, 1, length - 1);
+        }
+        if (data == null) {
+            data = Arrays.copyOf(buffer, length);
+        }
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            output.setBuffer(new byte[BUFFER_SIZE], -1);
+        }
+        // Exact sized copy is handed to the SDK without any further copy
+        return ByteBuffer.wrap(data);
+    }
+    
+    /**
+     * Compresses the value or returns <code>null</code> 
+     * if the compressed value is not smaller than the original one.
+     */
+    private byte[] deflate(byte[] buffer, int offset, int length) {
+        if (length <= COMPRESSED_HEADER_SIZE) {
+            return null;
+        }
+        if (deflater == null) {
+            // Values are compressed on every write, so speed is preferred over ratio
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(buffer, offset, length);
+        deflater.finish();
+        byte[] data = new byte[length];
+        data[0] = CompressionCodec.DEFLATE.header;
+        data[1] = (byte) (length >>> 24);
+        data[2] = (byte) (length >>> 16);
+        data[3] = (byte) (length >>> 8);
+        data[4] = (byte) length;
+        int position = COMPRESSED_HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (position == data.length) {
+                return null;
+            }
+            position += deflater.deflate(data, position, data.length - position);
+        }
+        return Arrays.copyOf(data, position);
+    }
+    
+    /**
+     * Deserializes the value by the serializer which has written it. 
+     * Serializers other than the built-in ones are looked up from the given ones by their IDs.
+     */
+    Object decode(ByteBuffer data, Map<Byte, SambaSerializer> serializers) {
+        byte[] array;
+        int offset;
+        int length = data.remaining();
+        if (data.hasArray()) {
+            // Read directly from the buffer returned by the SDK
+            array = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            array = new byte[length];
+            data.duplicate().get(array);
+            offset = 0;
+        }
+        CompressionCodec codec = CompressionCodec.ofHeader(array[offset]);
+        if (codec == CompressionCodec.NONE) {
+            input.setBuffer(array, offset + 1, length - 1);
+        } else if (codec == CompressionCodec.DEFLATE) {
+            input.setBuffer(inflate(array, offset, length));
+        } else {
+            // Stored as plain Kryo output before the codec header was introduced
+            input.setBuffer(array, offset, length);
+            try {
+                return readClassAndObject(input);
+            } finally {
+                input.setBuffer(EMPTY_BUFFER);
+            }
+        }
+        try {
+            byte serializerId = input.readByte();
+            if (serializerId == BuiltinSerializers.KRYO_ID) {
+                return readClassAndObject(input);
+            } else if (BuiltinSerializers.isBuiltin(serializerId)) {
+                return BuiltinSerializers.read(serializerId, input);
+            }
+            SambaSerializer serializer = serializers.get(serializerId);
+            if (serializer == null) {
+                throw new IllegalStateException("There is no registered serializer with id " + serializerId);
+            }
+            return serializer.deserialize(input.getBuffer(), input.position(), input.limit() - input.position());
+        } finally {
+            // Don't retain the given data while the instance is idle in the pool
+            input.setBuffer(EMPTY_BUFFER);
+        }
+    }
+    
+    private byte[] inflate(byte[] data, int offset, int length) {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(data, offset + COMPRESSED_HEADER_SIZE, length - COMPRESSED_HEADER_SIZE);
+        int originalLength = 
+                ((data[offset + 1] & 0xFF) << 24) |
+                ((data[offset + 2] & 0xFF) << 16) |
+                ((data[offset + 3] & 0xFF) << 8) |
+                (data[offset + 4] & 0xFF);
+        byte[] buffer = new byte[originalLength];
+        try {
+            int position = 0;
+            while (position < originalLength) {
+                int count = inflater.inflate(buffer, position, originalLength - position);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException(
+                            "Compressed value is truncated at " + position + " of " + originalLength + " bytes");
+                }
+                position += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Unable to decompress value!", e);
+        }
+        return buffer;
+    }
+
+}
@@ -16,152 +16,536 @@
 package tr.com.serkanozal.samba.cache.impl;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreamsClient;
-import com.amazonaws.services.dynamodbv2.document.Expected;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.ItemCollection;
 import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
 import com.amazonaws.services.dynamodbv2.document.internal.IteratorSupport;
-import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
-import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
-import com.amazonaws.services.dynamodbv2.model.DescribeStreamResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
-import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
-import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
-import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
-import com.amazonaws.services.dynamodbv2.model.GetShardIteratorResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
-import com.amazonaws.services.dynamodbv2.model.Shard;
-import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
 import com.amazonaws.services.dynamodbv2.model.StreamRecord;
 import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
 import com.amazonaws.services.dynamodbv2.model.StreamViewType;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.FastInput;
-import com.esotericsoftware.kryo.io.FastOutput;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 
+import tr.com.serkanozal.samba.SambaValueProxy;
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaFuture;
+import tr.com.serkanozal.samba.cache.SambaFutureListener;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.cache.impl.WriteBehindBuffer.PendingWrite;
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaGauge;
+import tr.com.serkanozal.samba.metrics.SambaHistogram;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+import tr.com.serkanozal.samba.metrics.SambaMetricsRegistry;
 
 public class SambaGlobalCache implements SambaCache {
 
     private static final Logger LOGGER = Logger.getLogger(SambaGlobalCache.class);
     
+    // Item might be left without any value (such as after all the elements of its set are removed)
+    private static final String ABSENT_OR_EXPIRED_CONDITION = 
+            "attribute_not_exists(id) OR expirationTime <= :now " + 
+            "OR (attribute_not_exists(#d) AND attribute_not_exists(#a))";
+    // Native value can be updated in place only if it has the expected type and it is not expired
+    private static final String NATIVE_UPDATABLE_CONDITION = 
+            "attribute_not_exists(#d) AND (attribute_not_exists(#a) OR attribute_type(#a, :type)) " + 
+            "AND (attribute_not_exists(expirationTime) OR expirationTime > :now)";
+    private static final String UNEXPIRED_DATA_EQUALS_CONDITION = 
+            "#d = :old AND (attribute_not_exists(expirationTime) OR expirationTime > :now)";
+    private static final String UNEXPIRED_VERSION_EQUALS_CONDITION = 
+            "#v = :expected AND (attribute_not_exists(expirationTime) OR expirationTime > :now)";
+    // Versions of the created items start from the current time scaled up, 
+    // so a key which is removed and created again doesn't reuse the versions of its previous values 
+    // (unless it was updated more than a thousand times per millisecond)
+    private static final long VERSION_BASE_MULTIPLIER = 1000;
+    // Limits of DynamoDB for items per "BatchGetItem" and "BatchWriteItem" requests
+    private static final int BATCH_GET_ITEM_LIMIT = 100;
+    private static final int BATCH_WRITE_ITEM_LIMIT = 25;
+    private static final int BATCH_MAX_RETRY_COUNT = 10;
+    private static final long BATCH_RETRY_INITIAL_BACKOFF_MILLIS = 50;
+    private static final long BATCH_RETRY_MAX_BACKOFF_MILLIS = 1000;
+    private static final Random BACKOFF_JITTER_RANDOM = new Random();
+    private static final long INIT_RETRY_INITIAL_BACKOFF_MILLIS = 100;
+    private static final long INIT_RETRY_MAX_BACKOFF_MILLIS = 30000;
+    
     private final String DYNAMO_DB_TABLE_NAME;
     private final int DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND;
     private final int DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND;
-    private final AmazonDynamoDB DYNAMO_DB;
+    private final StreamViewType DYNAMO_DB_STREAM_VIEW_TYPE;
+    private final CompressionCodec COMPRESSION_CODEC;
+    private final int COMPRESSION_THRESHOLD;
+    // Shared by all the global caches on the same table
+    private final DynamoDBTableConnection connection;
+    private final AmazonDynamoDBAsync DYNAMO_DB;
     private final Table DYNAMO_DB_TABLE;
-    private final AmazonDynamoDBStreamsClient DYNAMO_DB_STREAMS;
-    private final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = 
-            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
-                private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
-                @Override
-                public Thread newThread(Runnable r) {
-                    Thread t = delegatedThreadFactory.newThread(r);
-                    t.setDaemon(true);
-                    return t;
-                }
-            });
-    private final ThreadLocal<ReusableKryo> threadLocalKryo = 
-            new ThreadLocal<ReusableKryo>() {
-                protected ReusableKryo initialValue() {
-                    return new ReusableKryo();
-                };
-            };
+    private final DynamoDB DYNAMO_DB_DOCUMENT;
+    private final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE;
+    private final StreamConsumer streamConsumer;
+    private final StreamConsumer.RecordProcessor recordProcessor = new StreamConsumer.RecordProcessor() {
+        @Override
+        public void process(Record record) {
+            processRecord(record);
+        }
+        
+        @Override
+        public void onRecordsMissed() {
+            for (CacheChangeListener listener : cacheChangeListeners) {
+                listener.onChangesMissed();
+            }
+        }
+    };
+    // Only created if write-behind is enabled
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final SambaMetrics metrics;
+    private final SambaCounter hits;
+    private final SambaCounter misses;
+    private final SambaCounter puts;
+    private final SambaCounter removes;
+    private final SambaCounter replaceSuccesses;
+    private final SambaCounter replaceFailures;
+    private final SambaCounter streamRecords;
+    private final SambaHistogram serializationMicros;
+    private final SambaHistogram serializedBytes;
+    private final SambaHistogram deserializationMicros;
+    private final KryoPool kryoPool;
+    // Serializer of the values which don't have their own serializer.
+    // If it is not specified, built-in serializers are used.
+    private final SambaSerializer serializer;
+    private final ConcurrentMap<String, SambaSerializer> keySerializers = 
+            new ConcurrentHashMap<String, SambaSerializer>();
+    private final ConcurrentMap<Byte, SambaSerializer> serializers = 
+            new ConcurrentHashMap<Byte, SambaSerializer>();
     private final List<CacheChangeListener> cacheChangeListeners = 
             new CopyOnWriteArrayList<CacheChangeListener>();   
     private final String UUID = java.util.UUID.randomUUID().toString();
+    private final SambaFuture<Void> tableAvailability = new SambaFuture<Void>();
+    private volatile boolean tableAvailable;
+    // Completed with the checkpoint to resume the stream from (or with null to consume the latest records), 
+    // immediately if the stream start is not deferred
+    private final SambaFuture<StreamConsumer.Checkpoint> streamStartRequest = 
+            new SambaFuture<StreamConsumer.Checkpoint>();
+    private final SambaFuture<Boolean> streamResumption = new SambaFuture<Boolean>();
+    private final AtomicBoolean closed = new AtomicBoolean();
     
     public SambaGlobalCache() {
         this(null);
     }
    
     public SambaGlobalCache(CacheChangeListener cacheChangeListener) {
+        this(cacheChangeListener, "cache.global");
+    }
+    
+    /**
+     * Creates the global cache with its own compression and serializer configurations 
+     * under the given property prefix which fall back to the global cache configurations.
+     */
+    SambaGlobalCache(CacheChangeListener cacheChangeListener, String propertyPrefix) {
+        this(cacheChangeListener, propertyPrefix, false);
+    }
+    
+    /**
+     * @param deferStreamStart <code>true</code> if the stream must not be consumed 
+     *                         until {@link #startStream(StreamConsumer.Checkpoint)} is called, 
+     *                         so the listener can restore its state before the changes are delivered. 
+     *                         Table is not available until then.
+     */
+    SambaGlobalCache(CacheChangeListener cacheChangeListener, String propertyPrefix, 
+                     final boolean deferStreamStart) {
+        metrics = 
+                SambaMetricsRegistry.register(
+                        "cache.global".equals(propertyPrefix) ? propertyPrefix : propertyPrefix + ".globalCache");
+        hits = metrics.counter("hits");
+        misses = metrics.counter("misses");
+        puts = metrics.counter("puts");
+        removes = metrics.counter("removes");
+        replaceSuccesses = metrics.counter("replaceSuccesses");
+        replaceFailures = metrics.counter("replaceFailures");
+        streamRecords = metrics.counter("streamRecords");
+        serializationMicros = metrics.histogram("serializationMicros");
+        serializedBytes = metrics.histogram("serializedBytes");
+        deserializationMicros = metrics.histogram("deserializationMicros");
         try {
-            Properties sambaProps = getProperties("samba.properties");
-            String tableName = sambaProps.getProperty("cache.global.tableName");
-            if (tableName != null) {
-                DYNAMO_DB_TABLE_NAME = tableName;
-            } else {
-                DYNAMO_DB_TABLE_NAME = "___SambaGlobalCache___";
-            }
-            String readCapacityPerSecond = sambaProps.getProperty("cache.global.readCapacityPerSecond");
-            if (readCapacityPerSecond != null) {
-                DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND = Integer.parseInt(readCapacityPerSecond);
-            } else {
-                DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND = 1000;
-            }
-            String writeCapacityPerSecond = sambaProps.getProperty("cache.global.writeCapacityPerSecond");
-            if (writeCapacityPerSecond != null) {
-                DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND = Integer.parseInt(writeCapacityPerSecond);
-            } else {
-                DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND = 100;
+            Properties sambaProps = SambaProperties.getProperties(SambaProperties.SAMBA_PROPERTIES_FILE_NAME);
+            DYNAMO_DB_TABLE_NAME = 
+                    SambaProperties.getString(sambaProps, "cache.global.tableName", "___SambaGlobalCache___");
+            DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND = 
+                    SambaProperties.getInt(sambaProps, "cache.global.readCapacityPerSecond", 1000);
+            DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND = 
+                    SambaProperties.getInt(sambaProps, "cache.global.writeCapacityPerSecond", 100);
+            DYNAMO_DB_STREAM_VIEW_TYPE = 
+                    StreamViewType.fromValue(
+                            SambaProperties.getString(
+                                    sambaProps, "cache.global.streamViewType", 
+                                    StreamViewType.NEW_AND_OLD_IMAGES.toString()));
+            COMPRESSION_CODEC = 
+                    CompressionCodec.of(
+                            SambaProperties.getString(
+                                    sambaProps, propertyPrefix + ".compressionCodec", 
+                                    SambaProperties.getString(
+                                            sambaProps, "cache.global.compressionCodec", "DEFLATE")));
+            COMPRESSION_THRESHOLD = 
+                    SambaProperties.getInt(
+                            sambaProps, propertyPrefix + ".compressionThreshold", 
+                            SambaProperties.getInt(sambaProps, "cache.global.compressionThreshold", 1024));
+            serializer = 
+                    createSerializer(
+                            SambaProperties.getString(
+                                    sambaProps, propertyPrefix + ".serializer", 
+                                    SambaProperties.getString(sambaProps, "cache.global.serializer", null)));
+            if (serializer != null) {
+                registerSerializer(serializer);
             }
+            // Registrations are part of the stored format, 
+            // so they are always shared by all the caches on the same table
+            kryoPool = 
+                    new KryoPool(
+                            SambaProperties.getInt(sambaProps, "cache.global.kryoPoolSize", 16), 
+                            KryoPool.resolveClasses(
+                                    SambaProperties.getString(sambaProps, "cache.global.kryoRegisteredClasses", null)));
             
             /////////////////////////////////////////////////////////////////
             
-            Properties awsProps = getProperties("aws-credentials.properties");
-            AWSCredentials awsCredentials = 
-                    new BasicAWSCredentials(
-                            awsProps.getProperty("aws.accessKey"), 
-                            awsProps.getProperty("aws.secretKey"));
+            // Clients, executors and the stream consumption are shared by all the global caches on the same table, 
+            // so the stream is polled only once however many caches there are
+            connection = DynamoDBTableConnection.acquire(DYNAMO_DB_TABLE_NAME, sambaProps);
+            DYNAMO_DB = connection.dynamoDB;
+            DYNAMO_DB_DOCUMENT = connection.dynamoDBDocument;
+            DYNAMO_DB_TABLE = connection.table;
+            SCHEDULED_EXECUTOR_SERVICE = connection.scheduledExecutorService;
+            streamConsumer = connection.streamConsumer;
             
-            DYNAMO_DB = new AmazonDynamoDBClient(awsCredentials);
-            DYNAMO_DB_STREAMS = new AmazonDynamoDBStreamsClient(awsCredentials);
-            DYNAMO_DB_TABLE = ensureTableAvailable();
+            boolean writeBehind = 
+                    SambaProperties.getBoolean(
+                            sambaProps, propertyPrefix + ".writeBehind", 
+                            SambaProperties.getBoolean(sambaProps, "cache.global.writeBehind", false));
+            if (writeBehind) {
+                writeBehindBuffer = 
+                        new WriteBehindBuffer(
+                                new WriteBehindBuffer.Writer() {
+                                    @Override
+                                    public void write(Map<String, PendingWrite> writes) {
+                                        writePending(writes);
+                                    }
+                                    
+                                    @Override
+                                    public boolean isReady() {
+                                        // Flushes run on the executor which also initializes the table, 
+                                        // so they must not wait for the table there
+                                        return tableAvailable;
+                                    }
+                                }, 
+                                SCHEDULED_EXECUTOR_SERVICE, 
+                                SambaProperties.getLong(
+                                        sambaProps, propertyPrefix + ".writeBehindFlushIntervalMillis", 
+                                        SambaProperties.getLong(
+                                                sambaProps, "cache.global.writeBehindFlushIntervalMillis", 1000)), 
+                                SambaProperties.getInt(
+                                        sambaProps, propertyPrefix + ".writeBehindFlushThreshold", 
+                                        SambaProperties.getInt(
+                                                sambaProps, "cache.global.writeBehindFlushThreshold", 
+                                                BATCH_WRITE_ITEM_LIMIT)), 
+                                metrics);
+                writeBehindBuffer.start();
+            } else {
+                writeBehindBuffer = null;
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         
+        metrics.gauge("streamLagMillis", new SambaGauge() {
+            @Override
+            public long getValue() {
+                long maxLag = 0;
+                for (long lag : streamConsumer.getShardLags().values()) {
+                    maxLag = Math.max(maxLag, lag);
+                }
+                return maxLag;
+            }
+        });
+        
         if (cacheChangeListener != null) {
             registerCacheChangeListener(cacheChangeListener);
         }
+        connection.subscribe(recordProcessor);
+        
+        // Don't block the creator (mostly on cold start) until the table is available, 
+        // operations wait for the table only when they are actually used
+        streamStartRequest.addListener(new SambaFutureListener<StreamConsumer.Checkpoint>() {
+            @Override
+            public void onSuccess(StreamConsumer.Checkpoint checkpoint) {
+                // Listener might be called by the caller thread, so the table and the stream calls are not made here
+                initialize(checkpoint, 0);
+            }
+            
+            @Override
+            public void onFailure(Throwable error) {
+                tableAvailability.fail(error);
+                streamResumption.fail(error);
+            }
+        });
+        if (!deferStreamStart) {
+            streamStartRequest.complete(null);
+        }
+    }
+    
+    /**
+     * Makes the table available and starts consuming the stream before the table is given out to the operations, 
+     * so the listener cannot miss any change done after the operations are allowed. 
+     * Initialization is retried with exponential backoff on failure (such as a throttled or timed out request) 
+     * until the cache is closed, since a transient failure must not make the cache unusable for good.
+     */
+    private void initialize(final StreamConsumer.Checkpoint checkpoint, final int attempt) {
+        long backoff = 0;
+        if (attempt > 0) {
+            long maxBackoff = 
+                    Math.min(INIT_RETRY_INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 16), 
+                             INIT_RETRY_MAX_BACKOFF_MILLIS);
+            backoff = maxBackoff / 2 + (long) (BACKOFF_JITTER_RANDOM.nextDouble() * maxBackoff / 2);
+        }
+        SCHEDULED_EXECUTOR_SERVICE.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (closed.get()) {
+                    return;
+                }
+                boolean resumed;
+                try {
+                    ensureTableAvailable();
+                    if (checkpoint != null) {
+                        resumed = connection.startStream(checkpoint);
+                    } else {
+                        connection.startStream();
+                        resumed = false;
+                    }
+                } catch (Throwable t) {
+                    LOGGER.error(
+                            String.format("Unable to make DynamoDB table (%s) available! Will be retried.", 
+                                          DYNAMO_DB_TABLE_NAME), t);
+                    initialize(checkpoint, attempt + 1);
+                    return;
+                }
+                tableAvailable = true;
+                tableAvailability.complete(null);
+                streamResumption.complete(resumed);
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Starts consuming the stream (deferred at creation) from the given checkpoint 
+     * (or from the latest records if the checkpoint is <code>null</code>) and then makes the table available. 
+     * Returned future is completed with <code>true</code> if the stream has been resumed from the checkpoint.
+     * Stream is shared by all the global caches on the same table, 
+     * so it cannot be resumed from the checkpoint if it has already been started for any of them.
+     */
+    SambaFuture<Boolean> startStream(StreamConsumer.Checkpoint checkpoint) {
+        if (!streamStartRequest.complete(checkpoint)) {
+            return SambaFuture.failed(new IllegalStateException("Stream has already been started"));
+        }
+        return streamResumption;
+    }
+    
+    /**
+     * Gets the position of the processed stream records or <code>null</code> if the stream is not consumed yet.
+     */
+    StreamConsumer.Checkpoint getStreamCheckpoint() {
+        return streamConsumer.getCheckpoint();
+    }
+    
+    /**
+     * Returns <code>true</code> if all the stream records written before the given time
+     * have been delivered to the listener.
+     */
+    boolean isStreamCaughtUp(long sinceTimeMillis) {
+        return streamConsumer.isCaughtUp(sinceTimeMillis);
+    }
+    
+    /**
+     * Waits until all the stream records written before the given time have been delivered to the listener
+     * and returns <code>false</code> if they couldn't be delivered in the given timeout (or on interrupt).
+     */
+    boolean awaitStreamCaughtUp(long sinceTimeMillis, long timeoutMillis) {
+        try {
+            return streamConsumer.awaitCaughtUp(sinceTimeMillis, timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    ScheduledExecutorService getScheduledExecutorService() {
+        return SCHEDULED_EXECUTOR_SERVICE;
     }
     
     interface CacheChangeListener {
 
-        void onInsert(String key, Object value);
-        void onUpdate(String key, Object oldValue, Object newValue);
+        void onInsert(String key, ChangedValue value);
+        void onUpdate(String key, ChangedValue oldValue, ChangedValue newValue);
         void onDelete(String key);
         
+        /**
+         * Called when some changes might have been missed, 
+         * so any key might have been changed without being notified.
+         */
+        void onChangesMissed();
+        
+    }
+    
+    /**
+     * Value of a changed entry which is only deserialized when it is requested, 
+     * so listeners which are only interested in keys don't pay for deserialization.
+     */
+    interface ChangedValue {
+        
+        /**
+         * Returns <code>true</code> if the value is included in the stream record 
+         * (depends on the stream view type of the table), otherwise <code>false</code>.
+         */
+        boolean isAvailable();
+        
+        /**
+         * Gets the value by deserializing it on the first call. 
+         * Returns <code>null</code> if the value is not available or cannot be deserialized.
+         */
+        Object get();
+        
+        /**
+         * Gets the value with its version and expiration time. 
+         * Returns <code>null</code> if the value is not available or cannot be deserialized.
+         */
+        Entry getEntry();
+        
+    }
+    
+    private class LazyChangedValue implements ChangedValue {
+        
+        private final Map<String, AttributeValue> image;
+        private final ByteBuffer data;
+        private final AttributeValue nativeValue;
+        private boolean deserialized;
+        private Object value;
+        
+        private LazyChangedValue(Map<String, AttributeValue> image) {
+            this.image = image;
+            this.data = dataOf(image);
+            this.nativeValue = image != null ? image.get("value") : null;
+        }
+        
+        @Override
+        public boolean isAvailable() {
+            return data != null || nativeValue != null;
+        }
+        
+        @Override
+        public Entry getEntry() {
+            Object value = get();
+            if (value == null) {
+                return null;
+            }
+            long expirationTime = Entry.NO_EXPIRATION;
+            AttributeValue expirationTimeValue = image.get("expirationTime");
+            if (expirationTimeValue != null) {
+                expirationTime = Long.parseLong(expirationTimeValue.getN());
+                if (expirationTime <= System.currentTimeMillis()) {
+                    return Entry.ABSENT;
+                }
+            }
+            long version = SambaValueProxy.NO_VERSION;
+            AttributeValue versionValue = image.get("version");
+            if (versionValue != null) {
+                version = Long.parseLong(versionValue.getN());
+            }
+            return new Entry(value, expirationTime, version, data);
+        }
+        
+        @Override
+        public Object get() {
+            // Listeners are notified by a single shard consumer thread, so there is no need for synchronization
+            if (!deserialized) {
+                if (data == null && nativeValue != null) {
+                    value = fromChangedNativeValue(nativeValue);
+                } else {
+                    value = deserializeChangedValue(data);
+                }
+                deserialized = true;
+            }
+            return value;
+        }
+        
     }
 
-    private Table ensureTableAvailable() {
+    private void ensureTableAvailable() {
         boolean tableExist = false;
+        String tableStatus = null;
         try {
-            DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME);
+            TableDescription tableDescription = DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME).getTable();
+            tableStatus = tableDescription.getTableStatus();
             tableExist = true;
+            StreamSpecification streamSpecification = tableDescription.getStreamSpecification();
+            if (streamSpecification != null
+                    && !DYNAMO_DB_STREAM_VIEW_TYPE.toString().equals(streamSpecification.getStreamViewType())) {
+                // Stream view type cannot be changed without recreating the stream 
+                // which would break the other consumers, so existing stream is used as it is
+                LOGGER.warn(
+                        String.format(
+                                "Stream view type of the existing DynamoDB table (%s) is %s instead of configured %s", 
+                                DYNAMO_DB_TABLE_NAME, streamSpecification.getStreamViewType(), 
+                                DYNAMO_DB_STREAM_VIEW_TYPE));
+            }
         } catch (ResourceNotFoundException e) {
         }
         
@@ -181,7 +565,7 @@ public class SambaGlobalCache implements SambaCache {
     
             StreamSpecification streamSpecification = new StreamSpecification();
             streamSpecification.setStreamEnabled(true);
-            streamSpecification.setStreamViewType(StreamViewType.NEW_AND_OLD_IMAGES);
+            streamSpecification.setStreamViewType(DYNAMO_DB_STREAM_VIEW_TYPE);
     
             CreateTableRequest createTableRequest = 
                     new CreateTableRequest().
@@ -214,11 +598,13 @@ public class SambaGlobalCache implements SambaCache {
                             DYNAMO_DB_TABLE_NAME));
         }
         
-        while (true) {
+        // Existing table is mostly active already, so there is no need to describe it again
+        while (!"ACTIVE".equals(tableStatus)) {
             DescribeTableResult describeTableResult = 
                     DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME);
             TableDescription tableDescription = describeTableResult.getTable();
-            if ("ACTIVE".equals(tableDescription.getTableStatus())) {
+            tableStatus = tableDescription.getTableStatus();
+            if ("ACTIVE".equals(tableStatus)) {
                 break;
             }
             LOGGER.info(
@@ -230,163 +616,196 @@ public class SambaGlobalCache implements SambaCache {
             } catch (InterruptedException e) {
             }
         } 
-        
-        SCHEDULED_EXECUTOR_SERVICE.scheduleAtFixedRate(
-                new StreamListener(), 
-                0, 1000, TimeUnit.MILLISECONDS);
-        
-        return new Table(DYNAMO_DB, DYNAMO_DB_TABLE_NAME);
     }
-    
-    private static Properties getProperties(String propFileName) throws IOException {
-        Properties props = new Properties();
+        
+    /**
+     * Blocks until the table is available.
+     * Table is mostly available already, so the volatile flag is checked first to keep it cheap.
+     */
+    private void awaitTableAvailable() {
+        if (tableAvailable) {
+            return;
+        }
         try {
-            InputStream in = SambaGlobalCache.class.getClassLoader().getResourceAsStream(propFileName);
-            if (in != null) {
-                props.load(in);
-            } 
-            props.putAll(System.getProperties());
-            return props;
-        } catch (IOException e) {
-            LOGGER.error("Error occured while loading properties from " + "'" + propFileName + "'", e);
-            throw e;
+            tableAvailability.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrupted while waiting DynamoDB table (" + DYNAMO_DB_TABLE_NAME + ") to be available", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(
+                    "DynamoDB table (" + DYNAMO_DB_TABLE_NAME + ") is not available", e.getCause());
         }
     }
-
-    private class StreamListener implements Runnable {
-
-        private final ConcurrentMap<String, String> shardIteratorMap = 
-                new ConcurrentHashMap<String, String>();
-        private final AtomicBoolean inProgress = new AtomicBoolean();
-        
-        private StreamListener() {
-            execute(true);
-        }
         
-        @Override
-        public void run() {
-            execute(false);
+    /**
+     * Runs the given action (which issues an async request) once the table is available 
+     * without blocking the caller.
+     */
+    private void whenTableAvailable(final SambaFuture<?> future, final Runnable action) {
+        if (tableAvailable) {
+            action.run();
+            return;
         }
-        
-        private void execute(boolean initial) {
-            if (inProgress.compareAndSet(false, true)) {
+        tableAvailability.addListener(new SambaFutureListener<Void>() {
+            @Override
+            public void onSuccess(Void value) {
                 try {
-                    DescribeTableResult describeTableResult = 
-                            DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME);
-                    String tableStreamArn = describeTableResult.getTable().getLatestStreamArn();
-                    DescribeStreamResult describeStreamResult = 
-                            DYNAMO_DB_STREAMS.describeStream(
-                                    new DescribeStreamRequest().withStreamArn(tableStreamArn));
-                    String streamArn = describeStreamResult.getStreamDescription().getStreamArn();
-                    List<Shard> shards = describeStreamResult.getStreamDescription().getShards();
-                    
-                    for (Shard shard : shards) {
-                        String shardId = shard.getShardId();
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.info("Processing " + shardId + " from stream " + streamArn + " ...");
-                        }
-                        
-                        String shardIterator = shardIteratorMap.get(shardId);
-                        if (shardIterator == null) {
-                            ShardIteratorType shardIteratorType = ShardIteratorType.LATEST;
-                            if (!initial) {
-                                shardIteratorType = ShardIteratorType.TRIM_HORIZON;
-                            }
-                            GetShardIteratorRequest getShardIteratorRequest = 
-                                    new GetShardIteratorRequest().
-                                            withStreamArn(tableStreamArn).
-                                            withShardId(shardId).
-                                            withShardIteratorType(shardIteratorType);
-                            GetShardIteratorResult shardIteratorResult = 
-                                DYNAMO_DB_STREAMS.getShardIterator(getShardIteratorRequest);
-                            String newShardIterator = shardIteratorResult.getShardIterator();
-                            String oldShardIterator = 
-                                    shardIteratorMap.putIfAbsent(shardId, newShardIterator);
-                            if (oldShardIterator == null) {
-                                shardIterator = newShardIterator;
-                            } else {
-                                shardIterator = oldShardIterator;
-                            }
-                        }
-                        String nextItr = shardIterator;
-                        while (nextItr != null) {
-                            GetRecordsResult getRecordsResult = 
-                                    DYNAMO_DB_STREAMS.getRecords(
-                                            new GetRecordsRequest().withShardIterator(nextItr));
-                            List<Record> records = getRecordsResult.getRecords();
-                            for (Record record : records) {
-                                StreamRecord streamRecord = record.getDynamodb();
-                                String eventName = record.getEventName();
-                                String key = streamRecord.getKeys().get("id").getS();
-                                if ("INSERT".equals(eventName)) {
-                                    byte[] newData = streamRecord.getNewImage().get("data").getB().array();
-                                    String source = streamRecord.getNewImage().get("source").getS();
-                                    Object newValue = newData != null ? deserialize(newData) : null;
-                                    if (!source.equals(UUID)) { 
-                                        for (CacheChangeListener listener : cacheChangeListeners) {
-                                            listener.onInsert(key, newValue);
-                                        }
-                                    }    
-                                } else if ("MODIFY".equals(eventName)) {
-                                    byte[] oldData = streamRecord.getOldImage().get("data").getB().array();
-                                    byte[] newData = streamRecord.getNewImage().get("data").getB().array();
-                                    String source = streamRecord.getNewImage().get("source").getS();
-                                    Object oldValue = oldData != null ? deserialize(oldData) : null;
-                                    Object newValue = newData != null ? deserialize(newData) : null;
-                                    if (!source.equals(UUID)) { 
-                                        for (CacheChangeListener listener : cacheChangeListeners) {
-                                            listener.onUpdate(key, oldValue, newValue);
-                                        }
-                                    }    
-                                } else if ("REMOVE".equals(eventName)) {
-                                    for (CacheChangeListener listener : cacheChangeListeners) {
-                                        listener.onDelete(key);
-                                    }
-                                } else {
-                                    LOGGER.warn("Unknown event name: " + eventName);
-                                }
-                            }
-                            shardIteratorMap.put(shardId, nextItr);
-                            if (records.isEmpty()) {
-                                break;
-                            }
-                            nextItr = getRecordsResult.getNextShardIterator();
-                        }
-                    }
+                    action.run();
                 } catch (Throwable t) {
-                    LOGGER.error("Error occurred while processing stream events!", t);
-                } finally {
-                    inProgress.set(false);
+                    future.fail(t);
+                }
+            }
+            
+            @Override
+            public void onFailure(Throwable error) {
+                future.fail(
+                        new IllegalStateException(
+                                "DynamoDB table (" + DYNAMO_DB_TABLE_NAME + ") is not available", error));
+            }
+        });
+    }
+
+    private void processRecord(Record record) {
+        streamRecords.increment();
+        StreamRecord streamRecord = record.getDynamodb();
+        String eventName = record.getEventName();
+        String key = streamRecord.getKeys().get("id").getS();
+        Map<String, AttributeValue> oldImage = streamRecord.getOldImage();
+        Map<String, AttributeValue> newImage = streamRecord.getNewImage();
+        if ("INSERT".equals(eventName)) {
+            if (!isOwnChange(newImage)) {
+                ChangedValue newValue = new LazyChangedValue(newImage);
+                for (CacheChangeListener listener : cacheChangeListeners) {
+                    listener.onInsert(key, newValue);
                 }
             }    
+        } else if ("MODIFY".equals(eventName)) {
+            if (!isOwnChange(newImage)) {
+                ChangedValue oldValue = new LazyChangedValue(oldImage);
+                ChangedValue newValue = new LazyChangedValue(newImage);
+                for (CacheChangeListener listener : cacheChangeListeners) {
+                    listener.onUpdate(key, oldValue, newValue);
+                }
+            }
+        } else if ("REMOVE".equals(eventName)) {
+            for (CacheChangeListener listener : cacheChangeListeners) {
+                listener.onDelete(key);
+            }
+        } else {
+            LOGGER.warn("Unknown event name: " + eventName);
         }
-        
+    }
+    
+    private boolean isOwnChange(Map<String, AttributeValue> newImage) {
+        // Source is unknown without the new image (such as on "KEYS_ONLY" stream), 
+        // so the change is assumed to be done by someone else
+        if (newImage == null) {
+            return false;
+        }
+        AttributeValue source = newImage.get("source");
+        return source != null && UUID.equals(source.getS());
+    }
+    
+    private static ByteBuffer dataOf(Map<String, AttributeValue> image) {
+        if (image == null) {
+            return null;
+        }
+        AttributeValue data = image.get("data");
+        return data != null ? data.getB() : null;
     }
 
-    private class ReusableKryo extends Kryo {
-        
-        private static final int BUFFER_SIZE = 4096;
-        
-        private final FastOutput output = new FastOutput(BUFFER_SIZE);
-
-        private byte[] encode(Object obj) {
-            output.clear();
-            writeClassAndObject(output, obj);
-            return output.toBytes();
+    private static SambaSerializer createSerializer(String className) {
+        if (className == null) {
+            return null;
         }
-        
-        private Object decode(byte[] data) {
-            return readClassAndObject(new FastInput(data));
+        try {
+            return (SambaSerializer)
+                    Class.forName(className, true, Thread.currentThread().getContextClassLoader()).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to create serializer: " + className, e);
+        }
+    }
+    
+    private void registerSerializer(SambaSerializer serializer) {
+        byte id = serializer.getId();
+        if (id >= 0 && id <= SambaSerializer.MAX_RESERVED_ID) {
+            throw new IllegalArgumentException(
+                    "Serializer id " + id + " of " + serializer.getClass().getName() + 
+                    " is reserved for built-in serializers");
         }
+        SambaSerializer existingSerializer = serializers.putIfAbsent(id, serializer);
+        if (existingSerializer != null && existingSerializer.getClass() != serializer.getClass()) {
+            throw new IllegalArgumentException(
+                    "Serializer id " + id + " of " + serializer.getClass().getName() + 
+                    " is already used by " + existingSerializer.getClass().getName());
+        }
+    }
+    
+    @Override
+    public void setSerializer(String key, SambaSerializer serializer) {
+        registerSerializer(serializer);
+        keySerializers.put(key, serializer);
     }
     
-    private byte[] serialize(Object obj) {
-        return threadLocalKryo.get().encode(obj);
+    ByteBuffer serialize(String key, Object obj) {
+        SambaSerializer valueSerializer = serializer;
+        // Mostly there is no key specific serializer, so the lookup is skipped
+        if (!keySerializers.isEmpty()) {
+            SambaSerializer keySerializer = keySerializers.get(key);
+            if (keySerializer != null) {
+                valueSerializer = keySerializer;
+            }
+        }
+        long startTime = System.nanoTime();
+        PooledKryo kryo = kryoPool.borrow();
+        try {
+            ByteBuffer data = kryo.encode(obj, valueSerializer, COMPRESSION_CODEC, COMPRESSION_THRESHOLD);
+            serializationMicros.record((System.nanoTime() - startTime) / 1000);
+            serializedBytes.record(data.remaining());
+            return data;
+        } finally {
+            kryoPool.release(kryo);
+        }
     }
     
     @SuppressWarnings("unchecked")
-    private <T> T deserialize(byte[] data) {
-        return (T) threadLocalKryo.get().decode(data);
+    <T> T deserialize(ByteBuffer data) {
+        long startTime = System.nanoTime();
+        PooledKryo kryo = kryoPool.borrow();
+        try {
+            T value = (T) kryo.decode(data, serializers);
+            deserializationMicros.record((System.nanoTime() - startTime) / 1000);
+            return value;
+        } finally {
+            kryoPool.release(kryo);
+        }
+    }
+    
+    /**
+     * Listeners are notified even if the changed value cannot be deserialized 
+     * (for example, it is written by a serializer which is not registered here), 
+     * because they mostly need only the key to invalidate.
+     */
+    private Object deserializeChangedValue(ByteBuffer data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return deserialize(data);
+        } catch (Throwable t) {
+            LOGGER.warn("Unable to deserialize changed value, so listeners are notified without it", t);
+            return null;
+        }
+    }
+    
+    private Object fromChangedNativeValue(AttributeValue value) {
+        try {
+            return fromNativeValue(value);
+        } catch (Throwable t) {
+            LOGGER.warn("Unable to deserialize changed value, so listeners are notified without it", t);
+            return null;
+        }
     }
     
     public void registerCacheChangeListener(CacheChangeListener cacheChangeListener) {
@@ -396,7 +815,19 @@ public class SambaGlobalCache implements SambaCache {
     public void deregisterCacheChangeListener(CacheChangeListener cacheChangeListener) {
         cacheChangeListeners.remove(cacheChangeListener);
     }
+    
+    /**
+     * Gets the lag of the stream consumption per shard (by shard id) in milliseconds. 
+     * Changes done before the lag of a shard have already been received from that shard.
+     */
+    public Map<String, Long> getStreamLagMillis() {
+        return streamConsumer.getShardLags();
+    }
 
+    public SambaMetrics getMetrics() {
+        return metrics;
+    }
+    
     @Override
     public SambaCacheType getType() {
         return SambaCacheType.GLOBAL;
@@ -407,24 +838,10 @@ public class SambaGlobalCache implements SambaCache {
         return SambaCacheConsistencyModel.STRONG_CONSISTENCY;
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public <V> V get(String key) {
-        V value;
-        Item item = 
-                DYNAMO_DB_TABLE.getItem(
-                        new GetItemSpec().
-                                withPrimaryKey("id", key).
-                                withConsistentRead(true));
-        if (item == null) {
-            value = null;
-        } else {
-            byte[] data = item.getBinary("data");
-            if (data == null) {
-                value = null;
-            } else {
-                value = deserialize(data);
-            }
-        }    
+        V value = (V) getEntry(key).value;
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Value %s has been retrieved from global cache with key %s", key, value));
@@ -432,6 +849,171 @@ public class SambaGlobalCache implements SambaCache {
         return value;
     }
     
+    /**
+     * Gets the value with its expiration time (epoch millis) if there is any.
+     * Expired but not yet overwritten items are treated as absent.
+     */
+    Entry getEntry(String key) {
+        Entry pendingEntry = pendingEntryOf(key);
+        if (pendingEntry != null) {
+            return pendingEntry;
+        }
+        awaitTableAvailable();
+        GetItemResult result = 
+                DYNAMO_DB.getItem(
+                        new GetItemRequest().
+                                withTableName(DYNAMO_DB_TABLE_NAME).
+                                withKey(keyOf(key)).
+                                withConsistentRead(true));
+        Entry entry = toEntry(result.getItem());
+        if (entry.value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+    
+    /**
+     * Gets the entry of the pending write of the key (if write-behind is enabled) 
+     * or <code>null</code> if there is no pending write, 
+     * so the own writes are visible before they are flushed.
+     */
+    private Entry pendingEntryOf(String key) {
+        if (writeBehindBuffer == null) {
+            return null;
+        }
+        PendingWrite pendingWrite = writeBehindBuffer.get(key);
+        if (pendingWrite == null) {
+            return null;
+        }
+        if (pendingWrite.value == null || pendingWrite.isExpired()) {
+            return Entry.ABSENT;
+        }
+        return new Entry(pendingWrite.value, pendingWrite.expirationTime, SambaValueProxy.NO_VERSION);
+    }
+    
+    /**
+     * Writes the pending write of the key (if there is any) before it is updated conditionally, 
+     * so the condition is checked against the latest value.
+     */
+    private void flushPendingWrite(String key) {
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.flush(key);
+        }
+    }
+    
+    @Override
+    public void flush() {
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.flush();
+        }
+    }
+    
+    /**
+     * Writes the pending writes (if write-behind is enabled) and releases the connection to the table, 
+     * so the cache cannot be used anymore. 
+     * Connection (its clients, executors and stream consumption) is shared by all the global caches 
+     * on the same table, so it is closed when the last of them is closed.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        // Operations waiting for the table (such as the flush below) don't wait for a table never available
+        IllegalStateException closedError = new IllegalStateException("Cache has been closed");
+        streamStartRequest.fail(closedError);
+        tableAvailability.fail(closedError);
+        streamResumption.fail(closedError);
+        try {
+            if (writeBehindBuffer != null) {
+                writeBehindBuffer.stop();
+            }
+        } finally {
+            connection.unsubscribe(recordProcessor);
+            connection.release();
+            SambaMetricsRegistry.unregister(metrics);
+        }
+    }
+    
+    private Entry toEntry(Map<String, AttributeValue> item) {
+        if (item == null) {
+            return Entry.ABSENT;
+        }
+        long expirationTime = Entry.NO_EXPIRATION;
+        AttributeValue expirationTimeValue = item.get("expirationTime");
+        if (expirationTimeValue != null) {
+            expirationTime = Long.parseLong(expirationTimeValue.getN());
+            if (expirationTime <= System.currentTimeMillis()) {
+                return Entry.ABSENT;
+            }
+        }
+        Object value;
+        ByteBuffer data = null;
+        AttributeValue dataValue = item.get("data");
+        AttributeValue nativeValue = item.get("value");
+        if (dataValue != null && dataValue.getB() != null) {
+            data = dataValue.getB();
+            value = deserialize(data);
+        } else if (nativeValue != null) {
+            value = fromNativeValue(nativeValue);
+        } else {
+            return Entry.ABSENT;
+        }
+        long version = SambaValueProxy.NO_VERSION;
+        AttributeValue versionValue = item.get("version");
+        if (versionValue != null) {
+            version = Long.parseLong(versionValue.getN());
+        }
+        return new Entry(value, expirationTime, version, data);
+    }
+    
+    static final class Entry {
+        
+        static final long NO_EXPIRATION = -1;
+        static final Entry ABSENT = new Entry(null, NO_EXPIRATION, SambaValueProxy.NO_VERSION);
+        
+        final Object value;
+        final long expirationTime;
+        final long version;
+        // Serialized form of the value as it is read from the table (if it is not stored natively), 
+        // so it can be moved off-heap without serializing it again
+        final ByteBuffer data;
+        
+        Entry(Object value, long expirationTime, long version) {
+            this(value, expirationTime, version, null);
+        }
+        
+        Entry(Object value, long expirationTime, long version, ByteBuffer data) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+            this.version = version;
+            this.data = data;
+        }
+        
+        boolean hasExpiration() {
+            return expirationTime != NO_EXPIRATION;
+        }
+        
+        SambaValueProxy toValueProxy() {
+            if (value == null) {
+                return null;
+            }
+            return new SambaValueProxy(value, version);
+        }
+        
+    }
+    
+    @Override
+    public SambaValueProxy getVersioned(String key) {
+        return getEntry(key).toValueProxy();
+    }
+    
+    @Override
+    public SambaValueProxy refreshVersioned(String key) {
+        return getVersioned(key);
+    }
+    
     @Override
     public <V> V refresh(String key) {
         return get(key);
@@ -439,78 +1021,1064 @@ public class SambaGlobalCache implements SambaCache {
 
     @Override
     public void put(String key, Object value) {
+        putEntry(key, value, Entry.NO_EXPIRATION, false);
+    }
+    
+    @Override
+    public void put(String key, Object value, long ttl, TimeUnit timeUnit) {
+        putEntry(key, value, expirationTimeOf(ttl, timeUnit), false);
+    }
+    
+    static long expirationTimeOf(long ttl, TimeUnit timeUnit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("TTL must be positive: " + ttl);
+        }
+        return System.currentTimeMillis() + timeUnit.toMillis(ttl);
+    }
+    
+    /**
+     * Puts the value and returns the written entry. 
+     * Its version is only known if it is requested, 
+     * because the new version is returned with the whole updated item.
+     */
+    Entry putEntry(String key, Object value, long expirationTime, boolean returnVersion) {
         if (value == null) {
             remove(key);
+            return Entry.ABSENT;
+        } else if (writeBehindBuffer != null) {
+            writeBehindBuffer.add(key, value, expirationTime);
+            puts.increment();
+            // Version is not known until the value is written
+            return new Entry(value, expirationTime, SambaValueProxy.NO_VERSION);
         } else {
-            byte[] data = serialize(value);
-            Item item = 
-                    new Item().
-                        withPrimaryKey("id", key).
-                        withBinary("data", data).
-                        with("source", UUID);
-            DYNAMO_DB_TABLE.putItem(item);
+            awaitTableAvailable();
+            UpdateItemRequest request = 
+                    newWriteRequest(key, serialize(key, value), expirationTime, returnVersion);
+            UpdateItemResult result = DYNAMO_DB.updateItem(request);
+            puts.increment();
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(
                         String.format("Value %s has been put into global cache with key %s", key, value));
             }
+            return new Entry(value, expirationTime, returnVersion ? versionOf(result) : SambaValueProxy.NO_VERSION);
         }    
     }
     
     @Override
     public boolean replace(String key, Object oldValue, Object newValue) {
-        boolean replaced = false;
-        if (oldValue == null && newValue != null) {
-            byte[] newData = serialize(newValue);
-            Item item = 
-                    new Item().
-                        withPrimaryKey("id", key).
-                        withBinary("data", newData).
-                        with("source", UUID);
-            try {
-                DYNAMO_DB_TABLE.putItem(item, new Expected("id").notExist());
-                replaced = true;
-            } catch (ConditionalCheckFailedException e) {
-            }
-        } else if (oldValue != null && newValue == null) {
-            byte[] oldData = serialize(oldValue);
-            try {
-                DYNAMO_DB_TABLE.deleteItem("id", key, new Expected("data").eq(oldData));
-                replaced = true;
-            } catch (ConditionalCheckFailedException e) {
-            }
-        } else if (oldValue != null && newValue != null) {
-            byte[] oldData = serialize(oldValue);
-            byte[] newData = serialize(newValue);
-            Item item = 
-                    new Item().
-                        withPrimaryKey("id", key).
-                        withBinary("data", newData).
-                        with("source", UUID);
-            try {
-                DYNAMO_DB_TABLE.putItem(item, new Expected("data").eq(oldData));
-                replaced = true;
-            } catch (ConditionalCheckFailedException e) {
+        return replaceEntry(key, oldValue, newValue, false) != null;
+    }
+    
+    /**
+     * Replaces the old value by comparing it with the current one 
+     * and returns the new entry or <code>null</code> if it couldn't be replaced.
+     */
+    Entry replaceEntry(String key, Object oldValue, Object newValue, boolean returnVersion) {
+        flushPendingWrite(key);
+        awaitTableAvailable();
+        Entry newEntry = null;
+        // Expired items must behave as absent ones, but they are not deleted from the table.
+        Map<String, AttributeValue> conditionValues = new HashMap<String, AttributeValue>(4);
+        conditionValues.put(":now", numberOf(System.currentTimeMillis()));
+        try {
+            if (oldValue == null && newValue != null) {
+                UpdateItemRequest request = 
+                        withCondition(
+                                newWriteRequest(key, serialize(key, newValue), Entry.NO_EXPIRATION, returnVersion), 
+                                ABSENT_OR_EXPIRED_CONDITION, conditionValues);
+                UpdateItemResult result = DYNAMO_DB.updateItem(request);
+                newEntry = 
+                        new Entry(newValue, Entry.NO_EXPIRATION, 
+                                  returnVersion ? versionOf(result) : SambaValueProxy.NO_VERSION);
+            } else if (oldValue != null && newValue == null) {
+                conditionValues.put(":old", binaryOf(serialize(key, oldValue)));
+                DYNAMO_DB.deleteItem(
+                        newDeleteRequest(key, UNEXPIRED_DATA_EQUALS_CONDITION, "#d", "data", conditionValues));
+                newEntry = Entry.ABSENT;
+            } else if (oldValue != null && newValue != null) {
+                conditionValues.put(":old", binaryOf(serialize(key, oldValue)));
+                UpdateItemRequest request = 
+                        withCondition(
+                                newWriteRequest(key, serialize(key, newValue), Entry.NO_EXPIRATION, returnVersion), 
+                                UNEXPIRED_DATA_EQUALS_CONDITION, conditionValues);
+                UpdateItemResult result = DYNAMO_DB.updateItem(request);
+                newEntry = 
+                        new Entry(newValue, Entry.NO_EXPIRATION, 
+                                  returnVersion ? versionOf(result) : SambaValueProxy.NO_VERSION);
             }
+        } catch (ConditionalCheckFailedException e) {
         }    
-        if (replaced && LOGGER.isDebugEnabled()) {
+        (newEntry != null ? replaceSuccesses : replaceFailures).increment();
+        if (newEntry != null && LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Old value %s has been replaced with new value %s " + 
                                   "assigned to key %s", oldValue, newValue, key));
         }
-        return replaced;
+        return newEntry;
     }
-
+    
     @Override
-    public void remove(String key) {
-        DYNAMO_DB_TABLE.deleteItem("id", key);
-        if (LOGGER.isDebugEnabled()) {
+    public boolean replaceVersioned(String key, long expectedVersion, Object newValue) {
+        return replaceVersionedEntry(key, expectedVersion, newValue) != null;
+    }
+    
+    /**
+     * Replaces the value only if its version is still the expected one, 
+     * so the old value is neither serialized nor sent.
+     * Returns the new entry or <code>null</code> if it couldn't be replaced.
+     */
+    Entry replaceVersionedEntry(String key, long expectedVersion, Object newValue) {
+        flushPendingWrite(key);
+        awaitTableAvailable();
+        Entry newEntry = null;
+        Map<String, AttributeValue> conditionValues = new HashMap<String, AttributeValue>(4);
+        conditionValues.put(":now", numberOf(System.currentTimeMillis()));
+        conditionValues.put(":expected", numberOf(expectedVersion));
+        try {
+            if (newValue == null) {
+                DYNAMO_DB.deleteItem(
+                        newDeleteRequest(key, UNEXPIRED_VERSION_EQUALS_CONDITION, "#v", "version", conditionValues));
+                newEntry = Entry.ABSENT;
+            } else {
+                UpdateItemRequest request = 
+                        withCondition(
+                                newWriteRequest(key, serialize(key, newValue), Entry.NO_EXPIRATION, false), 
+                                UNEXPIRED_VERSION_EQUALS_CONDITION, conditionValues);
+                DYNAMO_DB.updateItem(request);
+                // Version is just incremented since it was the expected one
+                newEntry = new Entry(newValue, Entry.NO_EXPIRATION, expectedVersion + 1);
+            }
+        } catch (ConditionalCheckFailedException e) {
+        }
+        (newEntry != null ? replaceSuccesses : replaceFailures).increment();
+        if (newEntry != null && LOGGER.isDebugEnabled()) {
             LOGGER.debug(
-                    String.format("Value has been removed from global cache with key %s", key));
+                    String.format("Value with version %d has been replaced with new value %s " + 
+                                  "assigned to key %s", expectedVersion, newValue, key));
         }
+        return newEntry;
     }
     
     @Override
-    public void clear() {
+    public long addAndGet(String key, long delta) {
+        return longOf(addAndGetEntry(key, delta).value);
+    }
+    
+    /**
+     * Adds the delta to the number in place by "ADD" update expression 
+     * and returns the new number with its version.
+     */
+    Entry addAndGetEntry(String key, final long delta) {
+        flushPendingWrite(key);
+        try {
+            UpdateItemResult result = 
+                    DYNAMO_DB.updateItem(
+                            newNativeUpdateRequest(
+                                    key, " ADD #a :operand", numberOf(delta), "N", ReturnValue.UPDATED_NEW));
+            Map<String, AttributeValue> attributes = result.getAttributes();
+            return new Entry(
+                    fromNativeValue(attributes.get("value")), 
+                    Entry.NO_EXPIRATION, 
+                    Long.parseLong(attributes.get("version").getN()));
+        } catch (ConditionalCheckFailedException e) {
+            return updateNatively(key, new NativeUpdater() {
+                @Override
+                public Object update(Object currentValue) {
+                    return longOf(currentValue) + delta;
+                }
+            });
+        }
+    }
+    
+    @Override
+    public void appendToList(String key, final Collection<?> elements) {
+        if (elements.isEmpty()) {
+            return;
+        }
+        flushPendingWrite(key);
+        try {
+            UpdateItemRequest request = 
+                    newNativeUpdateRequest(
+                            key, ", #a = list_append(if_not_exists(#a, :empty), :operand)", 
+                            toNativeValue(key, new ArrayList<Object>(elements)), "L", ReturnValue.NONE);
+            request.getExpressionAttributeValues().put(
+                    ":empty", new AttributeValue().withL(new ArrayList<AttributeValue>()));
+            DYNAMO_DB.updateItem(request);
+        } catch (ConditionalCheckFailedException e) {
+            updateNatively(key, new NativeUpdater() {
+                @Override
+                public Object update(Object currentValue) {
+                    List<Object> list = new ArrayList<Object>(listOf(currentValue));
+                    list.addAll(elements);
+                    return list;
+                }
+            });
+        }
+    }
+    
+    @Override
+    public void addToSet(String key, final Collection<?> elements) {
+        if (elements.isEmpty()) {
+            return;
+        }
+        flushPendingWrite(key);
+        AttributeValue operand = toNativeSet(elements);
+        try {
+            DYNAMO_DB.updateItem(
+                    newNativeUpdateRequest(
+                            key, " ADD #a :operand", operand, operand.getSS() != null ? "SS" : "NS", 
+                            ReturnValue.NONE));
+        } catch (ConditionalCheckFailedException e) {
+            updateNatively(key, new NativeUpdater() {
+                @Override
+                public Object update(Object currentValue) {
+                    Set<Object> set = new LinkedHashSet<Object>(setOf(currentValue));
+                    set.addAll(elements);
+                    return set;
+                }
+            });
+        }
+    }
+    
+    @Override
+    public void removeFromSet(String key, final Collection<?> elements) {
+        if (elements.isEmpty()) {
+            return;
+        }
+        flushPendingWrite(key);
+        AttributeValue operand = toNativeSet(elements);
+        try {
+            DYNAMO_DB.updateItem(
+                    newNativeUpdateRequest(
+                            key, " DELETE #a :operand", operand, operand.getSS() != null ? "SS" : "NS", 
+                            ReturnValue.NONE));
+        } catch (ConditionalCheckFailedException e) {
+            updateNatively(key, new NativeUpdater() {
+                @Override
+                public Object update(Object currentValue) {
+                    if (currentValue == null) {
+                        return null;
+                    }
+                    Set<Object> set = new LinkedHashSet<Object>(setOf(currentValue));
+                    set.removeAll(elements);
+                    return set.isEmpty() ? null : set;
+                }
+            });
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> V putIfAbsent(String key, Object value) {
+        Entry entry = putIfAbsentEntry(key, value);
+        return entry.value != value ? (V) entry.value : null;
+    }
+    
+    /**
+     * Puts the value if there is no value and returns the entry of the current value 
+     * which is either the put one (with the given value instance) or the existing one.
+     */
+    Entry putIfAbsentEntry(String key, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null");
+        }
+        for (;;) {
+            // Conditional put succeeds in a single request if there is no value, 
+            // otherwise the existing value is read as conditional check failure doesn't return it
+            Entry putEntry = replaceEntry(key, null, value, true);
+            if (putEntry != null) {
+                return putEntry;
+            }
+            Entry existingEntry = getEntry(key);
+            if (existingEntry.value != null) {
+                return existingEntry;
+            }
+            // Removed in the meantime, try again
+        }
+    }
+    
+    private interface NativeUpdater {
+        
+        /**
+         * Returns the new value for the current value (<code>null</code> if there is no value) 
+         * or <code>null</code> to remove the value.
+         */
+        Object update(Object currentValue);
+        
+    }
+    
+    /**
+     * Fallback of the in place updates when the value is not updatable in place 
+     * (it is stored serialized, it has another type or it is expired). 
+     * Value is read, updated locally and written back natively on condition of its version, 
+     * so next updates can be done in place.
+     */
+    private Entry updateNatively(String key, NativeUpdater updater) {
+        for (;;) {
+            Entry currentEntry = getEntry(key);
+            Object newValue = updater.update(currentEntry.value);
+            Map<String, AttributeValue> conditionValues = new HashMap<String, AttributeValue>(4);
+            conditionValues.put(":now", numberOf(System.currentTimeMillis()));
+            String condition;
+            if (currentEntry.value == null) {
+                condition = ABSENT_OR_EXPIRED_CONDITION;
+            } else if (currentEntry.version != SambaValueProxy.NO_VERSION) {
+                condition = UNEXPIRED_VERSION_EQUALS_CONDITION;
+                conditionValues.put(":expected", numberOf(currentEntry.version));
+            } else {
+                condition = UNEXPIRED_DATA_EQUALS_CONDITION;
+                conditionValues.put(":old", binaryOf(serialize(key, currentEntry.value)));
+            }
+            try {
+                if (newValue == null) {
+                    if (currentEntry.value != null) {
+                        // Only the names used by the condition can be specified
+                        Map<String, String> names = new HashMap<String, String>(2);
+                        if (condition == UNEXPIRED_VERSION_EQUALS_CONDITION) {
+                            names.put("#v", "version");
+                        } else {
+                            names.put("#d", "data");
+                        }
+                        DYNAMO_DB.deleteItem(
+                                new DeleteItemRequest().
+                                        withTableName(DYNAMO_DB_TABLE_NAME).
+                                        withKey(keyOf(key)).
+                                        withConditionExpression(condition).
+                                        withExpressionAttributeNames(names).
+                                        withExpressionAttributeValues(conditionValues));
+                    }
+                    return Entry.ABSENT;
+                }
+                UpdateItemRequest request = 
+                        newNativeUpdateRequest(
+                                key, ", #a = :operand REMOVE #d, expirationTime", 
+                                toNativeValue(key, newValue), null, ReturnValue.UPDATED_NEW);
+                request.getExpressionAttributeValues().putAll(conditionValues);
+                request.setConditionExpression(condition);
+                UpdateItemResult result = DYNAMO_DB.updateItem(request);
+                return new Entry(newValue, Entry.NO_EXPIRATION, versionOf(result));
+            } catch (ConditionalCheckFailedException e) {
+                // Updated concurrently, try again with the new value
+            }
+        }
+    }
+    
+    /**
+     * Creates the request which updates the native value with the given operand by the given update clause 
+     * and increments its version atomically. 
+     * If the type is specified, request is conditioned on the native value to be updatable in place.
+     */
+    private UpdateItemRequest newNativeUpdateRequest(String key, String updateClause, AttributeValue operand, 
+                                                     String type, ReturnValue returnValue) {
+        awaitTableAvailable();
+        Map<String, String> names = new HashMap<String, String>(8);
+        names.put("#d", "data");
+        names.put("#a", "value");
+        names.put("#s", "source");
+        names.put("#v", "version");
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>(8);
+        values.put(":operand", operand);
+        values.put(":source", new AttributeValue(UUID));
+        values.put(":base", numberOf(System.currentTimeMillis() * VERSION_BASE_MULTIPLIER));
+        values.put(":one", numberOf(1));
+        UpdateItemRequest request = 
+                new UpdateItemRequest().
+                        withTableName(DYNAMO_DB_TABLE_NAME).
+                        withKey(keyOf(key)).
+                        withUpdateExpression(
+                                "SET #s = :source, #v = if_not_exists(#v, :base) + :one" + updateClause).
+                        withExpressionAttributeNames(names).
+                        withExpressionAttributeValues(values).
+                        withReturnValues(returnValue);
+        if (type != null) {
+            values.put(":type", new AttributeValue(type));
+            values.put(":now", numberOf(System.currentTimeMillis()));
+            request.setConditionExpression(NATIVE_UPDATABLE_CONDITION);
+        }
+        return request;
+    }
+    
+    private static long longOf(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (!(value instanceof Number)) {
+            throw new IllegalStateException("Value is not a number: " + value.getClass().getName());
+        }
+        return ((Number) value).longValue();
+    }
+    
+    private static List<?> listOf(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (!(value instanceof List)) {
+            throw new IllegalStateException("Value is not a list: " + value.getClass().getName());
+        }
+        return (List<?>) value;
+    }
+    
+    private static Set<?> setOf(Object value) {
+        if (value == null) {
+            return Collections.emptySet();
+        }
+        if (!(value instanceof Set)) {
+            throw new IllegalStateException("Value is not a set: " + value.getClass().getName());
+        }
+        return (Set<?>) value;
+    }
+    
+    /**
+     * Converts the value to its native DynamoDB representation. 
+     * Numbers, strings, booleans, lists and sets of strings or numbers are kept natively 
+     * and the other objects (including list elements) are serialized.
+     */
+    private AttributeValue toNativeValue(String key, Object value) {
+        if (value == null) {
+            return new AttributeValue().withNULL(true);
+        } else if (value instanceof String) {
+            return new AttributeValue((String) value);
+        } else if (value instanceof Number) {
+            return new AttributeValue().withN(numberStringOf((Number) value));
+        } else if (value instanceof Boolean) {
+            return new AttributeValue().withBOOL((Boolean) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<AttributeValue> elements = new ArrayList<AttributeValue>(list.size());
+            for (Object element : list) {
+                elements.add(toNativeValue(key, element));
+            }
+            return new AttributeValue().withL(elements);
+        } else if (value instanceof Set) {
+            return toNativeSet((Set<?>) value);
+        } else {
+            return binaryOf(serialize(key, value));
+        }
+    }
+    
+    private static AttributeValue toNativeSet(Collection<?> elements) {
+        List<String> strings = new ArrayList<String>(elements.size());
+        List<String> numbers = new ArrayList<String>(elements.size());
+        for (Object element : elements) {
+            if (element instanceof String) {
+                strings.add((String) element);
+            } else if (element instanceof Number) {
+                numbers.add(numberStringOf((Number) element));
+            } else {
+                throw new IllegalArgumentException(
+                        "Set elements must be strings or numbers: " + 
+                        (element != null ? element.getClass().getName() : null));
+            }
+        }
+        if (!strings.isEmpty() && !numbers.isEmpty()) {
+            throw new IllegalArgumentException("Set elements must be either all strings or all numbers");
+        }
+        return strings.isEmpty() ? new AttributeValue().withNS(numbers) : new AttributeValue().withSS(strings);
+    }
+    
+    private static String numberStringOf(Number number) {
+        if (number instanceof Double || number instanceof Float) {
+            return BigDecimal.valueOf(number.doubleValue()).toPlainString();
+        } else if (number instanceof BigDecimal) {
+            return ((BigDecimal) number).toPlainString();
+        }
+        return number.toString();
+    }
+    
+    private Object fromNativeValue(AttributeValue value) {
+        if (value.getS() != null) {
+            return value.getS();
+        } else if (value.getN() != null) {
+            return fromNativeNumber(value.getN());
+        } else if (value.getBOOL() != null) {
+            return value.getBOOL();
+        } else if (value.getL() != null) {
+            List<Object> list = new ArrayList<Object>(value.getL().size());
+            for (AttributeValue element : value.getL()) {
+                list.add(fromNativeValue(element));
+            }
+            return list;
+        } else if (value.getSS() != null) {
+            return new LinkedHashSet<String>(value.getSS());
+        } else if (value.getNS() != null) {
+            Set<Object> set = new LinkedHashSet<Object>(value.getNS().size());
+            for (String number : value.getNS()) {
+                set.add(fromNativeNumber(number));
+            }
+            return set;
+        } else if (value.getB() != null) {
+            return deserialize(value.getB());
+        }
+        return null;
+    }
+    
+    private static Object fromNativeNumber(String number) {
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(number);
+        }
+    }
+    
+    /**
+     * Creates the request which writes the value and increments its version atomically.
+     * "data", "source" and "version" are referred by name placeholders 
+     * since some of them are reserved words.
+     */
+    private UpdateItemRequest newWriteRequest(String key, ByteBuffer data, long expirationTime, 
+                                              boolean returnVersion) {
+        Map<String, String> names = new HashMap<String, String>(8);
+        names.put("#d", "data");
+        names.put("#a", "value");
+        names.put("#s", "source");
+        names.put("#v", "version");
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>(8);
+        values.put(":data", binaryOf(data));
+        values.put(":source", new AttributeValue(UUID));
+        values.put(":base", numberOf(System.currentTimeMillis() * VERSION_BASE_MULTIPLIER));
+        values.put(":one", numberOf(1));
+        // Native value (if there is any) is removed, so the item has only one value
+        String updateExpression = "SET #d = :data, #s = :source, #v = if_not_exists(#v, :base) + :one";
+        if (expirationTime != Entry.NO_EXPIRATION) {
+            updateExpression += ", expirationTime = :expirationTime REMOVE #a";
+            values.put(":expirationTime", numberOf(expirationTime));
+        } else {
+            updateExpression += " REMOVE #a, expirationTime";
+        }
+        return new UpdateItemRequest().
+                    withTableName(DYNAMO_DB_TABLE_NAME).
+                    withKey(keyOf(key)).
+                    withUpdateExpression(updateExpression).
+                    withExpressionAttributeNames(names).
+                    withExpressionAttributeValues(values).
+                    withReturnValues(returnVersion ? ReturnValue.UPDATED_NEW : ReturnValue.NONE);
+    }
+    
+    private static UpdateItemRequest withCondition(UpdateItemRequest request, String condition, 
+                                                   Map<String, AttributeValue> conditionValues) {
+        request.getExpressionAttributeValues().putAll(conditionValues);
+        return request.withConditionExpression(condition);
+    }
+    
+    private DeleteItemRequest newDeleteRequest(String key, String condition, 
+                                               String name, String attributeName, 
+                                               Map<String, AttributeValue> conditionValues) {
+        return new DeleteItemRequest().
+                    withTableName(DYNAMO_DB_TABLE_NAME).
+                    withKey(keyOf(key)).
+                    withConditionExpression(condition).
+                    withExpressionAttributeNames(Collections.singletonMap(name, attributeName)).
+                    withExpressionAttributeValues(conditionValues);
+    }
+    
+    private static long versionOf(UpdateItemResult result) {
+        return Long.parseLong(result.getAttributes().get("version").getN());
+    }
+    
+    private static AttributeValue numberOf(long number) {
+        return new AttributeValue().withN(Long.toString(number));
+    }
+    
+    private static AttributeValue binaryOf(ByteBuffer data) {
+        return new AttributeValue().withB(data);
+    }
+
+    @Override
+    public void remove(String key) {
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.add(key, null, Entry.NO_EXPIRATION);
+        } else {
+            awaitTableAvailable();
+            DYNAMO_DB_TABLE.deleteItem("id", key);
+        }
+        removes.increment();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value has been removed from global cache with key %s", key));
+        }
+    }
+    
+    @Override
+    public <V> SambaFuture<V> getAsync(final String key) {
+        final SambaFuture<V> future = new SambaFuture<V>();
+        getEntryAsync(key).addListener(new SambaFutureListener<Entry>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public void onSuccess(Entry entry) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(
+                            String.format("Value %s has been retrieved asynchronously from global cache with key %s", 
+                                          key, entry.value));
+                }
+                future.complete((V) entry.value);
+            }
+            
+            @Override
+            public void onFailure(Throwable error) {
+                future.fail(error);
+            }
+        });
+        return future;
+    }
+    
+    SambaFuture<Entry> getEntryAsync(String key) {
+        Entry pendingEntry = pendingEntryOf(key);
+        if (pendingEntry != null) {
+            return SambaFuture.completed(pendingEntry);
+        }
+        final SambaFuture<Entry> future = new SambaFuture<Entry>();
+        final GetItemRequest request = 
+                new GetItemRequest().
+                        withTableName(DYNAMO_DB_TABLE_NAME).
+                        withKey(keyOf(key)).
+                        withConsistentRead(true);
+        whenTableAvailable(future, new Runnable() {
+            @Override
+            public void run() {
+                DYNAMO_DB.getItemAsync(request, new AsyncHandler<GetItemRequest, GetItemResult>() {
+                    @Override
+                    public void onSuccess(GetItemRequest request, GetItemResult result) {
+                        try {
+                            future.complete(toEntry(result.getItem()));
+                        } catch (Throwable t) {
+                            future.fail(t);
+                        }
+                    }
+                    
+                    @Override
+                    public void onError(Exception e) {
+                        future.fail(e);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+    
+    @Override
+    public SambaFuture<Void> putAsync(String key, Object value) {
+        if (value == null) {
+            return removeAsync(key);
+        }
+        final SambaFuture<Void> future = new SambaFuture<Void>();
+        putEntryAsync(key, value, false).addListener(new SambaFutureListener<Entry>() {
+            @Override
+            public void onSuccess(Entry entry) {
+                future.complete(null);
+            }
+            
+            @Override
+            public void onFailure(Throwable error) {
+                future.fail(error);
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * Puts the (non-null) value asynchronously and completes the returned future with the written entry. 
+     * Its version is only known if it is requested as in {@link #putEntry(String, Object, long, boolean)}.
+     */
+    SambaFuture<Entry> putEntryAsync(String key, final Object value, final boolean returnVersion) {
+        if (writeBehindBuffer != null) {
+            return SambaFuture.completed(putEntry(key, value, Entry.NO_EXPIRATION, false));
+        }
+        final SambaFuture<Entry> future = new SambaFuture<Entry>();
+        final UpdateItemRequest request = 
+                newWriteRequest(key, serialize(key, value), Entry.NO_EXPIRATION, returnVersion);
+        whenTableAvailable(future, new Runnable() {
+            @Override
+            public void run() {
+                DYNAMO_DB.updateItemAsync(request, new AsyncHandler<UpdateItemRequest, UpdateItemResult>() {
+                    @Override
+                    public void onSuccess(UpdateItemRequest request, UpdateItemResult result) {
+                        future.complete(
+                                new Entry(value, Entry.NO_EXPIRATION, 
+                                          returnVersion ? versionOf(result) : SambaValueProxy.NO_VERSION));
+                    }
+                    
+                    @Override
+                    public void onError(Exception e) {
+                        future.fail(e);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+    
+    @Override
+    public SambaFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue) {
+        final SambaFuture<Boolean> future = new SambaFuture<Boolean>();
+        replaceEntryAsync(key, oldValue, newValue, false).addListener(new SambaFutureListener<Entry>() {
+            @Override
+            public void onSuccess(Entry newEntry) {
+                future.complete(newEntry != null);
+            }
+            
+            @Override
+            public void onFailure(Throwable error) {
+                future.fail(error);
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * Replaces the old value asynchronously as in {@link #replaceEntry(String, Object, Object, boolean)} 
+     * and completes the returned future with the new entry or with <code>null</code> if it couldn't be replaced.
+     */
+    SambaFuture<Entry> replaceEntryAsync(String key, Object oldValue, final Object newValue, 
+                                         final boolean returnVersion) {
+        // Flushing the pending write blocks, but it is only needed in write-behind mode
+        flushPendingWrite(key);
+        final SambaFuture<Entry> future = new SambaFuture<Entry>();
+        Map<String, AttributeValue> conditionValues = new HashMap<String, AttributeValue>(4);
+        conditionValues.put(":now", numberOf(System.currentTimeMillis()));
+        if (oldValue == null && newValue != null) {
+            final UpdateItemRequest request = 
+                    withCondition(
+                            newWriteRequest(key, serialize(key, newValue), Entry.NO_EXPIRATION, returnVersion), 
+                            ABSENT_OR_EXPIRED_CONDITION, conditionValues);
+            whenTableAvailable(future, new Runnable() {
+                @Override
+                public void run() {
+                    DYNAMO_DB.updateItemAsync(request, new ConditionalWriteHandler(future, newValue, returnVersion));
+                }
+            });
+        } else if (oldValue != null && newValue == null) {
+            conditionValues.put(":old", binaryOf(serialize(key, oldValue)));
+            final DeleteItemRequest request = 
+                    newDeleteRequest(key, UNEXPIRED_DATA_EQUALS_CONDITION, "#d", "data", conditionValues);
+            whenTableAvailable(future, new Runnable() {
+                @Override
+                public void run() {
+                    DYNAMO_DB.deleteItemAsync(request, new ConditionalDeleteHandler(future));
+                }
+            });
+        } else if (oldValue != null && newValue != null) {
+            conditionValues.put(":old", binaryOf(serialize(key, oldValue)));
+            final UpdateItemRequest request = 
+                    withCondition(
+                            newWriteRequest(key, serialize(key, newValue), Entry.NO_EXPIRATION, returnVersion), 
+                            UNEXPIRED_DATA_EQUALS_CONDITION, conditionValues);
+            whenTableAvailable(future, new Runnable() {
+                @Override
+                public void run() {
+                    DYNAMO_DB.updateItemAsync(request, new ConditionalWriteHandler(future, newValue, returnVersion));
+                }
+            });
+        } else {
+            future.complete(null);
+        }
+        return future;
+    }
+    
+    @Override
+    public SambaFuture<Void> removeAsync(String key) {
+        if (writeBehindBuffer != null) {
+            remove(key);
+            return SambaFuture.completed(null);
+        }
+        final SambaFuture<Void> future = new SambaFuture<Void>();
+        final DeleteItemRequest request = 
+                new DeleteItemRequest().
+                        withTableName(DYNAMO_DB_TABLE_NAME).
+                        withKey(keyOf(key));
+        whenTableAvailable(future, new Runnable() {
+            @Override
+            public void run() {
+                DYNAMO_DB.deleteItemAsync(request, new AsyncHandler<DeleteItemRequest, DeleteItemResult>() {
+                    @Override
+                    public void onSuccess(DeleteItemRequest request, DeleteItemResult result) {
+                        future.complete(null);
+                    }
+                    
+                    @Override
+                    public void onError(Exception e) {
+                        future.fail(e);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+    
+    private Map<String, AttributeValue> keyOf(String key) {
+        return Collections.singletonMap("id", new AttributeValue(key));
+    }
+    
+    /**
+     * Completes the future with the new entry on success 
+     * and with <code>null</code> on conditional check failure.
+     */
+    private abstract static class ConditionalAsyncHandler<REQ extends AmazonWebServiceRequest, RES>
+            implements AsyncHandler<REQ, RES> {
+        
+        private final SambaFuture<Entry> future;
+        
+        private ConditionalAsyncHandler(SambaFuture<Entry> future) {
+            this.future = future;
+        }
+        
+        abstract Entry newEntryOf(RES result);
+        
+        @Override
+        public void onSuccess(REQ request, RES result) {
+            future.complete(newEntryOf(result));
+        }
+        
+        @Override
+        public void onError(Exception e) {
+            if (e instanceof ConditionalCheckFailedException) {
+                future.complete(null);
+            } else {
+                future.fail(e);
+            }
+        }
+        
+    }
+    
+    private static class ConditionalWriteHandler extends ConditionalAsyncHandler<UpdateItemRequest, UpdateItemResult> {
+        
+        private final Object newValue;
+        private final boolean returnVersion;
+        
+        private ConditionalWriteHandler(SambaFuture<Entry> future, Object newValue, boolean returnVersion) {
+            super(future);
+            this.newValue = newValue;
+            this.returnVersion = returnVersion;
+        }
+        
+        @Override
+        Entry newEntryOf(UpdateItemResult result) {
+            return new Entry(newValue, Entry.NO_EXPIRATION, 
+                             returnVersion ? versionOf(result) : SambaValueProxy.NO_VERSION);
+        }
+        
+    }
+    
+    private static class ConditionalDeleteHandler extends ConditionalAsyncHandler<DeleteItemRequest, DeleteItemResult> {
+        
+        private ConditionalDeleteHandler(SambaFuture<Entry> future) {
+            super(future);
+        }
+        
+        @Override
+        Entry newEntryOf(DeleteItemResult result) {
+            return Entry.ABSENT;
+        }
+        
+    }
+    
+    @Override
+    public Map<String, Object> getAll(Collection<String> keys) {
+        Map<String, Entry> entries = getAllEntries(keys);
+        Map<String, Object> values = new HashMap<String, Object>(entries.size());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            values.put(e.getKey(), e.getValue().value);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d values have been retrieved from global cache for %d keys", 
+                                  values.size(), keys.size()));
+        }
+        return values;
+    }
+    
+    /**
+     * Gets the present (and not expired) entries of the given keys 
+     * through "BatchGetItem" requests in chunks.
+     */
+    Map<String, Entry> getAllEntries(Collection<String> keys) {
+        Map<String, Entry> entries = new HashMap<String, Entry>(keys.size());
+        // "BatchGetItem" rejects requests with duplicate keys
+        Set<String> uniqueKeys = new LinkedHashSet<String>(keys);
+        if (writeBehindBuffer != null) {
+            Iterator<String> iter = uniqueKeys.iterator();
+            while (iter.hasNext()) {
+                String key = iter.next();
+                Entry pendingEntry = pendingEntryOf(key);
+                if (pendingEntry != null) {
+                    if (pendingEntry.value != null) {
+                        entries.put(key, pendingEntry);
+                    }
+                    iter.remove();
+                }
+            }
+            if (uniqueKeys.isEmpty()) {
+                return entries;
+            }
+        }
+        awaitTableAvailable();
+        Iterator<String> keysIter = uniqueKeys.iterator();
+        while (keysIter.hasNext()) {
+            TableKeysAndAttributes keysAndAttributes = 
+                    new TableKeysAndAttributes(DYNAMO_DB_TABLE_NAME).
+                            withConsistentRead(true);
+            for (int i = 0; i < BATCH_GET_ITEM_LIMIT && keysIter.hasNext(); i++) {
+                keysAndAttributes.addHashOnlyPrimaryKey("id", keysIter.next());
+            }
+            BatchGetItemOutcome outcome = DYNAMO_DB_DOCUMENT.batchGetItem(keysAndAttributes);
+            for (int retry = 0; ; retry++) {
+                collectEntries(outcome, entries);
+                Map<String, KeysAndAttributes> unprocessedKeys = outcome.getUnprocessedKeys();
+                if (unprocessedKeys == null || unprocessedKeys.isEmpty()) {
+                    break;
+                }
+                backoffForUnprocessed(retry);
+                outcome = DYNAMO_DB_DOCUMENT.batchGetItemUnprocessed(unprocessedKeys);
+            }
+        }
+        return entries;
+    }
+    
+    private void collectEntries(BatchGetItemOutcome outcome, Map<String, Entry> entries) {
+        List<Map<String, AttributeValue>> items = 
+                outcome.getBatchGetItemResult().getResponses().get(DYNAMO_DB_TABLE_NAME);
+        if (items != null) {
+            for (Map<String, AttributeValue> item : items) {
+                Entry entry = toEntry(item);
+                if (entry.value != null) {
+                    entries.put(item.get("id").getS(), entry);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void putAll(Map<String, ?> entries) {
+        if (writeBehindBuffer != null) {
+            for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                writeBehindBuffer.add(entry.getKey(), entry.getValue(), Entry.NO_EXPIRATION);
+            }
+            return;
+        }
+        List<Item> itemsToPut = new ArrayList<Item>(entries.size());
+        List<String> keysToDelete = new ArrayList<String>();
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value == null) {
+                keysToDelete.add(key);
+            } else {
+                itemsToPut.add(newItem(key, value, Entry.NO_EXPIRATION));
+            }
+        }
+        writeAll(itemsToPut, keysToDelete);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d entries have been put into global cache", entries.size()));
+        }
+    }
+    
+    /**
+     * Creates the item to be written in batch. 
+     * Versions cannot be incremented in batch and the stored version is not known here, 
+     * so any version given here might be the same with (or lower than) a previous version of the key 
+     * and a versioned update could succeed against another value. 
+     * So the item is written without version (as unordered), then the versioned paths fall back to its value 
+     * and the next single write starts its version over as if the key is created again.
+     */
+    private Item newItem(String key, Object value, long expirationTime) {
+        Item item = 
+                new Item().
+                    withPrimaryKey("id", key).
+                    withBinary("data", serialize(key, value)).
+                    with("source", UUID);
+        if (expirationTime != Entry.NO_EXPIRATION) {
+            item.withLong("expirationTime", expirationTime);
+        }
+        return item;
+    }
+    
+    @Override
+    public void removeAll(Collection<String> keys) {
+        if (writeBehindBuffer != null) {
+            for (String key : keys) {
+                writeBehindBuffer.add(key, null, Entry.NO_EXPIRATION);
+            }
+            return;
+        }
+        // "BatchWriteItem" rejects requests with duplicate keys
+        writeAll(new ArrayList<Item>(0), new ArrayList<String>(new LinkedHashSet<String>(keys)));
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d keys have been removed from global cache", keys.size()));
+        }
+    }
+    
+    /**
+     * Writes the coalesced pending writes of write-behind mode in batches. 
+     * Already expired ones are written as removals, so they don't leave the previous values behind.
+     */
+    private void writePending(Map<String, PendingWrite> writes) {
+        List<Item> itemsToPut = new ArrayList<Item>(writes.size());
+        List<String> keysToDelete = new ArrayList<String>();
+        for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+            PendingWrite pendingWrite = entry.getValue();
+            if (pendingWrite.value == null || pendingWrite.isExpired()) {
+                keysToDelete.add(entry.getKey());
+            } else {
+                itemsToPut.add(newItem(entry.getKey(), pendingWrite.value, pendingWrite.expirationTime));
+            }
+        }
+        writeAll(itemsToPut, keysToDelete);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d pending writes have been written into global cache", writes.size()));
+        }
+    }
+    
+    private void writeAll(List<Item> itemsToPut, List<String> keysToDelete) {
+        awaitTableAvailable();
+        Iterator<Item> itemsIter = itemsToPut.iterator();
+        Iterator<String> keysIter = keysToDelete.iterator();
+        while (itemsIter.hasNext() || keysIter.hasNext()) {
+            TableWriteItems writeItems = new TableWriteItems(DYNAMO_DB_TABLE_NAME);
+            int count = 0;
+            for (; count < BATCH_WRITE_ITEM_LIMIT && itemsIter.hasNext(); count++) {
+                writeItems.addItemToPut(itemsIter.next());
+            }
+            for (; count < BATCH_WRITE_ITEM_LIMIT && keysIter.hasNext(); count++) {
+                writeItems.addHashOnlyPrimaryKeyToDelete("id", keysIter.next());
+            }
+            BatchWriteItemOutcome outcome = DYNAMO_DB_DOCUMENT.batchWriteItem(writeItems);
+            for (int retry = 0; ; retry++) {
+                Map<String, List<WriteRequest>> unprocessedItems = outcome.getUnprocessedItems();
+                if (unprocessedItems == null || unprocessedItems.isEmpty()) {
+                    break;
+                }
+                backoffForUnprocessed(retry);
+                outcome = DYNAMO_DB_DOCUMENT.batchWriteItemUnprocessed(unprocessedItems);
+            }
+        }
+    }
+    
+    private void backoffForUnprocessed(int retry) {
+        if (retry >= BATCH_MAX_RETRY_COUNT) {
+            throw new IllegalStateException(
+                    "Unprocessed items still remain after " + retry + " retries " + 
+                    "on DynamoDB table " + DYNAMO_DB_TABLE_NAME);
+        }
+        // Unprocessed items are mostly caused by exceeding provisioned throughput, 
+        // so back off exponentially with full jitter not to retry together with the other throttled clients
+        long maxBackoff = Math.min(BATCH_RETRY_INITIAL_BACKOFF_MILLIS << retry, BATCH_RETRY_MAX_BACKOFF_MILLIS);
+        long backoff = (long) (BACKOFF_JITTER_RANDOM.nextDouble() * maxBackoff);
+        try {
+            Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying unprocessed items", e);
+        }
+    }
+    
+    @Override
+    public void clear() {
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.clear();
+        }
+        awaitTableAvailable();
         ItemCollection<ScanOutcome> items = DYNAMO_DB_TABLE.scan();
         IteratorSupport<Item, ScanOutcome> itemsIter = items.iterator();
         while (itemsIter.hasNext()) {
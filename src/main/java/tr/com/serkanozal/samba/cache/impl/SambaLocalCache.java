@@ -15,7 +15,27 @@
  */
 package tr.com.serkanozal.samba.cache.impl;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
@@ -24,13 +44,152 @@ import tr.com.serkanozal.samba.SambaValueProxy;
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaEntryWeigher;
+import tr.com.serkanozal.samba.cache.SambaFuture;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+import tr.com.serkanozal.samba.metrics.SambaMetricsRegistry;
 
 public class SambaLocalCache implements SambaCache {
 
     private static final Logger LOGGER = Logger.getLogger(SambaLocalCache.class);
     
+    public static final long UNBOUNDED = -1;
+    public static final long NO_IDLE_TIMEOUT = -1;
+    public static final long NO_OFF_HEAP = 0;
+    
+    // On-heap entries are just the hot set in front of the off-heap store, so they are bounded by default
+    private static final long DEFAULT_HOT_SET_SIZE = 1024;
+    private static final int TIER_LOCK_COUNT = 64;
+    private static final long EXPIRATION_TICK_MILLIS = 100;
+    private static final ScheduledExecutorService EXPIRATION_SCHEDULER = 
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = delegatedThreadFactory.newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    
     private final NonBlockingHashMap<String, LocalValueWrapper> map = 
             new NonBlockingHashMap<String, LocalValueWrapper>();
+    private final EntryPolicy entryPolicy;
+    private final SambaMetrics metrics;
+    private final SambaCounter hits;
+    private final SambaCounter misses;
+    private final SambaCounter puts;
+    private final SambaCounter removes;
+    private final SambaCounter replaceSuccesses;
+    private final SambaCounter replaceFailures;
+    private final SambaCounter evictions;
+    private final SambaCounter expirations;
+    private final SambaCounter promotions;
+    private final SambaCounter demotions;
+    // Off-heap tier is optional, so these are all "null" if it is disabled
+    private final OffHeapStore offHeapStore;
+    private final OffHeapStore.Codec offHeapCodec;
+    private final ReentrantLock[] tierLocks;
+    
+    public SambaLocalCache() {
+        this(SambaProperties.getSambaProperties(), "cache.local");
+    }
+    
+    public SambaLocalCache(long maximumSize) {
+        this(maximumSize, null);
+    }
+    
+    public SambaLocalCache(long maximumWeight, SambaEntryWeigher weigher) {
+        this(maximumWeight, weigher, NO_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    
+    public SambaLocalCache(long maximumWeight, SambaEntryWeigher weigher, 
+                           long idleTimeout, TimeUnit idleTimeUnit) {
+        this(maximumWeight, weigher, idleTimeout, idleTimeUnit, NO_OFF_HEAP, null, null, "cache.local");
+    }
+    
+    SambaLocalCache(Properties props, String prefix) {
+        this(props, prefix, null);
+    }
+    
+    /**
+     * Creates the local cache by the properties with the given prefix. 
+     * If the off-heap (or disk spill) tier is enabled, values are serialized by the given codec 
+     * or by a local Kryo based one if the codec is not specified.
+     */
+    SambaLocalCache(Properties props, String prefix, OffHeapStore.Codec offHeapCodec) {
+        this(props, prefix, 
+             offHeapBudgetOf(
+                     SambaProperties.getLong(props, prefix + ".offHeapMemoryBudget", NO_OFF_HEAP), 
+                     SambaProperties.getLong(props, prefix + ".diskSpillBudget", NO_OFF_HEAP)), 
+             SambaProperties.getLong(props, prefix + ".diskSpillBudget", NO_OFF_HEAP) > 0
+                 ? new File(SambaProperties.getString(
+                                props, prefix + ".diskSpillDirectory", System.getProperty("java.io.tmpdir")))
+                 : null, 
+             offHeapCodec);
+    }
+    
+    private SambaLocalCache(Properties props, String prefix, 
+                            long offHeapBudget, File spillDirectory, OffHeapStore.Codec offHeapCodec) {
+        this(SambaProperties.getLong(
+                    props, prefix + ".maximumSize", 
+                    offHeapBudget > 0 ? DEFAULT_HOT_SET_SIZE : UNBOUNDED), 
+             null, 
+             SambaProperties.getLong(props, prefix + ".idleTimeoutMillis", NO_IDLE_TIMEOUT), 
+             TimeUnit.MILLISECONDS, 
+             offHeapBudget, 
+             spillDirectory, 
+             offHeapBudget > 0 && offHeapCodec == null ? new KryoCodec() : offHeapCodec, 
+             prefix);
+    }
+    
+    private static long offHeapBudgetOf(long offHeapMemoryBudget, long diskSpillBudget) {
+        if (offHeapMemoryBudget > 0 && diskSpillBudget > 0) {
+            // Entries are moved into a single lower tier, so they cannot be spread over both
+            throw new IllegalArgumentException("Off-heap memory and disk spill tiers cannot be enabled together");
+        }
+        return diskSpillBudget > 0 ? diskSpillBudget : offHeapMemoryBudget;
+    }
+    
+    private SambaLocalCache(long maximumWeight, SambaEntryWeigher weigher, 
+                            long idleTimeout, TimeUnit idleTimeUnit, 
+                            long offHeapBudget, File spillDirectory, OffHeapStore.Codec offHeapCodec, 
+                            String metricsName) {
+        metrics = SambaMetricsRegistry.register(metricsName);
+        hits = metrics.counter("hits");
+        misses = metrics.counter("misses");
+        puts = metrics.counter("puts");
+        removes = metrics.counter("removes");
+        replaceSuccesses = metrics.counter("replaceSuccesses");
+        replaceFailures = metrics.counter("replaceFailures");
+        evictions = metrics.counter("evictions");
+        expirations = metrics.counter("expirations");
+        promotions = metrics.counter("promotions");
+        demotions = metrics.counter("demotions");
+        if (offHeapBudget > 0) {
+            if (maximumWeight <= 0) {
+                throw new IllegalArgumentException(
+                        "On-heap entries must be bounded to move the evicted ones to the off-heap tier");
+            }
+            this.offHeapStore = new OffHeapStore(offHeapBudget, spillDirectory, metrics);
+            this.offHeapCodec = offHeapCodec;
+            this.tierLocks = new ReentrantLock[TIER_LOCK_COUNT];
+            for (int i = 0; i < TIER_LOCK_COUNT; i++) {
+                tierLocks[i] = new ReentrantLock();
+            }
+        } else {
+            this.offHeapStore = null;
+            this.offHeapCodec = null;
+            this.tierLocks = null;
+        }
+        entryPolicy = 
+                new EntryPolicy(
+                        maximumWeight, 
+                        weigher, 
+                        idleTimeout > 0 ? idleTimeUnit.toNanos(idleTimeout) : NO_IDLE_TIMEOUT);
+    }
     
     @Override
     public SambaCacheType getType() {
@@ -46,10 +205,14 @@ public class SambaLocalCache implements SambaCache {
     @Override
     public Object get(String key) {
         Object value = null;
-        SambaValueProxy valueProxy = unwrapValue(map.get(key));
+        SambaValueProxy valueProxy = unwrapValue(getUnexpired(key));
         if (valueProxy != null) {
             value = valueProxy.getValue();
+            hits.increment();
+        } else {
+            misses.increment();
         }
+        entryPolicy.recordAccess(key);
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Value %s has been retrieved from local cache with key %s", key, value));
@@ -65,13 +228,72 @@ public class SambaLocalCache implements SambaCache {
 
     @Override
     public void put(String key, Object value) {
+        put(key, value, null, SambaValueProxy.NO_VERSION, LocalValueWrapper.NO_EXPIRATION);
+    }
+    
+    @Override
+    public void put(String key, Object value, long ttl, TimeUnit timeUnit) {
+        put(key, value, null, SambaValueProxy.NO_VERSION, expirationTimeOf(ttl, timeUnit));
+    }
+    
+    /**
+     * Puts the value with the version of its remote copy, 
+     * so it can be conditionally updated by version later.
+     */
+    void putVersioned(String key, Object value, long version) {
+        put(key, value, null, version, LocalValueWrapper.NO_EXPIRATION);
+    }
+    
+    void putVersioned(String key, Object value, long version, long ttl, TimeUnit timeUnit) {
+        put(key, value, null, version, expirationTimeOf(ttl, timeUnit));
+    }
+    
+    /**
+     * Puts the value along with its already serialized form (if there is), 
+     * which is moved to the off-heap tier as is when the value is evicted from the heap.
+     */
+    void putVersioned(String key, Object value, ByteBuffer data, long version) {
+        put(key, value, data, version, LocalValueWrapper.NO_EXPIRATION);
+    }
+    
+    void putVersioned(String key, Object value, ByteBuffer data, long version, long ttl, TimeUnit timeUnit) {
+        put(key, value, data, version, expirationTimeOf(ttl, timeUnit));
+    }
+    
+    private static long expirationTimeOf(long ttl, TimeUnit timeUnit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("TTL must be positive: " + ttl);
+        }
+        return System.nanoTime() + timeUnit.toNanos(ttl);
+    }
+    
+    private void put(String key, Object value, ByteBuffer data, long version, long expirationTime) {
         if (value == null) {
             remove(key);
         } else {
-            SambaValueProxy oldValueProxy = unwrapValue(map.put(key, wrapValue(new SambaValueProxy(value))));
+            // Serialized form is only useful (and so only retained) when there is an off-heap tier
+            LocalValueWrapper newValueWrapper = 
+                    wrapValue(key, new SambaValueProxy(value, version), expirationTime, 
+                              offHeapStore != null ? data : null);
+            LocalValueWrapper oldValueWrapper;
+            if (tierLocks != null) {
+                ReentrantLock tierLock = tierLockOf(key);
+                tierLock.lock();
+                try {
+                    oldValueWrapper = map.put(key, newValueWrapper);
+                    offHeapStore.remove(key);
+                } finally {
+                    tierLock.unlock();
+                }
+            } else {
+                oldValueWrapper = map.put(key, newValueWrapper);
+            }
+            SambaValueProxy oldValueProxy = unwrapValue(oldValueWrapper);
             if (oldValueProxy != null) {
                 oldValueProxy.invalidateValue();
             }
+            entryPolicy.onReplace(oldValueWrapper, newValueWrapper);
+            puts.increment();
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(
                         String.format("Value %s has been put into local cache with key %s", key, value));
@@ -81,13 +303,45 @@ public class SambaLocalCache implements SambaCache {
 
     @Override
     public boolean replace(String key, Object oldValue, Object newValue) {
+        boolean replaced;
+        if (tierLocks != null) {
+            // Entry must not be moved between the tiers in the middle of the comparison
+            ReentrantLock tierLock = tierLockOf(key);
+            tierLock.lock();
+            try {
+                replaced = doReplace(key, oldValue, newValue);
+            } finally {
+                tierLock.unlock();
+            }
+        } else {
+            replaced = doReplace(key, oldValue, newValue);
+        }
+        if (replaced) {
+            replaceSuccesses.increment();
+        } else {
+            replaceFailures.increment();
+        }
+        if (replaced && LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Old value %s has been replaced with new value %s " + 
+                                  "assigned to key %s", oldValue, newValue, key));
+        }
+        return replaced;
+    }
+    
+    private boolean doReplace(String key, Object oldValue, Object newValue) {
         boolean replaced = false;
+        // Expired but not yet purged entry must not take part in the comparison.
+        // Off-heap entry is also promoted to be compared and replaced on the heap.
+        getUnexpired(key);
         if (oldValue == null && newValue != null) {
-            if (map.putIfAbsent(key, wrapValue(new SambaValueProxy(newValue))) == null) {
+            LocalValueWrapper newValueWrapper = wrapValue(key, new SambaValueProxy(newValue));
+            if (map.putIfAbsent(key, newValueWrapper) == null) {
                 replaced = true;
+                entryPolicy.onReplace(null, newValueWrapper);
             }
         } else if (oldValue != null && newValue == null) {
-            LocalValueWrapper oldValueWraper = wrapValue(new SambaValueProxy(oldValue));
+            LocalValueWrapper oldValueWraper = wrapValue(null, new SambaValueProxy(oldValue));
             replaced = map.remove(key, oldValueWraper);
             if (replaced) {
                 assert oldValueWraper.equalValueWrapper != null;
@@ -96,10 +350,11 @@ public class SambaLocalCache implements SambaCache {
                 if (oldValueProxy != null) {
                     oldValueProxy.invalidateValue();
                 }
+                entryPolicy.onReplace(oldValueWraper.equalValueWrapper, null);
             }
         } else if (oldValue != null && newValue != null) {
-            LocalValueWrapper oldValueWraper = wrapValue(new SambaValueProxy(oldValue));
-            LocalValueWrapper newValueWrapper = wrapValue(new SambaValueProxy(newValue));
+            LocalValueWrapper oldValueWraper = wrapValue(null, new SambaValueProxy(oldValue));
+            LocalValueWrapper newValueWrapper = wrapValue(key, new SambaValueProxy(newValue));
             replaced = map.replace(key, oldValueWraper, newValueWrapper);
             if (replaced) {
                 assert oldValueWraper.equalValueWrapper != null;
@@ -108,22 +363,35 @@ public class SambaLocalCache implements SambaCache {
                 if (oldValueProxy != null) {
                     oldValueProxy.invalidateValue();
                 }
+                entryPolicy.onReplace(oldValueWraper.equalValueWrapper, newValueWrapper);
             }
         }    
-        if (replaced && LOGGER.isDebugEnabled()) {
-            LOGGER.debug(
-                    String.format("Old value %s has been replaced with new value %s " + 
-                                  "assigned to key %s", oldValue, newValue, key));
-        }
         return replaced;
     }
 
     @Override
     public void remove(String key) {
-        SambaValueProxy oldValueProxy = unwrapValue(map.remove(key));
+        LocalValueWrapper oldValueWrapper;
+        if (tierLocks != null) {
+            ReentrantLock tierLock = tierLockOf(key);
+            tierLock.lock();
+            try {
+                oldValueWrapper = map.remove(key);
+                offHeapStore.remove(key);
+            } finally {
+                tierLock.unlock();
+            }
+        } else {
+            oldValueWrapper = map.remove(key);
+        }
+        SambaValueProxy oldValueProxy = unwrapValue(oldValueWrapper);
         if (oldValueProxy != null) {
             oldValueProxy.invalidateValue();
         }
+        if (oldValueWrapper != null) {
+            entryPolicy.onReplace(oldValueWrapper, null);
+        }
+        removes.increment();
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Value has been removed from local cache with key %s", key));
@@ -137,13 +405,398 @@ public class SambaLocalCache implements SambaCache {
             String key = iter.next();
             remove(key);
         }
+        if (offHeapStore != null) {
+            // Off-heap entries have no value proxy given out, so there is nothing to invalidate
+            offHeapStore.clear();
+        }
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Local cache has been cleared");
         }
     }
     
-    private LocalValueWrapper wrapValue(SambaValueProxy valueProxy) {
-        return new LocalValueWrapper(valueProxy);
+    /**
+     * Clears the cache and releases its resources (such as its expiration ticker, metrics 
+     * and its off-heap tier or spill file), so it should not be used anymore.
+     */
+    public void close() {
+        clear();
+        if (offHeapStore != null) {
+            offHeapStore.close();
+        }
+        entryPolicy.close();
+        SambaMetricsRegistry.unregister(metrics);
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> SambaFuture<V> getAsync(String key) {
+        // Local operations never block, so just complete them in place
+        return SambaFuture.completed((V) get(key));
+    }
+    
+    @Override
+    public SambaFuture<Void> putAsync(String key, Object value) {
+        put(key, value);
+        return SambaFuture.completed(null);
+    }
+    
+    @Override
+    public SambaFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue) {
+        return SambaFuture.completed(replace(key, oldValue, newValue));
+    }
+    
+    @Override
+    public SambaFuture<Void> removeAsync(String key) {
+        remove(key);
+        return SambaFuture.completed(null);
+    }
+    
+    @Override
+    public Map<String, Object> getAll(Collection<String> keys) {
+        Map<String, Object> values = new HashMap<String, Object>(keys.size());
+        for (String key : keys) {
+            Object value = get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+    
+    @Override
+    public void putAll(Map<String, ?> entries) {
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    @Override
+    public void removeAll(Collection<String> keys) {
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+    
+    @Override
+    public SambaValueProxy getVersioned(String key) {
+        return (SambaValueProxy) get(key);
+    }
+    
+    @Override
+    public SambaValueProxy refreshVersioned(String key) {
+        return getVersioned(key);
+    }
+    
+    @Override
+    public boolean replaceVersioned(String key, long expectedVersion, Object newValue) {
+        if (tierLocks != null) {
+            // Entry must not be moved between the tiers in the middle of the comparison
+            ReentrantLock tierLock = tierLockOf(key);
+            tierLock.lock();
+            try {
+                return doReplaceVersioned(key, expectedVersion, newValue);
+            } finally {
+                tierLock.unlock();
+            }
+        } else {
+            return doReplaceVersioned(key, expectedVersion, newValue);
+        }
+    }
+    
+    /**
+     * Only the entries put with the versions of their remote copies (such as near-cache entries) are versioned, 
+     * the others have no version ({@link SambaValueProxy#NO_VERSION}) to be expected. 
+     * Version of the current entry is checked first and then it is replaced by comparing its value, 
+     * so an equal value put concurrently with another version might also be replaced.
+     */
+    private boolean doReplaceVersioned(String key, long expectedVersion, Object newValue) {
+        SambaValueProxy currentValueProxy = unwrapValue(getUnexpired(key));
+        if (currentValueProxy == null || currentValueProxy.getVersion() != expectedVersion) {
+            replaceFailures.increment();
+            return false;
+        }
+        Object currentValue = currentValueProxy.getValue();
+        if (currentValue == SambaValueProxy.INVALIDATED) {
+            // Replaced concurrently
+            replaceFailures.increment();
+            return false;
+        }
+        return replace(key, currentValue, newValue);
+    }
+    
+    @Override
+    public long addAndGet(String key, long delta) {
+        for (;;) {
+            Object currentValue = getCurrentValue(key);
+            if (currentValue != null && !(currentValue instanceof Number)) {
+                throw new IllegalStateException("Value is not a number: " + currentValue.getClass().getName());
+            }
+            long newValue = (currentValue != null ? ((Number) currentValue).longValue() : 0) + delta;
+            if (replace(key, currentValue, newValue)) {
+                return newValue;
+            }
+        }
+    }
+    
+    @Override
+    public void appendToList(String key, Collection<?> elements) {
+        if (elements.isEmpty()) {
+            return;
+        }
+        for (;;) {
+            Object currentValue = getCurrentValue(key);
+            if (currentValue != null && !(currentValue instanceof List)) {
+                throw new IllegalStateException("Value is not a list: " + currentValue.getClass().getName());
+            }
+            // Current value might have been read by others, so it is copied instead of being updated
+            List<Object> newValue = new ArrayList<Object>();
+            if (currentValue != null) {
+                newValue.addAll((List<?>) currentValue);
+            }
+            newValue.addAll(elements);
+            if (replace(key, currentValue, newValue)) {
+                return;
+            }
+        }
+    }
+    
+    @Override
+    public void addToSet(String key, Collection<?> elements) {
+        updateSet(key, elements, true);
+    }
+    
+    @Override
+    public void removeFromSet(String key, Collection<?> elements) {
+        updateSet(key, elements, false);
+    }
+    
+    private void updateSet(String key, Collection<?> elements, boolean add) {
+        if (elements.isEmpty()) {
+            return;
+        }
+        for (;;) {
+            Object currentValue = getCurrentValue(key);
+            if (currentValue != null && !(currentValue instanceof Set)) {
+                throw new IllegalStateException("Value is not a set: " + currentValue.getClass().getName());
+            }
+            if (currentValue == null && !add) {
+                return;
+            }
+            Set<Object> newValue = new LinkedHashSet<Object>();
+            if (currentValue != null) {
+                newValue.addAll((Set<?>) currentValue);
+            }
+            if (add) {
+                newValue.addAll(elements);
+            } else {
+                newValue.removeAll(elements);
+            }
+            if (replace(key, currentValue, newValue.isEmpty() ? null : newValue)) {
+                return;
+            }
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> V putIfAbsent(String key, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null");
+        }
+        for (;;) {
+            if (replace(key, null, value)) {
+                return null;
+            }
+            Object existingValue = getCurrentValue(key);
+            if (existingValue != null) {
+                return (V) existingValue;
+            }
+        }
+    }
+    
+    /**
+     * Gets the current value (skipping the ones invalidated concurrently) to be compared and replaced.
+     */
+    private Object getCurrentValue(String key) {
+        for (;;) {
+            SambaValueProxy valueProxy = unwrapValue(getUnexpired(key));
+            if (valueProxy == null) {
+                return null;
+            }
+            Object value = valueProxy.getValue();
+            if (value != SambaValueProxy.INVALIDATED) {
+                return value;
+            }
+        }
+    }
+    
+    @Override
+    public void flush() {
+        // Writes are applied immediately, nothing to flush
+    }
+    
+    @Override
+    public void setSerializer(String key, SambaSerializer serializer) {
+        // Values are kept as they are, nothing to serialize
+    }
+    
+    public int size() {
+        return offHeapStore != null ? map.size() + offHeapStore.size() : map.size();
+    }
+    
+    public SambaMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Visits the unexpired entries on the heap. 
+     * Off-heap entries are not visited since they would need to be deserialized.
+     */
+    void forEachEntry(EntryVisitor visitor) {
+        long now = System.nanoTime();
+        for (LocalValueWrapper wrapper : map.values()) {
+            long remainingTtlMillis = EntryVisitor.NO_TTL;
+            if (wrapper.hasExpiration) {
+                remainingTtlMillis = TimeUnit.NANOSECONDS.toMillis(wrapper.expirationTime - now);
+                if (remainingTtlMillis <= 0) {
+                    continue;
+                }
+            }
+            Object value = wrapper.value.peekValue();
+            if (value != SambaValueProxy.INVALIDATED) {
+                visitor.visit(wrapper.key, value, wrapper.value.getVersion(), remainingTtlMillis);
+            }
+        }
+    }
+    
+    interface EntryVisitor {
+        
+        long NO_TTL = -1;
+        
+        void visit(String key, Object value, long version, long remainingTtlMillis);
+        
+    }
+    
+    private LocalValueWrapper getUnexpired(String key) {
+        LocalValueWrapper wrapper = map.get(key);
+        if (wrapper == null) {
+            return offHeapStore != null ? promote(key) : null;
+        }
+        if (wrapper.hasExpiration && System.nanoTime() - wrapper.expirationTime >= 0) {
+            // Don't wait for the timer wheel, expire it right now
+            if (map.remove(key, new IdentityMatcher(wrapper))) {
+                wrapper.value.invalidateValue();
+                entryPolicy.onReplace(wrapper, null);
+                expirations.increment();
+            }
+            return null;
+        }
+        return wrapper;
+    }
+    
+    private ReentrantLock tierLockOf(String key) {
+        int h = key.hashCode();
+        return tierLocks[(h ^ (h >>> 16)) & (TIER_LOCK_COUNT - 1)];
+    }
+    
+    /**
+     * Moves the entry (if there is) from the off-heap tier to the heap. 
+     * Value is only deserialized here when it is requested again.
+     */
+    private LocalValueWrapper promote(String key) {
+        LocalValueWrapper wrapper;
+        ReentrantLock tierLock = tierLockOf(key);
+        tierLock.lock();
+        try {
+            wrapper = map.get(key);
+            if (wrapper != null) {
+                // Already promoted (or put) by someone else while we are waiting for the lock
+                return wrapper;
+            }
+            OffHeapStore.Entry entry = offHeapStore.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired()) {
+                expirations.increment();
+                return null;
+            }
+            Object value;
+            try {
+                value = offHeapCodec.decode(entry.value);
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred while deserializing off-heap value with key " + key + "!", t);
+                return null;
+            }
+            // Keep the serialized form, so it is not serialized again when it is moved back off-heap
+            wrapper = wrapValue(key, new SambaValueProxy(value, entry.version), entry.expirationTime, entry.value);
+            map.put(key, wrapper);
+        } finally {
+            tierLock.unlock();
+        }
+        entryPolicy.onReplace(null, wrapper);
+        promotions.increment();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value has been promoted from off-heap tier of local cache with key %s", key));
+        }
+        return wrapper;
+    }
+    
+    /**
+     * Moves the evicted entry from the heap to the off-heap tier.
+     * Value is only serialized here if its serialized form has not been kept along with it.
+     * If it cannot be serialized or there is no room for it in the off-heap tier, it is just dropped.
+     */
+    private boolean demote(LocalValueWrapper wrapper) {
+        ByteBuffer data;
+        try {
+            data = wrapper.data != null
+                    ? wrapper.data.duplicate()
+                    : offHeapCodec.encode(wrapper.key, wrapper.value.getValue());
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred while serializing value to be moved off-heap with key "
+                         + wrapper.key + "!", t);
+            data = null;
+        }
+        boolean demoted = false;
+        boolean removed;
+        ReentrantLock tierLock = tierLockOf(wrapper.key);
+        tierLock.lock();
+        try {
+            // Entry might have been replaced or removed while it is being serialized 
+            if (data != null && map.get(wrapper.key) == wrapper) {
+                demoted = 
+                        offHeapStore.put(
+                                wrapper.key, data, wrapper.value.getVersion(), 
+                                wrapper.hasExpiration ? wrapper.expirationTime : OffHeapStore.NO_EXPIRATION);
+            }
+            removed = map.remove(wrapper.key, new IdentityMatcher(wrapper));
+        } finally {
+            tierLock.unlock();
+        }
+        if (removed) {
+            wrapper.value.invalidateValue();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        String.format("Value has been %s from local cache with key %s", 
+                                      demoted ? "moved off-heap" : "evicted", wrapper.key));
+            }
+        }
+        return removed && demoted;
+    }
+    
+    private LocalValueWrapper wrapValue(String key, SambaValueProxy valueProxy) {
+        return new LocalValueWrapper(key, valueProxy, LocalValueWrapper.NO_EXPIRATION, null);
+    }
+    
+    private LocalValueWrapper wrapValue(String key, SambaValueProxy valueProxy, long expirationTime) {
+        return new LocalValueWrapper(key, valueProxy, expirationTime, null);
+    }
+    
+    private LocalValueWrapper wrapValue(String key, SambaValueProxy valueProxy, long expirationTime, 
+                                        ByteBuffer data) {
+        return new LocalValueWrapper(key, valueProxy, expirationTime, data);
     }
     
     private SambaValueProxy unwrapValue(LocalValueWrapper wrapper) {
@@ -154,13 +807,37 @@ public class SambaLocalCache implements SambaCache {
         }
     }
     
-    private static final class LocalValueWrapper {
+    private static final class LocalValueWrapper extends TimerWheel.Node {
+        
+        // Never compared with since entries without expiration are marked by "hasExpiration"
+        private static final long NO_EXPIRATION = Long.MIN_VALUE;
         
+        private final String key;
         private final SambaValueProxy value;
+        private final long expirationTime;
+        private final boolean hasExpiration;
+        // Serialized form of the value (if it is known) to be moved off-heap as is
+        private final ByteBuffer data;
         private LocalValueWrapper equalValueWrapper;
         
-        private LocalValueWrapper(SambaValueProxy value) {
+        // Set by the thread which removes/replaces this entry from the map
+        private volatile boolean removed;
+        // Entry policy states below are only accessed while holding the policy lock
+        private boolean admitted;
+        private boolean retired;
+        private int weight;
+        private int mainIndex = -1;
+        private boolean inWindow;
+        private LocalValueWrapper windowPrev;
+        private LocalValueWrapper windowNext;
+        private long lastAccessTime;
+        
+        private LocalValueWrapper(String key, SambaValueProxy value, long expirationTime, ByteBuffer data) {
+            this.key = key;
             this.value = value;
+            this.expirationTime = expirationTime;
+            this.hasExpiration = expirationTime != NO_EXPIRATION;
+            this.data = data;
         }
         
         @Override
@@ -185,4 +862,458 @@ public class SambaLocalCache implements SambaCache {
         
     }
 
+    /**
+     * Matches only the given wrapper instance itself, not the ones with equal values.
+     * Used for removing entries by the entry policy
+     * without touching a concurrently put (maybe equal) value.
+     */
+    private static final class IdentityMatcher {
+        
+        private final LocalValueWrapper wrapper;
+        
+        private IdentityMatcher(LocalValueWrapper wrapper) {
+            this.wrapper = wrapper;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj == wrapper;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(wrapper);
+        }
+        
+    }
+    
+    /**
+     * Applies size/weight bound and expiration to the entries.
+     *
+     * Eviction is based on W-TinyLFU.
+     * New entries are admitted into a small FIFO window (1% of the maximum weight).
+     * Entries leaving the window are candidates for the main space
+     * and they are admitted only if their estimated access frequency
+     * (by {@link FrequencySketch}) is higher than the victim which is the least frequent one
+     * of randomly sampled entries from the main space.
+     *
+     * Entries with TTL and/or idle timeout are scheduled on a {@link TimerWheel}
+     * which is advanced by writers and periodically by a shared daemon thread.
+     * Accesses are tracked by the {@link SambaValueProxy} itself,
+     * so field reads served from the proxy without hitting the cache count as well.
+     * Since that tracking is just a flag checked when the timer fires,
+     * idle entries are expired between one and two idle timeouts after their last access.
+     *
+     * Reads only increment the frequency sketch, so the read path is still lock-free.
+     * Writes publish their changes into a lock-free buffer
+     * which is drained (and the policy is applied) by the writer which acquires the policy lock.
+     * Writers never wait for the lock, so the cache might exceed its maximum weight
+     * for a short while under concurrent writes.
+     */
+    private final class EntryPolicy implements TimerWheel.Expirer<LocalValueWrapper> {
+        
+        private static final int SAMPLE_SIZE = 8;
+        
+        private final long maximumWeight;
+        private final long windowMaximumWeight;
+        private final SambaEntryWeigher weigher;
+        private final FrequencySketch sketch;
+        private final long idleTimeoutNanos;
+        private final Queue<LocalValueWrapper> writeBuffer = 
+                new ConcurrentLinkedQueue<LocalValueWrapper>();
+        private final ReentrantLock policyLock = new ReentrantLock();
+        private final ArrayList<LocalValueWrapper> main = new ArrayList<LocalValueWrapper>();
+        private LocalValueWrapper windowHead;
+        private LocalValueWrapper windowTail;
+        private long windowWeight;
+        private long totalWeight;
+        private int trackedCount;
+        private int randomSeed = (int) System.nanoTime() | 1;
+        private TimerWheel<LocalValueWrapper> timerWheel;
+        private ExpirationTicker expirationTicker;
+        private boolean closed;
+        
+        private EntryPolicy(long maximumWeight, SambaEntryWeigher weigher, long idleTimeoutNanos) {
+            this.maximumWeight = maximumWeight;
+            this.windowMaximumWeight = Math.max(1, maximumWeight / 100);
+            this.weigher = weigher;
+            // Sketch grows with the number of tracked entries instead of being sized for the maximum up front
+            this.sketch = maximumWeight > 0 ? new FrequencySketch(16) : null;
+            this.idleTimeoutNanos = idleTimeoutNanos;
+        }
+        
+        private boolean isBounded() {
+            return sketch != null;
+        }
+        
+        private boolean isExpiring(LocalValueWrapper wrapper) {
+            return wrapper.hasExpiration || idleTimeoutNanos > 0;
+        }
+        
+        private boolean needsTracking(LocalValueWrapper wrapper) {
+            return isBounded() || isExpiring(wrapper);
+        }
+        
+        private void recordAccess(String key) {
+            if (sketch != null) {
+                sketch.increment(key.hashCode());
+            }
+        }
+        
+        private void onReplace(LocalValueWrapper oldValueWrapper, LocalValueWrapper newValueWrapper) {
+            boolean published = false;
+            if (oldValueWrapper != null && needsTracking(oldValueWrapper)) {
+                oldValueWrapper.removed = true;
+                writeBuffer.offer(oldValueWrapper);
+                published = true;
+            }
+            if (newValueWrapper != null && needsTracking(newValueWrapper)) {
+                if (isBounded()) {
+                    newValueWrapper.weight = 
+                            weigher != null
+                                ? Math.max(0, weigher.weigh(newValueWrapper.key, newValueWrapper.value.getValue()))
+                                : 1;
+                    recordAccess(newValueWrapper.key);
+                }
+                writeBuffer.offer(newValueWrapper);
+                published = true;
+            }
+            if (published) {
+                drain();
+            }
+        }
+        
+        private void drain() {
+            // Re-check after unlock since another writer may have published
+            // just after we have drained the buffer but before we have released the lock
+            while (!writeBuffer.isEmpty() && policyLock.tryLock()) {
+                try {
+                    maintain();
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+        }
+        
+        private void expire() {
+            if (policyLock.tryLock()) {
+                try {
+                    maintain();
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+        }
+        
+        private void close() {
+            policyLock.lock();
+            try {
+                closed = true;
+                if (expirationTicker != null) {
+                    expirationTicker.stop();
+                    expirationTicker = null;
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        
+        private void maintain() {
+            long now = System.nanoTime();
+            LocalValueWrapper wrapper;
+            while ((wrapper = writeBuffer.poll()) != null) {
+                if (wrapper.removed) {
+                    if (wrapper.admitted) {
+                        untrack(wrapper);
+                    }
+                    wrapper.retired = true;
+                } else if (!wrapper.retired && !wrapper.admitted) {
+                    admit(wrapper, now);
+                }
+            }
+            if (isBounded()) {
+                evict();
+            }
+            if (timerWheel != null) {
+                timerWheel.advance(now, this);
+            }
+        }
+        
+        private void admit(LocalValueWrapper wrapper, long now) {
+            wrapper.admitted = true;
+            if (isBounded()) {
+                addToWindow(wrapper);
+            }
+            if (isExpiring(wrapper)) {
+                if (timerWheel == null) {
+                    timerWheel = new TimerWheel<LocalValueWrapper>(now);
+                    // Closed cache is not expired periodically anymore, but still on its writes
+                    if (!closed) {
+                        expirationTicker = ExpirationTicker.start(this);
+                    }
+                }
+                wrapper.lastAccessTime = now;
+                timerWheel.schedule(wrapper, nextExpirationCheckTime(wrapper));
+            }
+        }
+        
+        private void untrack(LocalValueWrapper wrapper) {
+            if (wrapper.inWindow) {
+                unlinkFromWindow(wrapper);
+                totalWeight -= wrapper.weight;
+                trackedCount--;
+            } else if (wrapper.mainIndex >= 0) {
+                removeFromMain(wrapper);
+                totalWeight -= wrapper.weight;
+                trackedCount--;
+            }
+            if (timerWheel != null) {
+                timerWheel.deschedule(wrapper);
+            }
+        }
+        
+        private void evictEntry(LocalValueWrapper wrapper) {
+            if (offHeapStore == null) {
+                removeEntry(wrapper, "evicted", evictions);
+                return;
+            }
+            untrack(wrapper);
+            wrapper.retired = true;
+            (demote(wrapper) ? demotions : evictions).increment();
+        }
+        
+        private void removeEntry(LocalValueWrapper wrapper, String cause, SambaCounter counter) {
+            untrack(wrapper);
+            wrapper.retired = true;
+            if (map.remove(wrapper.key, new IdentityMatcher(wrapper))) {
+                wrapper.value.invalidateValue();
+                counter.increment();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(
+                            String.format("Value has been %s from local cache with key %s", cause, wrapper.key));
+                }
+            }
+        }
+        
+        private long nextExpirationCheckTime(LocalValueWrapper wrapper) {
+            if (idleTimeoutNanos > 0) {
+                long idleExpirationTime = wrapper.lastAccessTime + idleTimeoutNanos;
+                if (wrapper.hasExpiration && wrapper.expirationTime - idleExpirationTime < 0) {
+                    return wrapper.expirationTime;
+                }
+                return idleExpirationTime;
+            }
+            return wrapper.expirationTime;
+        }
+        
+        @Override
+        public void onExpire(LocalValueWrapper wrapper, long now) {
+            if (wrapper.hasExpiration && now - wrapper.expirationTime >= 0) {
+                removeEntry(wrapper, "expired", expirations);
+                return;
+            }
+            if (idleTimeoutNanos > 0) {
+                if (wrapper.value.clearAccessed()) {
+                    wrapper.lastAccessTime = now;
+                }
+                if (now - (wrapper.lastAccessTime + idleTimeoutNanos) >= 0) {
+                    removeEntry(wrapper, "expired (idle)", expirations);
+                    return;
+                }
+            }
+            timerWheel.schedule(wrapper, nextExpirationCheckTime(wrapper));
+        }
+        
+        private void evict() {
+            while (windowWeight > windowMaximumWeight || totalWeight > maximumWeight) {
+                if (windowWeight > windowMaximumWeight) {
+                    LocalValueWrapper candidate = windowHead;
+                    unlinkFromWindow(candidate);
+                    addToMain(candidate);
+                    if (totalWeight > maximumWeight) {
+                        LocalValueWrapper victim = sampleVictim(candidate);
+                        if (victim == null
+                                || sketch.frequency(candidate.key.hashCode())
+                                       <= sketch.frequency(victim.key.hashCode())) {
+                            // Candidate is not more popular than the victim, so it is not admitted
+                            victim = candidate;
+                        }
+                        evictEntry(victim);
+                    }
+                } else {
+                    LocalValueWrapper victim = sampleVictim(null);
+                    if (victim == null) {
+                        victim = windowHead;
+                    }
+                    evictEntry(victim);
+                }
+            }
+        }
+        
+        private LocalValueWrapper sampleVictim(LocalValueWrapper excluded) {
+            int size = main.size();
+            if (size == 0 || (size == 1 && main.get(0) == excluded)) {
+                return null;
+            }
+            LocalValueWrapper victim = null;
+            int victimFrequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SAMPLE_SIZE; i++) {
+                LocalValueWrapper sample = main.get(nextRandom(size));
+                if (sample == excluded) {
+                    continue;
+                }
+                int frequency = sketch.frequency(sample.key.hashCode());
+                if (frequency < victimFrequency) {
+                    victim = sample;
+                    victimFrequency = frequency;
+                }
+            }
+            if (victim == null) {
+                // All samples hit the excluded one, just pick its neighbour
+                int index = excluded.mainIndex;
+                victim = main.get(index == 0 ? 1 : index - 1);
+            }
+            return victim;
+        }
+        
+        private void addToWindow(LocalValueWrapper wrapper) {
+            wrapper.inWindow = true;
+            wrapper.windowPrev = windowTail;
+            wrapper.windowNext = null;
+            if (windowTail == null) {
+                windowHead = wrapper;
+            } else {
+                windowTail.windowNext = wrapper;
+            }
+            windowTail = wrapper;
+            windowWeight += wrapper.weight;
+            totalWeight += wrapper.weight;
+            sketch.ensureCapacity(++trackedCount);
+        }
+        
+        private void unlinkFromWindow(LocalValueWrapper wrapper) {
+            LocalValueWrapper prev = wrapper.windowPrev;
+            LocalValueWrapper next = wrapper.windowNext;
+            if (prev == null) {
+                windowHead = next;
+            } else {
+                prev.windowNext = next;
+            }
+            if (next == null) {
+                windowTail = prev;
+            } else {
+                next.windowPrev = prev;
+            }
+            wrapper.windowPrev = null;
+            wrapper.windowNext = null;
+            wrapper.inWindow = false;
+            windowWeight -= wrapper.weight;
+        }
+        
+        private void addToMain(LocalValueWrapper wrapper) {
+            wrapper.mainIndex = main.size();
+            main.add(wrapper);
+        }
+        
+        private void removeFromMain(LocalValueWrapper wrapper) {
+            int index = wrapper.mainIndex;
+            int lastIndex = main.size() - 1;
+            LocalValueWrapper last = main.remove(lastIndex);
+            if (index != lastIndex) {
+                main.set(index, last);
+                last.mainIndex = index;
+            }
+            wrapper.mainIndex = -1;
+        }
+        
+        private int nextRandom(int bound) {
+            int x = randomSeed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            randomSeed = x;
+            return (x & Integer.MAX_VALUE) % bound;
+        }
+        
+    }
+
+    /**
+     * Serializes the values moved to the off-heap tier by Kryo 
+     * when the cache is not backed by a global cache which has its own serialization configuration.
+     */
+    private static final class KryoCodec implements OffHeapStore.Codec {
+        
+        private final KryoPool kryoPool = 
+                new KryoPool(
+                        Runtime.getRuntime().availableProcessors(), 
+                        Collections.<Class<?>>emptyList());
+        
+        @Override
+        public ByteBuffer encode(String key, Object value) {
+            PooledKryo kryo = kryoPool.borrow();
+            try {
+                return kryo.encode(value, null, CompressionCodec.NONE, Integer.MAX_VALUE);
+            } finally {
+                kryoPool.release(kryo);
+            }
+        }
+        
+        @Override
+        public Object decode(ByteBuffer data) {
+            PooledKryo kryo = kryoPool.borrow();
+            try {
+                return kryo.decode(data, Collections.<Byte, SambaSerializer>emptyMap());
+            } finally {
+                kryoPool.release(kryo);
+            }
+        }
+        
+    }
+    
+    /**
+     * Advances the timer wheel of a cache periodically,
+     * so expired values are invalidated even though there is no write to the cache.
+     * Refers to the policy weakly to not keep abandoned caches alive.
+     */
+    private static final class ExpirationTicker implements Runnable {
+        
+        private final WeakReference<EntryPolicy> entryPolicyRef;
+        private volatile ScheduledFuture<?> future;
+        
+        private ExpirationTicker(EntryPolicy entryPolicy) {
+            this.entryPolicyRef = new WeakReference<EntryPolicy>(entryPolicy);
+        }
+        
+        private static ExpirationTicker start(EntryPolicy entryPolicy) {
+            ExpirationTicker ticker = new ExpirationTicker(entryPolicy);
+            ticker.future = 
+                    EXPIRATION_SCHEDULER.scheduleAtFixedRate(
+                            ticker, 
+                            EXPIRATION_TICK_MILLIS, EXPIRATION_TICK_MILLIS, TimeUnit.MILLISECONDS);
+            return ticker;
+        }
+        
+        private void stop() {
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+        
+        @Override
+        public void run() {
+            EntryPolicy entryPolicy = entryPolicyRef.get();
+            if (entryPolicy == null) {
+                stop();
+                return;
+            }
+            try {
+                entryPolicy.expire();
+            } catch (Throwable t) {
+                LOGGER.error("Error occured while expiring entries of local cache!", t);
+            }
+        }
+        
+    }
+
 }
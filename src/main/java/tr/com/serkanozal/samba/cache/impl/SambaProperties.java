@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+final class SambaProperties {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaProperties.class);
+    
+    static final String SAMBA_PROPERTIES_FILE_NAME = "samba.properties";
+    static final String AWS_CREDENTIALS_PROPERTIES_FILE_NAME = "aws-credentials.properties";
+    
+    private SambaProperties() {
+        
+    }
+    
+    static Properties getProperties(String propFileName) throws IOException {
+        Properties props = new Properties();
+        try {
+            InputStream in = SambaProperties.class.getClassLoader().getResourceAsStream(propFileName);
+            if (in != null) {
+                props.load(in);
+            }
+            props.putAll(System.getProperties());
+            return props;
+        } catch (IOException e) {
+            LOGGER.error("Error occured while loading properties from " + "'" + propFileName + "'", e);
+            throw e;
+        }
+    }
+    
+    static Properties getSambaProperties() {
+        try {
+            return getProperties(SAMBA_PROPERTIES_FILE_NAME);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    static String getString(Properties props, String name, String defaultValue) {
+        String value = props.getProperty(name);
+        if (value != null) {
+            return value.trim();
+        } else {
+            return defaultValue;
+        }
+    }
+    
+    static int getInt(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value != null) {
+            return Integer.parseInt(value.trim());
+        } else {
+            return defaultValue;
+        }
+    }
+    
+    static long getLong(Properties props, String name, long defaultValue) {
+        String value = props.getProperty(name);
+        if (value != null) {
+            return Long.parseLong(value.trim());
+        } else {
+            return defaultValue;
+        }
+    }
+    
+    static boolean getBoolean(Properties props, String name, boolean defaultValue) {
+        String value = props.getProperty(name);
+        if (value != null) {
+            return Boolean.parseBoolean(value.trim());
+        } else {
+            return defaultValue;
+        }
+    }
+
+}
@@ -15,24 +15,166 @@
  */
 package tr.com.serkanozal.samba.cache.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.log4j.Logger;
 
+import tr.com.serkanozal.samba.SambaValueProxy;
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaFuture;
+import tr.com.serkanozal.samba.cache.SambaFutureListener;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
 import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache.CacheChangeListener;
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache.ChangedValue;
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache.Entry;
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaGauge;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+import tr.com.serkanozal.samba.metrics.SambaMetricsRegistry;
 
 public class SambaTieredCache implements SambaCache {
 
     private static final Logger LOGGER = Logger.getLogger(SambaTieredCache.class);
     
+    private static final long NOT_CATCHING_UP = -1;
+    
     private final NearCache nearCache;
     private final SambaGlobalCache globalCache;
+    // In push mode, changes done by others update the near-cache entries in place instead of invalidating them
+    private final boolean pushUpdates;
+    // Serializes the near-cache values kept out of the heap and in the snapshots in the same way as the global cache
+    private final OffHeapStore.Codec nearCacheCodec;
+    // Near-cache is snapshotted into this file (if it is specified) to be restored on restart
+    private final File snapshotFile;
+    private volatile ScheduledFuture<?> periodicSnapshot;
+    // Time when the stream is resumed from the checkpoint of the restored snapshot
+    private volatile long restoreTimeMillis;
+    private volatile boolean restoreResumed;
+    // Only created if there is a thaw policy, so the near-cache reads don't check the thaw otherwise
+    private final ThawDetector thawDetector;
+    private final ThawPolicy thawPolicy;
+    private final long thawDrainTimeoutMillis;
+    // Time of the last thaw until the stream has caught up with the changes done while the process was frozen
+    private final AtomicLong catchUpSinceMillis = new AtomicLong(NOT_CATCHING_UP);
+    // Loads from global cache in progress by key, so concurrent misses of the same key wait for the same load
+    private final ConcurrentMap<String, SambaFuture<Entry>> inFlightLoads = 
+            new ConcurrentHashMap<String, SambaFuture<Entry>>();
+    private final SambaMetrics metrics = SambaMetricsRegistry.register("cache.tiered");
+    private final SambaCounter nearCacheHits = metrics.counter("nearCacheHits");
+    private final SambaCounter nearCacheMisses = metrics.counter("nearCacheMisses");
+    private final SambaCounter nearCacheInvalidations = metrics.counter("nearCacheInvalidations");
+    private final SambaCounter nearCacheUpdates = metrics.counter("nearCacheUpdates");
+    private final SambaCounter coalescedLoads = metrics.counter("coalescedLoads");
+    private final SambaCounter thaws = metrics.counter("thaws");
+    private final SambaCounter thawValidatedReads = metrics.counter("thawValidatedReads");
+    private final SambaCounter restoreValidatedReads = metrics.counter("restoreValidatedReads");
+    
+    /**
+     * Defines how the near-cache is read after the process is thawed 
+     * (such as an AWS Lambda container between invocations), 
+     * since the changes done while it was frozen haven't been consumed from the stream yet.
+     */
+    enum ThawPolicy {
+        
+        /**
+         * Near-cache is read as is, so stale values might be read until the stream catches up.
+         */
+        NONE, 
+        
+        /**
+         * Near-cache reads wait for the stream to catch up (up to the drain timeout), 
+         * then fall back to {@link #VALIDATE} if it couldn't.
+         */
+        DRAIN, 
+        
+        /**
+         * Near-cache hits are validated by reading from the global cache until the stream catches up.
+         */
+        VALIDATE;
+        
+        static ThawPolicy of(String name) {
+            for (ThawPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown thaw policy: " + name);
+        }
+        
+    }
     
     public SambaTieredCache() {
-        nearCache = new NearCache(new SambaLocalCache());
+        Properties sambaProps = SambaProperties.getSambaProperties();
+        // Off-heap (or disk spill) tier of the near-cache (if it is enabled) uses the same serialization 
+        // as the global cache. Entries are removed from that tier along with the heap by the stream invalidations.
+        nearCacheCodec = new OffHeapStore.Codec() {
+            @Override
+            public ByteBuffer encode(String key, Object value) {
+                return globalCache.serialize(key, value);
+            }
+            
+            @Override
+            public Object decode(ByteBuffer data) {
+                return globalCache.deserialize(data);
+            }
+        };
+        SambaLocalCache nearLocalCache = new SambaLocalCache(sambaProps, "cache.tiered.nearCache", nearCacheCodec);
+        int nearCacheSlotCount = SambaProperties.getInt(sambaProps, "cache.tiered.nearCache.slotCount", -1);
+        if (nearCacheSlotCount > 0) {
+            nearCache = new NearCache(nearLocalCache, nearCacheSlotCount);
+        } else {
+            nearCache = new NearCache(nearLocalCache);
+        }
+        pushUpdates = SambaProperties.getBoolean(sambaProps, "cache.tiered.nearCache.pushUpdates", false);
+        String snapshotFileName = SambaProperties.getString(sambaProps, "cache.tiered.nearCache.snapshotFile", null);
+        snapshotFile = snapshotFileName != null ? new File(snapshotFileName) : null;
+        thawPolicy = ThawPolicy.of(SambaProperties.getString(sambaProps, "cache.tiered.nearCache.thawPolicy", "NONE"));
+        thawDrainTimeoutMillis = 
+                SambaProperties.getLong(sambaProps, "cache.tiered.nearCache.thawDrainTimeoutMillis", 1000);
+        if (thawPolicy != ThawPolicy.NONE) {
+            long freezeThresholdMillis = 
+                    SambaProperties.getLong(sambaProps, "cache.tiered.nearCache.freezeThresholdMillis", 1000);
+            thawDetector = new ThawDetector(freezeThresholdMillis, new ThawDetector.ThawListener() {
+                @Override
+                public void onThaw(long thawTimeMillis, long frozenMillis) {
+                    catchUpSinceMillis.set(thawTimeMillis);
+                    thaws.increment();
+                }
+            });
+        } else {
+            thawDetector = null;
+        }
+        metrics.gauge("nearCacheOwnFailures", new SambaGauge() {
+            @Override
+            public long getValue() {
+                return nearCache.getOwnFailureCount();
+            }
+        });
+        metrics.gauge("nearCachePutFailures", new SambaGauge() {
+            @Override
+            public long getValue() {
+                return nearCache.getPutFailureCount();
+            }
+        });
         globalCache = new SambaGlobalCache(new CacheChangeListener() {
             private void invalidate(String key) {
                 long ownId = nearCache.tryOwn(key);
@@ -41,6 +183,7 @@ public class SambaTieredCache implements SambaCache {
                 } finally {
                     nearCache.releaseIfOwned(ownId, key);
                 }
+                nearCacheInvalidations.increment();
                 
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug(
@@ -49,28 +192,286 @@ public class SambaTieredCache implements SambaCache {
                 }
             }
             
+            private void update(String key, ChangedValue newValue) {
+                if (!pushUpdates || !newValue.isAvailable()) {
+                    invalidate(key);
+                    return;
+                }
+                long ownId = nearCache.tryOwn(key);
+                try {
+                    SambaValueProxy currentValue = (SambaValueProxy) nearCache.get(key);
+                    if (currentValue == null) {
+                        // Only the entries already cached here are updated, 
+                        // so the near-cache is not filled by the keys which are not used here
+                        return;
+                    }
+                    Entry entry = newValue.getEntry();
+                    if (entry != null && entry.version != SambaValueProxy.NO_VERSION) {
+                        // Versions of a key are started over when it is created again (by a writer whose clock 
+                        // might be behind), so a record with a version not higher than the cached one 
+                        // is not known to be older. It is only skipped if it carries the same value.
+                        if (currentValue.hasVersion() && currentValue.getVersion() >= entry.version) {
+                            if (currentValue.getVersion() == entry.version
+                                    && isSameValue(currentValue.getValue(), entry.value)) {
+                                return;
+                            }
+                        } else if (putIntoNearCache(ownId, key, entry)) {
+                            nearCacheUpdates.increment();
+                            if (LOGGER.isDebugEnabled()) {
+                                LOGGER.debug(
+                                        String.format("Entry has been updated on " + 
+                                                      "near-cache of tiered cache with key %s", key));
+                            }
+                            return;
+                        }
+                    }
+                    // Entry is being accessed concurrently or new value cannot be ordered, 
+                    // so fall back to invalidation
+                    nearCache.remove(key);
+                    nearCacheInvalidations.increment();
+                } finally {
+                    nearCache.releaseIfOwned(ownId, key);
+                }
+            }
+            
             @Override
-            public void onInsert(String key, Object value) {
-                invalidate(key);
+            public void onInsert(String key, ChangedValue value) {
+                update(key, value);
             }
             
             @Override
-            public void onUpdate(String key, Object oldValue, Object newValue) {
-                invalidate(key);
+            public void onUpdate(String key, ChangedValue oldValue, ChangedValue newValue) {
+                update(key, newValue);
             }
 
             @Override
             public void onDelete(String key) {
                 invalidate(key);
             }
+            
+            @Override
+            public void onChangesMissed() {
+                // Any entry might be stale, so all of them are invalidated
+                nearCache.ownAll();
+                try {
+                    nearCache.clear();
+                } finally {
+                    nearCache.releaseAll();
+                }
+                nearCacheInvalidations.increment();
+                
+                LOGGER.warn("Near-cache of tiered cache has been invalidated since some changes might be missed");
+            }
+        }, "cache.tiered", snapshotFile != null);
+        
+        if (snapshotFile != null) {
+            restoreNearCache();
+            long snapshotIntervalMillis = 
+                    SambaProperties.getLong(sambaProps, "cache.tiered.nearCache.snapshotIntervalMillis", 60000);
+            periodicSnapshot = globalCache.getScheduledExecutorService().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        snapshot();
+                    } catch (Throwable t) {
+                        LOGGER.error("Error occurred while taking snapshot of near-cache!", t);
+                    }
+                }
+            }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (thawDetector != null) {
+            thawDetector.start();
+        }
+    }
+    
+    /**
+     * Gets the value from the near-cache unless the process has been thawed 
+     * and the stream hasn't caught up with the changes done while it was frozen yet. 
+     * In that case, the near-cache is treated as missed, so the value is read from the global cache.
+     * Entries restored from the snapshot are treated in the same way 
+     * until the stream replayed from the checkpoint of the snapshot has caught up.
+     */
+    private Object getFromNearCache(String key, boolean mayWait) {
+        if (nearCache.isRestored(key) && !isCaughtUpSinceRestore()) {
+            restoreValidatedReads.increment();
+            return null;
+        }
+        if (thawDetector == null) {
+            return nearCache.get(key);
+        }
+        thawDetector.checkThawed();
+        long since = catchUpSinceMillis.get();
+        if (since != NOT_CATCHING_UP && !isCaughtUpSinceThaw(since, mayWait)) {
+            thawValidatedReads.increment();
+            return null;
+        }
+        return nearCache.get(key);
+    }
+    
+    private boolean isCaughtUpSinceThaw(long since, boolean mayWait) {
+        boolean caughtUp = globalCache.isStreamCaughtUp(since);
+        if (!caughtUp && mayWait && thawPolicy == ThawPolicy.DRAIN) {
+            // Drain timeout starts with the thaw, so the reads after the timeout don't wait anymore
+            long remainingMillis = since + thawDrainTimeoutMillis - System.currentTimeMillis();
+            if (remainingMillis > 0) {
+                caughtUp = globalCache.awaitStreamCaughtUp(since, remainingMillis);
+            }
+        }
+        if (caughtUp) {
+            // Another thaw might have happened in the meantime, then it is still caught up with
+            catchUpSinceMillis.compareAndSet(since, NOT_CATCHING_UP);
+        }
+        return caughtUp;
+    }
+    
+    private boolean isCaughtUpSinceRestore() {
+        if (restoreResumed && globalCache.isStreamCaughtUp(restoreTimeMillis)) {
+            // Restored entries changed after the snapshot have been invalidated by the replayed records by now
+            nearCache.clearRestored();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Restores the near-cache from the snapshot (if there is) 
+     * and then starts consuming the stream from the checkpoint of the snapshot, 
+     * so the restored entries changed after the snapshot are invalidated by the replayed records. 
+     * Restored entries are not served until the replay has caught up (or they are written again). 
+     * If the stream cannot be resumed from the checkpoint, the restored entries are discarded.
+     */
+    private void restoreNearCache() {
+        NearCacheSnapshot snapshot = null;
+        if (snapshotFile.exists()) {
+            try {
+                snapshot = NearCacheSnapshot.read(snapshotFile, nearCacheCodec);
+            } catch (Throwable t) {
+                LOGGER.warn("Unable to read near-cache snapshot from " + snapshotFile + 
+                            ", so near-cache starts empty", t);
+            }
+        }
+        if (snapshot == null) {
+            globalCache.startStream(null);
+            return;
+        }
+        Set<String> restoredKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        for (Map.Entry<String, Entry> e : snapshot.entries.entrySet()) {
+            String key = e.getKey();
+            long ownId = nearCache.tryOwn(key);
+            try {
+                if (putIntoNearCache(ownId, key, e.getValue())) {
+                    restoredKeys.add(key);
+                }
+            } finally {
+                nearCache.releaseIfOwned(ownId, key);
+            }
+        }
+        nearCache.markRestored(restoredKeys);
+        final int restoredCount = restoredKeys.size();
+        restoreTimeMillis = System.currentTimeMillis();
+        globalCache.startStream(snapshot.checkpoint).addListener(new SambaFutureListener<Boolean>() {
+            @Override
+            public void onSuccess(Boolean resumed) {
+                if (resumed) {
+                    restoreResumed = true;
+                    LOGGER.info(
+                            String.format("%d entries have been restored into near-cache of tiered cache from %s", 
+                                          restoredCount, snapshotFile));
+                } else {
+                    discardRestoredEntries();
+                }
+            }
+            
+            @Override
+            public void onFailure(Throwable error) {
+                discardRestoredEntries();
+            }
         });
     }
     
+    private void discardRestoredEntries() {
+        // Entries loaded or written since the restore are not restored ones anymore, so they are kept
+        for (String key : nearCache.getRestoredKeys()) {
+            long ownId = nearCache.tryOwn(key);
+            try {
+                if (nearCache.isRestored(key)) {
+                    nearCache.remove(key);
+                }
+            } finally {
+                nearCache.releaseIfOwned(ownId, key);
+            }
+        }
+        nearCache.clearRestored();
+        LOGGER.warn("Stream cannot be resumed from the checkpoint of near-cache snapshot, " + 
+                    "so the restored entries have been discarded");
+    }
+    
+    /**
+     * Writes the near-cache entries (the ones on the heap) together with the stream checkpoint 
+     * into the snapshot file (<code>cache.tiered.nearCache.snapshotFile</code>), 
+     * so a restarted process can start with a warm near-cache. 
+     * Snapshots are also taken periodically, 
+     * but this can be called explicitly too (such as before the process is frozen or terminated).
+     * 
+     * @return <code>false</code> if there is no snapshot file configured or the stream is not consumed yet
+     */
+    public synchronized boolean snapshot() {
+        if (snapshotFile == null) {
+            return false;
+        }
+        // Checkpoint is taken before visiting the entries, 
+        // so any change not reflected on the snapshotted entries is after the checkpoint
+        StreamConsumer.Checkpoint checkpoint = globalCache.getStreamCheckpoint();
+        if (checkpoint == null) {
+            return false;
+        }
+        try {
+            int count = NearCacheSnapshot.write(snapshotFile, checkpoint, nearCache.getLocalCache(), nearCacheCodec);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        String.format("%d entries of near-cache of tiered cache have been snapshotted into %s", 
+                                      count, snapshotFile));
+            }
+            return true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write near-cache snapshot into " + snapshotFile, e);
+        }
+    }
+    
     @Override
     public SambaCacheType getType() {
         return SambaCacheType.TIERED;
     }
     
+    /**
+     * Gets the lag of the near cache invalidations per shard of the global cache stream in milliseconds.
+     * 
+     * @see SambaGlobalCache#getStreamLagMillis()
+     */
+    public Map<String, Long> getStreamLagMillis() {
+        return globalCache.getStreamLagMillis();
+    }
+    
+    /**
+     * Gets the number of times an operation couldn't own the near-cache slot of its key 
+     * since the slot was owned by another operation on the same or a colliding key.
+     */
+    public long getNearCacheOwnFailureCount() {
+        return nearCache.getOwnFailureCount();
+    }
+    
+    /**
+     * Gets the number of times populating near-cache has been skipped 
+     * since the slot of the key was not owned or was accessed concurrently.
+     */
+    public long getNearCachePutFailureCount() {
+        return nearCache.getPutFailureCount();
+    }
+    
+    public SambaMetrics getMetrics() {
+        return metrics;
+    }
+    
     @Override
     public SambaCacheConsistencyModel getConsistencyModel() {
         return SambaCacheConsistencyModel.EVENTUAL_CONSISTENCY;
@@ -79,20 +480,14 @@ public class SambaTieredCache implements SambaCache {
     @SuppressWarnings("unchecked")
     @Override
     public Object get(String key) {
-        Object value = nearCache.get(key);
+        Object value = getFromNearCache(key, true);
         if (value != null) {
+            nearCacheHits.increment();
             return value;
         }
+        nearCacheMisses.increment();
         
-        long ownId = nearCache.tryOwn(key);
-        try {
-            value = globalCache.get(key);
-            if (value != null) {
-                nearCache.putIfAvailable(ownId, key, value);
-            }    
-        } finally {
-            nearCache.releaseIfOwned(ownId, key);
-        }
+        value = loadEntry(key, false).value;
         
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
@@ -102,19 +497,10 @@ public class SambaTieredCache implements SambaCache {
         return value;
     }
     
+    @SuppressWarnings("unchecked")
     @Override
     public <V> V refresh(String key) {
-        V value = null;
-        long ownId = nearCache.tryOwn(key);
-        try {
-            nearCache.remove(key);
-            value = globalCache.get(key);
-            if (value != null) {
-                nearCache.putIfAvailable(ownId, key, value);
-            }    
-        } finally {
-            nearCache.releaseIfOwned(ownId, key);
-        }
+        V value = (V) loadEntry(key, true).value;
         
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
@@ -123,6 +509,126 @@ public class SambaTieredCache implements SambaCache {
         
         return value;
     }
+    
+    /**
+     * Loads the entry from global cache into near-cache. 
+     * Concurrent loads of the same key are coalesced into a single read from global cache 
+     * whose result is shared by all the waiting callers.
+     * 
+     * @param refresh <code>true</code> if the entry must be read after this call, 
+     *                so a load which may have been started before can not be joined 
+     */
+    private Entry loadEntry(String key, boolean refresh) {
+        SambaFuture<Entry> load = new SambaFuture<Entry>();
+        SambaFuture<Entry> inFlightLoad = inFlightLoads.putIfAbsent(key, load);
+        if (inFlightLoad != null && refresh) {
+            // In-flight load might have read the entry before this call, so wait for it to finish. 
+            // Any load started after then is started after this call, so it can be joined.
+            awaitLoadCompletion(inFlightLoad);
+            inFlightLoad = inFlightLoads.putIfAbsent(key, load);
+        }
+        if (inFlightLoad != null) {
+            coalescedLoads.increment();
+            return awaitLoad(inFlightLoad);
+        }
+        
+        long ownId = nearCache.tryOwn(key);
+        try {
+            if (refresh) {
+                nearCache.remove(key);
+            }
+            Entry entry = globalCache.getEntry(key);
+            putIntoNearCache(ownId, key, entry);
+            load.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            load.fail(e);
+            throw e;
+        } catch (Error e) {
+            load.fail(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, load);
+            nearCache.releaseIfOwned(ownId, key);
+        }
+    }
+    
+    /**
+     * Releases the near-cache slot owned by a write and detaches the in-flight load of the key (if there is). 
+     * The load might have read the entry before the write, so the later reads of the writer must not join it 
+     * but start a new load to read their own write.
+     */
+    private void releaseWrittenKey(long ownId, String key) {
+        inFlightLoads.remove(key);
+        nearCache.releaseIfOwned(ownId, key);
+    }
+    
+    private void awaitLoadCompletion(SambaFuture<Entry> load) {
+        try {
+            load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the value to be loaded", e);
+        } catch (ExecutionException e) {
+            // Result of the previous load is not used, so its failure is ignored
+        }
+    }
+    
+    private Entry awaitLoad(SambaFuture<Entry> load) {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the value to be loaded", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+    
+    private boolean putIntoNearCache(long ownId, String key, Entry entry) {
+        if (entry.value != null) {
+            if (entry.hasExpiration()) {
+                // Near-cache must not serve the value longer than its remaining TTL
+                long remainingTtl = entry.expirationTime - System.currentTimeMillis();
+                if (remainingTtl > 0) {
+                    return nearCache.putIfAvailable(
+                            ownId, key, entry.value, entry.data, entry.version, 
+                            remainingTtl, TimeUnit.MILLISECONDS);
+                }
+            } else {
+                return nearCache.putIfAvailable(ownId, key, entry.value, entry.data, entry.version);
+            }
+        }
+        return false;
+    }
+    
+    private static boolean isSameValue(Object value1, Object value2) {
+        return value1 == value2 || (value1 != null && value1.equals(value2));
+    }
+    
+    @Override
+    public SambaValueProxy getVersioned(String key) {
+        Object value = getFromNearCache(key, true);
+        if (value != null) {
+            nearCacheHits.increment();
+            return (SambaValueProxy) value;
+        }
+        nearCacheMisses.increment();
+        
+        return loadEntry(key, false).toValueProxy();
+    }
+    
+    @Override
+    public SambaValueProxy refreshVersioned(String key) {
+        return loadEntry(key, true).toValueProxy();
+    }
 
     @Override
     public void put(String key, Object value) {
@@ -131,10 +637,10 @@ public class SambaTieredCache implements SambaCache {
         } else {
             long ownId = nearCache.tryOwn(key);
             try {
-                globalCache.put(key, value);
-                nearCache.putIfAvailable(ownId, key, value);  
+                Entry entry = globalCache.putEntry(key, value, Entry.NO_EXPIRATION, true);
+                nearCache.putIfAvailable(ownId, key, value, entry.version);
             } finally {
-                nearCache.releaseIfOwned(ownId, key);
+                releaseWrittenKey(ownId, key);
             }
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(
@@ -143,18 +649,41 @@ public class SambaTieredCache implements SambaCache {
         }
     }
     
+    @Override
+    public void put(String key, Object value, long ttl, TimeUnit timeUnit) {
+        if (value == null) {
+            remove(key);
+        } else {
+            long ownId = nearCache.tryOwn(key);
+            try {
+                Entry entry = 
+                        globalCache.putEntry(
+                                key, value, SambaGlobalCache.expirationTimeOf(ttl, timeUnit), true);
+                nearCache.putIfAvailable(ownId, key, value, entry.version, ttl, timeUnit);
+            } finally {
+                releaseWrittenKey(ownId, key);
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        String.format("Value %s has been put into tiered cache with key %s " + 
+                                      "to be expired after %d %s", key, value, ttl, timeUnit));
+            }
+        }
+    }
+    
     @Override
     public boolean replace(String key, Object oldValue, Object newValue) {
         boolean replaced = false;
         if (oldValue == null && newValue != null) {
             long ownId = nearCache.tryOwn(key);
             try {
-                if (globalCache.replace(key, oldValue, newValue)) {
-                    nearCache.putIfAvailable(ownId, key, newValue); 
+                Entry entry = globalCache.replaceEntry(key, oldValue, newValue, true);
+                if (entry != null) {
+                    nearCache.putIfAvailable(ownId, key, newValue, entry.version);
                     replaced = true;
                 }
             } finally {
-                nearCache.releaseIfOwned(ownId, key);
+                releaseWrittenKey(ownId, key);
             }
         } else if (oldValue != null && newValue == null) {
             long ownId = nearCache.tryOwn(key);
@@ -164,17 +693,18 @@ public class SambaTieredCache implements SambaCache {
                     replaced = true;
                 }
             } finally {
-                nearCache.releaseIfOwned(ownId, key);
+                releaseWrittenKey(ownId, key);
             }
         } else if (oldValue != null && newValue != null) {
             long ownId = nearCache.tryOwn(key);
             try {
-                if (globalCache.replace(key, oldValue, newValue)) {
-                    nearCache.putIfAvailable(ownId, key, newValue); 
+                Entry entry = globalCache.replaceEntry(key, oldValue, newValue, true);
+                if (entry != null) {
+                    nearCache.putIfAvailable(ownId, key, newValue, entry.version);
                     replaced = true;
                 }
             } finally {
-                nearCache.releaseIfOwned(ownId, key);
+                releaseWrittenKey(ownId, key);
             }
         }    
         if (replaced && LOGGER.isDebugEnabled()) {
@@ -184,6 +714,125 @@ public class SambaTieredCache implements SambaCache {
         }
         return replaced;
     }
+    
+    @Override
+    public boolean replaceVersioned(String key, long expectedVersion, Object newValue) {
+        boolean replaced = false;
+        long ownId = nearCache.tryOwn(key);
+        try {
+            Entry entry = globalCache.replaceVersionedEntry(key, expectedVersion, newValue);
+            if (entry != null) {
+                if (newValue == null) {
+                    nearCache.remove(key);
+                } else {
+                    nearCache.putIfAvailable(ownId, key, newValue, entry.version);
+                }
+                replaced = true;
+            }
+        } finally {
+            releaseWrittenKey(ownId, key);
+        }
+        if (replaced && LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value with version %d has been replaced with new value %s " + 
+                                  "assigned to key %s", expectedVersion, newValue, key));
+        }
+        return replaced;
+    }
+    
+    @Override
+    public long addAndGet(String key, long delta) {
+        long ownId = nearCache.tryOwn(key);
+        try {
+            Entry entry = globalCache.addAndGetEntry(key, delta);
+            putIntoNearCache(ownId, key, entry);
+            return ((Number) entry.value).longValue();
+        } finally {
+            releaseWrittenKey(ownId, key);
+        }
+    }
+    
+    @Override
+    public void appendToList(String key, Collection<?> elements) {
+        long ownId = nearCache.tryOwn(key);
+        try {
+            globalCache.appendToList(key, elements);
+            // Updated in place, so the new value is not known here
+            nearCache.remove(key);
+        } finally {
+            releaseWrittenKey(ownId, key);
+        }
+    }
+    
+    @Override
+    public void addToSet(String key, Collection<?> elements) {
+        long ownId = nearCache.tryOwn(key);
+        try {
+            globalCache.addToSet(key, elements);
+            nearCache.remove(key);
+        } finally {
+            releaseWrittenKey(ownId, key);
+        }
+    }
+    
+    @Override
+    public void removeFromSet(String key, Collection<?> elements) {
+        long ownId = nearCache.tryOwn(key);
+        try {
+            globalCache.removeFromSet(key, elements);
+            nearCache.remove(key);
+        } finally {
+            releaseWrittenKey(ownId, key);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> V putIfAbsent(String key, Object value) {
+        long ownId = nearCache.tryOwn(key);
+        try {
+            Entry entry = globalCache.putIfAbsentEntry(key, value);
+            putIntoNearCache(ownId, key, entry);
+            return entry.value != value ? (V) entry.value : null;
+        } finally {
+            releaseWrittenKey(ownId, key);
+        }
+    }
+    
+    @Override
+    public void flush() {
+        // Pending values are already in near-cache, only the global cache has writes to flush
+        globalCache.flush();
+    }
+    
+    /**
+     * Takes the last snapshot of the near-cache (if snapshots are enabled) and closes both tiers, 
+     * so the cache cannot be used anymore.
+     */
+    public synchronized void close() {
+        ScheduledFuture<?> snapshotTaskFuture = periodicSnapshot;
+        if (snapshotTaskFuture != null) {
+            snapshotTaskFuture.cancel(false);
+            periodicSnapshot = null;
+            try {
+                snapshot();
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred while taking snapshot of near-cache!", t);
+            }
+        }
+        if (thawDetector != null) {
+            thawDetector.stop();
+        }
+        // Global cache is closed first, so the stream doesn't touch the near-cache being closed
+        globalCache.close();
+        nearCache.getLocalCache().close();
+        SambaMetricsRegistry.unregister(metrics);
+    }
+    
+    @Override
+    public void setSerializer(String key, SambaSerializer serializer) {
+        globalCache.setSerializer(key, serializer);
+    }
 
     @Override
     public void remove(String key) {
@@ -192,7 +841,7 @@ public class SambaTieredCache implements SambaCache {
             globalCache.remove(key);
             nearCache.remove(key);
         } finally {
-            nearCache.releaseIfOwned(ownId, key);
+            releaseWrittenKey(ownId, key);
         }
         
         if (LOGGER.isDebugEnabled()) {
@@ -201,6 +850,234 @@ public class SambaTieredCache implements SambaCache {
         }
     }
     
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> SambaFuture<V> getAsync(final String key) {
+        // Async reads don't wait for the stream to catch up after a thaw, they are just validated
+        Object value = getFromNearCache(key, false);
+        if (value != null) {
+            return SambaFuture.completed((V) value);
+        }
+        
+        final SambaFuture<V> future = new SambaFuture<V>();
+        final long ownId = nearCache.tryOwn(key);
+        try {
+            globalCache.getEntryAsync(key).addListener(new SambaFutureListener<Entry>() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public void onSuccess(Entry entry) {
+                    try {
+                        putIntoNearCache(ownId, key, entry);
+                    } finally {
+                        nearCache.releaseIfOwned(ownId, key);
+                    }
+                    future.complete((V) entry.value);
+                }
+                
+                @Override
+                public void onFailure(Throwable error) {
+                    nearCache.releaseIfOwned(ownId, key);
+                    future.fail(error);
+                }
+            });
+        } catch (RuntimeException e) {
+            nearCache.releaseIfOwned(ownId, key);
+            throw e;
+        }
+        return future;
+    }
+    
+    @Override
+    public SambaFuture<Void> putAsync(final String key, final Object value) {
+        if (value == null) {
+            return removeAsync(key);
+        }
+        
+        final SambaFuture<Void> future = new SambaFuture<Void>();
+        final long ownId = nearCache.tryOwn(key);
+        try {
+            globalCache.putEntryAsync(key, value, true).addListener(new SambaFutureListener<Entry>() {
+                @Override
+                public void onSuccess(Entry entry) {
+                    try {
+                        nearCache.putIfAvailable(ownId, key, value, entry.version);
+                    } finally {
+                        releaseWrittenKey(ownId, key);
+                    }
+                    future.complete(null);
+                }
+                
+                @Override
+                public void onFailure(Throwable error) {
+                    releaseWrittenKey(ownId, key);
+                    future.fail(error);
+                }
+            });
+        } catch (RuntimeException e) {
+            releaseWrittenKey(ownId, key);
+            throw e;
+        }
+        return future;
+    }
+    
+    @Override
+    public SambaFuture<Boolean> replaceAsync(final String key, Object oldValue, final Object newValue) {
+        final SambaFuture<Boolean> future = new SambaFuture<Boolean>();
+        final long ownId = nearCache.tryOwn(key);
+        try {
+            globalCache.replaceEntryAsync(key, oldValue, newValue, true).addListener(new SambaFutureListener<Entry>() {
+                @Override
+                public void onSuccess(Entry newEntry) {
+                    try {
+                        if (newEntry != null) {
+                            if (newValue == null) {
+                                nearCache.remove(key);
+                            } else {
+                                nearCache.putIfAvailable(ownId, key, newValue, newEntry.version);
+                            }
+                        }
+                    } finally {
+                        releaseWrittenKey(ownId, key);
+                    }
+                    future.complete(newEntry != null);
+                }
+                
+                @Override
+                public void onFailure(Throwable error) {
+                    releaseWrittenKey(ownId, key);
+                    future.fail(error);
+                }
+            });
+        } catch (RuntimeException e) {
+            releaseWrittenKey(ownId, key);
+            throw e;
+        }
+        return future;
+    }
+    
+    @Override
+    public SambaFuture<Void> removeAsync(final String key) {
+        final SambaFuture<Void> future = new SambaFuture<Void>();
+        final long ownId = nearCache.tryOwn(key);
+        try {
+            globalCache.removeAsync(key).addListener(new SambaFutureListener<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    try {
+                        nearCache.remove(key);
+                    } finally {
+                        releaseWrittenKey(ownId, key);
+                    }
+                    future.complete(null);
+                }
+                
+                @Override
+                public void onFailure(Throwable error) {
+                    releaseWrittenKey(ownId, key);
+                    future.fail(error);
+                }
+            });
+        } catch (RuntimeException e) {
+            releaseWrittenKey(ownId, key);
+            throw e;
+        }
+        return future;
+    }
+    
+    @Override
+    public Map<String, Object> getAll(Collection<String> keys) {
+        Map<String, Object> values = new HashMap<String, Object>(keys.size());
+        List<String> missedKeys = new ArrayList<String>();
+        for (String key : keys) {
+            Object value = getFromNearCache(key, true);
+            if (value != null) {
+                values.put(key, value);
+            } else {
+                missedKeys.add(key);
+            }
+        }
+        if (!missedKeys.isEmpty()) {
+            // Keys sharing the same slot are not owned at the same time, 
+            // so only one of them might be put into near-cache, but this is still safe
+            long[] ownIds = new long[missedKeys.size()];
+            for (int i = 0; i < ownIds.length; i++) {
+                ownIds[i] = nearCache.tryOwn(missedKeys.get(i));
+            }
+            try {
+                Map<String, Entry> entries = globalCache.getAllEntries(missedKeys);
+                for (int i = 0; i < ownIds.length; i++) {
+                    String key = missedKeys.get(i);
+                    Entry entry = entries.get(key);
+                    if (entry != null) {
+                        putIntoNearCache(ownIds[i], key, entry);
+                        values.put(key, entry.value);
+                    }
+                }
+            } finally {
+                for (int i = 0; i < ownIds.length; i++) {
+                    nearCache.releaseIfOwned(ownIds[i], missedKeys.get(i));
+                }
+            }
+        }
+        
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d values have been retrieved from tiered cache for %d keys " + 
+                                  "(%d of them are from global cache)", 
+                                  values.size(), keys.size(), missedKeys.size()));
+        }
+        
+        return values;
+    }
+    
+    @Override
+    public void putAll(Map<String, ?> entries) {
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        long[] ownIds = new long[keys.size()];
+        for (int i = 0; i < ownIds.length; i++) {
+            ownIds[i] = nearCache.tryOwn(keys.get(i));
+        }
+        try {
+            globalCache.putAll(entries);
+            // Values written in batch have no version, so they are not cached here without it 
+            // but read (with their versions once they are updated) on the next access
+            for (String key : keys) {
+                nearCache.remove(key);
+            }
+        } finally {
+            for (int i = 0; i < ownIds.length; i++) {
+                releaseWrittenKey(ownIds[i], keys.get(i));
+            }
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d entries have been put into tiered cache", entries.size()));
+        }
+    }
+    
+    @Override
+    public void removeAll(Collection<String> keys) {
+        List<String> keyList = new ArrayList<String>(keys);
+        long[] ownIds = new long[keyList.size()];
+        for (int i = 0; i < ownIds.length; i++) {
+            ownIds[i] = nearCache.tryOwn(keyList.get(i));
+        }
+        try {
+            globalCache.removeAll(keyList);
+            for (String key : keyList) {
+                nearCache.remove(key);
+            }
+        } finally {
+            for (int i = 0; i < ownIds.length; i++) {
+                releaseWrittenKey(ownIds[i], keyList.get(i));
+            }
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d keys have been removed from tiered cache", keys.size()));
+        }
+    }
+    
     @Override
     public void clear() {
         nearCache.ownAll();
@@ -208,6 +1085,7 @@ public class SambaTieredCache implements SambaCache {
             globalCache.clear();
             nearCache.clear();
         } finally {
+            inFlightLoads.clear();
             nearCache.releaseAll();
         }
         if (LOGGER.isDebugEnabled()) {
@@ -215,53 +1093,115 @@ public class SambaTieredCache implements SambaCache {
         }
     }
     
-    private class NearCache {
+    static final class NearCache {
 
-        private final int SLOT_COUNT = 1024;
-        private final int SLOT_MASK = SLOT_COUNT - 1;
+        // Each slot takes a whole cache line (8 longs = 64 bytes), 
+        // so threads working on different slots don't invalidate each other's cache lines
+        private static final int SLOT_STRIDE = 8;
+        private static final int SLOT_STRIDE_SHIFT = 3;
+        private static final int MIN_SLOT_COUNT = 1024;
+        private static final int SLOTS_PER_PROCESSOR = 256;
+        private static final int FAILURE_COUNTER_STRIPE_COUNT = 
+                nextPowerOfTwo(Runtime.getRuntime().availableProcessors());
+        
+        private final int slotCount;
+        private final int slotMask;
+        private final AtomicLongArray slotStates;
+        // Striped per thread, so failures on a contended slot are counted without another contention point 
+        private final AtomicLongArray ownFailureCounts = 
+                new AtomicLongArray(FAILURE_COUNTER_STRIPE_COUNT * SLOT_STRIDE);
+        private final AtomicLongArray putFailureCounts = 
+                new AtomicLongArray(FAILURE_COUNTER_STRIPE_COUNT * SLOT_STRIDE);
+        private final SambaLocalCache localCache;
+        // Keys of the entries restored from a snapshot which haven't been written since then
+        private volatile Set<String> restoredKeys;
         
-        private final AtomicLongArray slotStates = new AtomicLongArray(SLOT_COUNT * 4);
-        private final SambaCache localCache;
+        NearCache(SambaLocalCache localCache) {
+            this(localCache, defaultSlotCount());
+        }
         
-        private NearCache(SambaCache localCache) {
+        NearCache(SambaLocalCache localCache, int slotCount) {
+            if (slotCount <= 0) {
+                throw new IllegalArgumentException("Slot count must be positive: " + slotCount);
+            }
             this.localCache = localCache;
+            this.slotCount = nextPowerOfTwo(slotCount);
+            this.slotMask = this.slotCount - 1;
+            this.slotStates = new AtomicLongArray(this.slotCount * SLOT_STRIDE);
+        }
+        
+        private static int defaultSlotCount() {
+            return Math.max(MIN_SLOT_COUNT, Runtime.getRuntime().availableProcessors() * SLOTS_PER_PROCESSOR);
+        }
+        
+        private static int nextPowerOfTwo(int value) {
+            int highestOneBit = Integer.highestOneBit(value);
+            if (highestOneBit == value) {
+                return value;
+            }
+            return highestOneBit << 1;
+        }
+        
+        int getSlotCount() {
+            return slotCount;
         }
         
-        private int getSlot(String key) {
+        int getSlot(String key) {
+            // Mix all the bits of the hash code (finalizer of MurmurHash3), 
+            // so keys differing only in high bits (or similar keys like "key-1", "key-2") are spread over slots
             int hash = key.hashCode();
-            return hash & SLOT_MASK;
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+            hash *= 0xC2B2AE35;
+            hash ^= hash >>> 16;
+            return hash & slotMask;
         }
         
         private int ownIdIndex(int slot) {
-            return (slot << 2);
+            return (slot << SLOT_STRIDE_SHIFT);
         }
         
         private int activeCountIndex(int slot) {
-            return (slot << 2) + 1;
+            return (slot << SLOT_STRIDE_SHIFT) + 1;
         }
         
         private int completedCountIndex(int slot) {
-            return (slot << 2) + 2;
+            return (slot << SLOT_STRIDE_SHIFT) + 2;
+        }
+        
+        private static int failureCounterIndex() {
+            return ((int) Thread.currentThread().getId() & (FAILURE_COUNTER_STRIPE_COUNT - 1)) << SLOT_STRIDE_SHIFT;
+        }
+        
+        private static long sumOf(AtomicLongArray counts) {
+            long sum = 0;
+            for (int i = 0; i < FAILURE_COUNTER_STRIPE_COUNT; i++) {
+                sum += counts.get(i << SLOT_STRIDE_SHIFT);
+            }
+            return sum;
         }
 
-        private long tryOwn(String key) {
+        long tryOwn(String key) {
             long ownId = -1;
             int slot = getSlot(key);
             long currentCompleted = slotStates.get(completedCountIndex(slot));
             if (slotStates.compareAndSet(ownIdIndex(slot), 0, currentCompleted)) {
                 ownId = currentCompleted;
+            } else {
+                ownFailureCounts.incrementAndGet(failureCounterIndex());
             }
             slotStates.incrementAndGet(activeCountIndex(slot));
             return ownId;
         }
         
-        private void ownAll() {
-            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+        void ownAll() {
+            for (int slot = 0; slot < slotCount; slot++) {
                 slotStates.incrementAndGet(activeCountIndex(slot));
             }    
         }
 
-        private void releaseIfOwned(long ownId, String key) {
+        void releaseIfOwned(long ownId, String key) {
             int slot = getSlot(key);
             slotStates.incrementAndGet(completedCountIndex(slot));
             slotStates.decrementAndGet(activeCountIndex(slot));
@@ -270,41 +1210,128 @@ public class SambaTieredCache implements SambaCache {
             }   
         }
         
-        private void releaseAll() {
-            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+        void releaseAll() {
+            for (int slot = 0; slot < slotCount; slot++) {
                 slotStates.incrementAndGet(completedCountIndex(slot));
                 slotStates.decrementAndGet(activeCountIndex(slot));
             }
         }
         
-        private boolean putIfAvailable(long ownId, String key, Object value) {
+        /**
+         * Gets the number of times a slot couldn't be owned since it was already owned by another operation.
+         */
+        long getOwnFailureCount() {
+            return sumOf(ownFailureCounts);
+        }
+        
+        /**
+         * Gets the number of times a value couldn't be put into near-cache 
+         * since its slot was not owned or was accessed concurrently.
+         */
+        long getPutFailureCount() {
+            return sumOf(putFailureCounts);
+        }
+        
+        boolean putIfAvailable(long ownId, String key, Object value) {
+            if (isAvailable(ownId, key)) {
+                put(key, value);
+                return true;
+            }
+            return false;
+        }
+        
+        boolean putIfAvailable(long ownId, String key, Object value, long version) {
+            return putIfAvailable(ownId, key, value, null, version);
+        }
+        
+        boolean putIfAvailable(long ownId, String key, Object value, ByteBuffer data, long version) {
+            if (isAvailable(ownId, key)) {
+                localCache.putVersioned(key, value, data, version);
+                unmarkRestored(key);
+                return true;
+            }
+            return false;
+        }
+        
+        boolean putIfAvailable(long ownId, String key, Object value, long version, 
+                               long ttl, TimeUnit timeUnit) {
+            return putIfAvailable(ownId, key, value, null, version, ttl, timeUnit);
+        }
+        
+        boolean putIfAvailable(long ownId, String key, Object value, ByteBuffer data, long version, 
+                               long ttl, TimeUnit timeUnit) {
+            if (isAvailable(ownId, key)) {
+                localCache.putVersioned(key, value, data, version, ttl, timeUnit);
+                unmarkRestored(key);
+                return true;
+            }
+            return false;
+        }
+        
+        private boolean isAvailable(long ownId, String key) {
             if (ownId >= 0) {
                 int slot = getSlot(key);
                 long activeCount = slotStates.get(activeCountIndex(slot));
                 long expectedCompleted = ownId;
                 long currentCompleted = slotStates.get(completedCountIndex(slot));
                 if (activeCount == 1 && currentCompleted == expectedCompleted) {
-                    put(key, value);
                     return true;
-                }   
+                }
             }
+            putFailureCounts.incrementAndGet(failureCounterIndex());
             return false;
         }
 
-        private Object get(String key) {
+        Object get(String key) {
             return localCache.get(key);
         }
 
-        private void put(String key, Object value) {
+        SambaLocalCache getLocalCache() {
+            return localCache;
+        }
+        
+        void put(String key, Object value) {
             localCache.put(key, value);
+            unmarkRestored(key);
         }
 
-        private void remove(String key) {
+        void remove(String key) {
             localCache.remove(key);
+            unmarkRestored(key);
         }
 
-        private void clear() {
+        void clear() {
             localCache.clear();
+            restoredKeys = null;
+        }
+        
+        void markRestored(Set<String> keys) {
+            restoredKeys = keys.isEmpty() ? null : keys;
+        }
+        
+        /**
+         * Returns <code>true</code> if the entry with the key has been restored from a snapshot 
+         * and hasn't been written since then.
+         */
+        boolean isRestored(String key) {
+            Set<String> keys = restoredKeys;
+            return keys != null && keys.contains(key);
+        }
+        
+        Set<String> getRestoredKeys() {
+            Set<String> keys = restoredKeys;
+            return keys != null ? keys : Collections.<String>emptySet();
+        }
+        
+        void clearRestored() {
+            restoredKeys = null;
+        }
+        
+        private void unmarkRestored(String key) {
+            Set<String> keys = restoredKeys;
+            if (keys != null) {
+                keys.remove(key);
+            }
         }
 
     }   
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
+import com.amazonaws.services.dynamodbv2.model.ExpiredIteratorException;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.Shard;
+import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
+import com.amazonaws.services.dynamodbv2.model.StreamDescription;
+import com.amazonaws.services.dynamodbv2.model.TrimmedDataAccessException;
+
+/**
+ * Consumes the stream of a DynamoDB table.
+ * 
+ * Stream and shard metadata are cached and only refreshed on shard rollover 
+ * (when a consumed shard is closed) or on failures, so there is no control-plane call while polling.
+ * Each shard is consumed by its own task, so shards are consumed in parallel 
+ * and a busy shard doesn't delay the others. 
+ * A shard is polled again immediately while it has records 
+ * and its polling delay is doubled up to the maximum delay while it is idle.
+ * 
+ * Consumption can be resumed from a {@link Checkpoint} taken by a previous consumer of the same stream, 
+ * so the records written in the meantime are not missed.
+ */
+class StreamConsumer {
+
+    private static final Logger LOGGER = Logger.getLogger(StreamConsumer.class);
+    
+    private final AmazonDynamoDB dynamoDB;
+    private final AmazonDynamoDBStreams dynamoDBStreams;
+    private final String tableName;
+    private final ScheduledExecutorService executorService;
+    private final long minPollDelayMillis;
+    private final long maxPollDelayMillis;
+    private final RecordProcessor recordProcessor;
+    private final ConcurrentMap<String, ShardConsumer> shardConsumers = 
+            new ConcurrentHashMap<String, ShardConsumer>();
+    // Closed shards are still listed for a while, so they are remembered not to be consumed again
+    private final Set<String> completedShardIds = new HashSet<String>();
+    // Closed shards consumed fully whose child shards haven't been listed yet, 
+    // so the shards are listed again until their children show up
+    private final Set<String> childlessShardIds = new HashSet<String>();
+    // Initial positions taken by a failed start are kept, 
+    // so the start is not moved forward by the retries (which would skip the changes done in the meantime)
+    private final Map<String, String> initialIterators = new HashMap<String, String>();
+    // Notified whenever a shard is found to be consumed fully
+    private final Object caughtUpMonitor = new Object();
+    private String streamArn;
+    private volatile boolean started;
+    private volatile boolean stopped;
+    
+    StreamConsumer(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams, String tableName, 
+                   ScheduledExecutorService executorService, long minPollDelayMillis, long maxPollDelayMillis, 
+                   RecordProcessor recordProcessor) {
+        this.dynamoDB = dynamoDB;
+        this.dynamoDBStreams = dynamoDBStreams;
+        this.tableName = tableName;
+        this.executorService = executorService;
+        this.minPollDelayMillis = minPollDelayMillis;
+        this.maxPollDelayMillis = maxPollDelayMillis;
+        this.recordProcessor = recordProcessor;
+    }
+    
+    interface RecordProcessor {
+        
+        void process(Record record);
+        
+        /**
+         * Called when some records of a shard might have been skipped 
+         * (such as the ones written while its iterator was expired before any record was processed), 
+         * so the changes they carry are not known.
+         */
+        void onRecordsMissed();
+        
+    }
+    
+    /**
+     * Starts consuming from the latest records of the open shards. 
+     * The caller is blocked until the initial positions are taken, 
+     * so changes done after this call are not missed.
+     * If they cannot be taken, nothing is started and the failure is thrown, so the caller can retry. 
+     * Otherwise, a retry here later would silently skip the changes done in the meantime.
+     */
+    synchronized void start() {
+        listShards();
+    }
+    
+    /**
+     * Starts consuming just after the records processed before the given checkpoint 
+     * and from the beginning of the shards created after it. 
+     * If the stream cannot be resumed from the checkpoint (such as it is a different stream 
+     * or records after the checkpoint have already been trimmed), 
+     * starts consuming from the latest records like {@link #start()} and returns <code>false</code> 
+     * (or throws the failure if it cannot be started from there either).
+     */
+    synchronized boolean start(Checkpoint checkpoint) {
+        Map<String, String> iterators = null;
+        try {
+            streamArn = dynamoDB.describeTable(tableName).getTable().getLatestStreamArn();
+            iterators = resumeIterators(checkpoint);
+        } catch (Throwable t) {
+            LOGGER.warn(
+                    String.format("Unable to resume the stream of DynamoDB table (%s) from checkpoint", tableName), t);
+        }
+        if (iterators == null) {
+            start();
+            return false;
+        }
+        completedShardIds.addAll(checkpoint.completedShardIds);
+        // Children of the shards completed just before the checkpoint might not be listed yet as well
+        childlessShardIds.addAll(checkpoint.completedShardIds);
+        for (Map.Entry<String, String> entry : iterators.entrySet()) {
+            String shardId = entry.getKey();
+            startShardConsumer(
+                    shardId, entry.getValue(), checkpoint.sequenceNumbers.get(shardId), false, "checkpoint");
+        }
+        started = true;
+        // Picks up the shards created after the checkpoint
+        refreshShards();
+        return true;
+    }
+    
+    /**
+     * Stops consuming the stream, so the shards are not polled anymore after their current polls.
+     */
+    void stop() {
+        stopped = true;
+    }
+    
+    private Map<String, String> resumeIterators(Checkpoint checkpoint) {
+        if (!checkpoint.streamArn.equals(streamArn)) {
+            LOGGER.info(
+                    String.format("Checkpoint is not taken from the current stream %s of DynamoDB table (%s)", 
+                                  streamArn, tableName));
+            return null;
+        }
+        Set<String> shardIds = new HashSet<String>();
+        for (Shard shard : describeShards()) {
+            shardIds.add(shard.getShardId());
+        }
+        // All the iterators are taken before consuming any of them, 
+        // so nothing has been started yet if the checkpoint turns out to be not resumable
+        Map<String, String> iterators = new HashMap<String, String>(checkpoint.sequenceNumbers.size());
+        for (Map.Entry<String, String> entry : checkpoint.sequenceNumbers.entrySet()) {
+            String shardId = entry.getKey();
+            String sequenceNumber = entry.getValue();
+            if (!shardIds.contains(shardId)) {
+                LOGGER.info(
+                        String.format("Shard %s of checkpoint has already been trimmed from the stream %s", 
+                                      shardId, streamArn));
+                return null;
+            }
+            try {
+                if (sequenceNumber != null) {
+                    iterators.put(
+                            shardId, 
+                            getShardIterator(shardId, ShardIteratorType.AFTER_SEQUENCE_NUMBER, sequenceNumber));
+                } else {
+                    // Position in the shard is not known, so all of its records are consumed again
+                    iterators.put(shardId, getShardIterator(shardId, ShardIteratorType.TRIM_HORIZON, null));
+                }
+            } catch (TrimmedDataAccessException e) {
+                LOGGER.info(
+                        String.format("Records of shard %s after checkpoint have already been trimmed " + 
+                                      "from the stream %s", shardId, streamArn));
+                return null;
+            }
+        }
+        return iterators;
+    }
+    
+    /**
+     * Gets the positions of the processed records, 
+     * so the consumption can be resumed from there by {@link #start(Checkpoint)} later. 
+     * Returns <code>null</code> if the consumption has not been started yet.
+     */
+    synchronized Checkpoint getCheckpoint() {
+        if (!started) {
+            return null;
+        }
+        Map<String, String> sequenceNumbers = new HashMap<String, String>(shardConsumers.size());
+        for (ShardConsumer shardConsumer : shardConsumers.values()) {
+            sequenceNumbers.put(shardConsumer.shardId, shardConsumer.lastSequenceNumber);
+        }
+        return new Checkpoint(streamArn, sequenceNumbers, new HashSet<String>(completedShardIds));
+    }
+    
+    /**
+     * Gets the elapsed time (in milliseconds) since each shard was last known to be consumed fully.
+     * In other words, the changes done before this duration have already been processed.
+     */
+    Map<String, Long> getShardLags() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> shardLags = new HashMap<String, Long>(shardConsumers.size());
+        for (ShardConsumer shardConsumer : shardConsumers.values()) {
+            shardLags.put(shardConsumer.shardId, Math.max(0, now - shardConsumer.caughtUpTime));
+        }
+        return shardLags;
+    }
+    
+    /**
+     * Returns <code>true</code> if all the records written before the given time have been processed.
+     */
+    boolean isCaughtUp(long sinceTimeMillis) {
+        if (!started) {
+            return false;
+        }
+        for (ShardConsumer shardConsumer : shardConsumers.values()) {
+            if (shardConsumer.caughtUpTime < sinceTimeMillis) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Waits until all the records written before the given time have been processed 
+     * and returns <code>false</code> if they couldn't be processed in the given timeout. 
+     * Polls overdue while waiting (such as the ones missed while the process is frozen) run right away, 
+     * so shards catch up as fast as they can.
+     */
+    boolean awaitCaughtUp(long sinceTimeMillis, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (caughtUpMonitor) {
+            while (!isCaughtUp(sinceTimeMillis)) {
+                long remainingMillis = deadline - System.currentTimeMillis();
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                caughtUpMonitor.wait(remainingMillis);
+            }
+            return true;
+        }
+    }
+    
+    private synchronized void refreshShards() {
+        try {
+            listShards();
+            if (childlessShardIds.isEmpty()) {
+                return;
+            }
+            // Child shards might not be listed as soon as their parent is closed
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        String.format("Child shards of closed shards %s of the stream %s are not listed yet", 
+                                      childlessShardIds, streamArn));
+            }
+        } catch (Throwable t) {
+            LOGGER.error(
+                    String.format("Error occurred while refreshing shards of the stream of DynamoDB table (%s)! " + 
+                                  "Will be retried.", tableName), t);
+        }
+        if (stopped) {
+            return;
+        }
+        executorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refreshShards();
+            }
+        }, maxPollDelayMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Lists the shards and starts consuming the ones which are not consumed yet 
+     * (and whose parents have already been consumed).
+     */
+    private synchronized void listShards() {
+        try {
+            if (streamArn == null) {
+                streamArn = dynamoDB.describeTable(tableName).getTable().getLatestStreamArn();
+            }
+            List<Shard> shards = describeShards();
+            Set<String> shardIds = new HashSet<String>(shards.size());
+            for (Shard shard : shards) {
+                shardIds.add(shard.getShardId());
+            }
+            for (Shard shard : shards) {
+                childlessShardIds.remove(shard.getParentShardId());
+            }
+            childlessShardIds.retainAll(shardIds);
+            // Initial positions are all taken before consuming any of them, 
+            // so nothing has been started if any of them cannot be taken
+            initialIterators.keySet().retainAll(shardIds);
+            for (Shard shard : shards) {
+                String shardId = shard.getShardId();
+                if (shardConsumers.containsKey(shardId) || completedShardIds.contains(shardId)) {
+                    continue;
+                }
+                String parentShardId = shard.getParentShardId();
+                if (parentShardId != null
+                        && (shardConsumers.containsKey(parentShardId)
+                                || initialIterators.containsKey(parentShardId)
+                                || (started
+                                        && shardIds.contains(parentShardId)
+                                        && !completedShardIds.contains(parentShardId)))) {
+                    // Records of a key must be processed in order, 
+                    // so child shard is consumed after its parent shard is completed
+                    continue;
+                }
+                boolean closed = shard.getSequenceNumberRange().getEndingSequenceNumber() != null;
+                if (!started) {
+                    // Shard might have been closed after its initial position was taken by a failed start, 
+                    // then it is still consumed from there
+                    if (!closed && !initialIterators.containsKey(shardId)) {
+                        initialIterators.put(shardId, getShardIterator(shardId, ShardIteratorType.LATEST, null));
+                    }
+                } else {
+                    // Shard is created after the start, so all of its records are interested
+                    startShardConsumer(shardId, ShardIteratorType.TRIM_HORIZON);
+                }
+            }
+            if (!started) {
+                for (Shard shard : shards) {
+                    String shardId = shard.getShardId();
+                    if (shard.getSequenceNumberRange().getEndingSequenceNumber() != null
+                            && !initialIterators.containsKey(shardId)) {
+                        // History before the start is not interested
+                        completedShardIds.add(shardId);
+                    }
+                }
+                for (Map.Entry<String, String> entry : initialIterators.entrySet()) {
+                    startShardConsumer(
+                            entry.getKey(), entry.getValue(), null, true, ShardIteratorType.LATEST.toString());
+                }
+                initialIterators.clear();
+            }
+            // Forget the shards which are not listed anymore
+            completedShardIds.retainAll(shardIds);
+            started = true;
+        } catch (ResourceNotFoundException e) {
+            // Stream might have been disabled and enabled again
+            streamArn = null;
+            throw e;
+        }
+    }
+    
+    private List<Shard> describeShards() {
+        List<Shard> shards = new ArrayList<Shard>();
+        String lastEvaluatedShardId = null;
+        do {
+            StreamDescription streamDescription = 
+                    dynamoDBStreams.describeStream(
+                            new DescribeStreamRequest().
+                                    withStreamArn(streamArn).
+                                    withExclusiveStartShardId(lastEvaluatedShardId)).getStreamDescription();
+            shards.addAll(streamDescription.getShards());
+            lastEvaluatedShardId = streamDescription.getLastEvaluatedShardId();
+        } while (lastEvaluatedShardId != null);
+        return shards;
+    }
+    
+    private void startShardConsumer(String shardId, ShardIteratorType shardIteratorType) {
+        startShardConsumer(shardId, getShardIterator(shardId, shardIteratorType, null), null, 
+                           shardIteratorType == ShardIteratorType.LATEST, shardIteratorType.toString());
+    }
+    
+    private void startShardConsumer(String shardId, String iterator, String lastSequenceNumber, 
+                                    boolean fromLatest, String position) {
+        ShardConsumer shardConsumer = new ShardConsumer(shardId, fromLatest);
+        shardConsumer.iterator = iterator;
+        shardConsumer.lastSequenceNumber = lastSequenceNumber;
+        shardConsumers.put(shardId, shardConsumer);
+        executorService.execute(shardConsumer);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Started consuming shard %s of the stream %s from %s", 
+                                  shardId, streamArn, position));
+        }
+    }
+    
+    private String getShardIterator(String shardId, ShardIteratorType shardIteratorType, String sequenceNumber) {
+        return dynamoDBStreams.getShardIterator(
+                    new GetShardIteratorRequest().
+                            withStreamArn(streamArn).
+                            withShardId(shardId).
+                            withShardIteratorType(shardIteratorType).
+                            withSequenceNumber(sequenceNumber)).getShardIterator();
+    }
+    
+    private void completeShardConsumer(ShardConsumer shardConsumer) {
+        synchronized (this) {
+            shardConsumers.remove(shardConsumer.shardId);
+            completedShardIds.add(shardConsumer.shardId);
+            childlessShardIds.add(shardConsumer.shardId);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Completed consuming closed shard %s of the stream %s", 
+                                  shardConsumer.shardId, streamArn));
+        }
+        // Shard is closed, so its child shards must be consumed from now on
+        refreshShards();
+    }
+    
+    /**
+     * Position of the processed records in the stream. 
+     * Sequence number of a shard is <code>null</code> if no record of it has been processed yet 
+     * (then it is consumed from its beginning when resumed).
+     */
+    static final class Checkpoint {
+        
+        final String streamArn;
+        final Map<String, String> sequenceNumbers;
+        final Set<String> completedShardIds;
+        
+        Checkpoint(String streamArn, Map<String, String> sequenceNumbers, Set<String> completedShardIds) {
+            this.streamArn = streamArn;
+            this.sequenceNumbers = sequenceNumbers;
+            this.completedShardIds = completedShardIds;
+        }
+        
+    }
+    
+    /**
+     * Polls its shard and reschedules itself, so a shard is never polled concurrently.
+     */
+    private class ShardConsumer implements Runnable {
+        
+        private final String shardId;
+        // Records before the start are not interested if the shard is consumed from its latest records
+        private final boolean fromLatest;
+        private String iterator;
+        // Read by the checkpoints
+        private volatile String lastSequenceNumber;
+        private long pollDelayMillis;
+        private volatile long caughtUpTime = System.currentTimeMillis();
+        
+        private ShardConsumer(String shardId, boolean fromLatest) {
+            this.shardId = shardId;
+            this.fromLatest = fromLatest;
+        }
+        
+        @Override
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            try {
+                long pollTime = System.currentTimeMillis();
+                GetRecordsResult getRecordsResult = 
+                        dynamoDBStreams.getRecords(new GetRecordsRequest().withShardIterator(iterator));
+                List<Record> records = getRecordsResult.getRecords();
+                for (Record record : records) {
+                    try {
+                        recordProcessor.process(record);
+                    } catch (Throwable t) {
+                        LOGGER.error("Error occurred while processing stream record!", t);
+                    }
+                    lastSequenceNumber = record.getDynamodb().getSequenceNumber();
+                }
+                iterator = getRecordsResult.getNextShardIterator();
+                if (iterator == null) {
+                    completeShardConsumer(this);
+                    return;
+                }
+                if (records.isEmpty()) {
+                    caughtUpTime = pollTime;
+                    synchronized (caughtUpMonitor) {
+                        caughtUpMonitor.notifyAll();
+                    }
+                    if (pollDelayMillis == 0) {
+                        pollDelayMillis = minPollDelayMillis;
+                    } else {
+                        pollDelayMillis = Math.min(pollDelayMillis << 1, maxPollDelayMillis);
+                    }
+                } else {
+                    // There might be more records, so don't wait
+                    pollDelayMillis = 0;
+                }
+            } catch (ExpiredIteratorException e) {
+                iterator = resumeIterator();
+            } catch (TrimmedDataAccessException e) {
+                // Records after the last processed one have already been trimmed, so continue from the oldest one
+                // (or from the latest one if the shard is consumed from there)
+                lastSequenceNumber = null;
+                iterator = resumeIterator();
+            } catch (Throwable t) {
+                LOGGER.error(
+                        String.format("Error occurred while consuming shard %s of the stream %s!", 
+                                      shardId, streamArn), t);
+                pollDelayMillis = maxPollDelayMillis;
+                if (iterator == null) {
+                    iterator = resumeIterator();
+                }
+            }
+            if (!stopped) {
+                executorService.schedule(this, pollDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        private String resumeIterator() {
+            try {
+                if (lastSequenceNumber != null) {
+                    return getShardIterator(shardId, ShardIteratorType.AFTER_SEQUENCE_NUMBER, lastSequenceNumber);
+                } else if (fromLatest) {
+                    // Position before any record is not known, and consuming from the oldest record 
+                    // would replay the whole history of the shard (up to 24 hours after a long freeze). 
+                    // So continue from the latest one and report the records possibly skipped in the meantime.
+                    String latestIterator = getShardIterator(shardId, ShardIteratorType.LATEST, null);
+                    recordProcessor.onRecordsMissed();
+                    return latestIterator;
+                } else {
+                    return getShardIterator(shardId, ShardIteratorType.TRIM_HORIZON, null);
+                }
+            } catch (Throwable t) {
+                LOGGER.error(
+                        String.format("Error occurred while resuming shard %s of the stream %s!", 
+                                      shardId, streamArn), t);
+                return null;
+            }
+        }
+        
+    }
+
+}
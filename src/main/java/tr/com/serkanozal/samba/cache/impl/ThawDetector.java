@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Detects that the process has been frozen (such as an AWS Lambda container between invocations) 
+ * and then thawed, so the scheduled tasks (such as the stream polls) haven't run for a while.
+ * 
+ * A ticker is expected to tick at a fixed interval on the monotonic clock. 
+ * If the time since the last tick is longer than the freeze threshold, the ticker couldn't run in the meantime, 
+ * so the process must have been frozen. 
+ * This is checked both by the ticker itself and by {@link #checkThawed()} (mostly on the read path), 
+ * since the caller might run before the overdue ticker after a thaw. 
+ * A long stall (such as a long GC pause) is also detected as a freeze, which is just conservative.
+ */
+class ThawDetector implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ThawDetector.class);
+    
+    private static final long TICK_INTERVAL_MILLIS = 100;
+    // Ticks are not delayed by the other scheduled tasks, so a busy task is not taken as a freeze
+    private static final ScheduledExecutorService TICKER_SCHEDULER = 
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = delegatedThreadFactory.newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    
+    private final long freezeThresholdNanos;
+    private final ThawListener thawListener;
+    private volatile long lastTickTime = System.nanoTime();
+    private volatile ScheduledFuture<?> ticker;
+    
+    ThawDetector(long freezeThresholdMillis, ThawListener thawListener) {
+        if (freezeThresholdMillis <= TICK_INTERVAL_MILLIS) {
+            throw new IllegalArgumentException(
+                    "Freeze threshold must be longer than the tick interval (" + TICK_INTERVAL_MILLIS + 
+                    " milliseconds): " + freezeThresholdMillis);
+        }
+        this.freezeThresholdNanos = TimeUnit.MILLISECONDS.toNanos(freezeThresholdMillis);
+        this.thawListener = thawListener;
+    }
+    
+    interface ThawListener {
+        
+        /**
+         * Called once per thaw with the (wall-clock) time the thaw is detected at. 
+         * It should return quickly since the callers checking the thaw wait for it.
+         */
+        void onThaw(long thawTimeMillis, long frozenMillis);
+        
+    }
+    
+    void start() {
+        ticker = 
+                TICKER_SCHEDULER.scheduleAtFixedRate(
+                        this, TICK_INTERVAL_MILLIS, TICK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    void stop() {
+        ScheduledFuture<?> tickerFuture = ticker;
+        if (tickerFuture != null) {
+            tickerFuture.cancel(false);
+        }
+    }
+    
+    @Override
+    public void run() {
+        try {
+            check(true);
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred while checking thaw!", t);
+        }
+    }
+    
+    /**
+     * Checks whether the process has been thawed since the last check 
+     * and returns <code>true</code> if so (after notifying the listener).
+     */
+    boolean checkThawed() {
+        return check(false);
+    }
+    
+    private boolean check(boolean tick) {
+        long now = System.nanoTime();
+        long lastTick = lastTickTime;
+        long elapsed = now - lastTick;
+        if (elapsed <= freezeThresholdNanos) {
+            // Only the ticker moves the last tick time on the fast path, so the callers don't write to it
+            if (tick) {
+                lastTickTime = now;
+            }
+            return false;
+        }
+        long frozenMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+        synchronized (this) {
+            // Another caller (or the ticker) might have detected the same thaw in the meantime
+            if (lastTickTime != lastTick) {
+                return false;
+            }
+            // Listener is notified before the last tick time is moved, 
+            // so the concurrent callers wait here until the listener has reacted to the thaw
+            thawListener.onThaw(System.currentTimeMillis(), frozenMillis);
+            lastTickTime = now;
+        }
+        LOGGER.info(String.format("Process has been thawed after being frozen for %d milliseconds", frozenMillis));
+        return true;
+    }
+
+}
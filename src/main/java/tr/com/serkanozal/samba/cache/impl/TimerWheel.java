@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+/**
+ * Hierarchical timer wheel to schedule expirations in O(1).
+ *
+ * Each level has buckets spanning power-of-two durations
+ * (~16.7 milliseconds, ~1.07 seconds, ~1.14 minutes, ~1.22 hours, then ~3.26 days as overflow).
+ * Nodes are scheduled into the bucket of the lowest level which covers their delay
+ * and they cascade down to lower levels while the wheel advances.
+ *
+ * Not thread-safe, so callers must guard it with their own lock.
+ * Times are given as {@link System#nanoTime()} values.
+ */
+final class TimerWheel<N extends TimerWheel.Node> {
+
+    private static final int[] BUCKETS = { 64, 64, 64, 64, 1 };
+    private static final int[] SHIFTS = { 24, 30, 36, 42, 48 };
+    
+    private final long origin;
+    private final Node[][] wheel;
+    private long nanos;
+    
+    TimerWheel(long now) {
+        origin = now;
+        wheel = new Node[BUCKETS.length][];
+        for (int i = 0; i < BUCKETS.length; i++) {
+            wheel[i] = new Node[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                wheel[i][j] = new Sentinel();
+            }
+        }
+    }
+    
+    static abstract class Node {
+        
+        private long timerTime;
+        private Node timerPrev;
+        private Node timerNext;
+        
+        final boolean isScheduled() {
+            return timerPrev != null;
+        }
+        
+    }
+    
+    private static final class Sentinel extends Node {
+        
+        private Sentinel() {
+            // Empty circular list
+            Node self = this;
+            self.timerPrev = self;
+            self.timerNext = self;
+        }
+        
+    }
+    
+    interface Expirer<N> {
+        
+        /**
+         * Called for the nodes whose scheduled time has come.
+         * The node is already descheduled, so the expirer can either expire it
+         * or reschedule it for a later time.
+         */
+        void onExpire(N node, long now);
+        
+    }
+    
+    void schedule(N node, long time) {
+        Node n = node;
+        if (n.isScheduled()) {
+            unlink(n);
+        }
+        // Already passed times are put into the current bucket to be expired on the next tick
+        n.timerTime = Math.max(time - origin, nanos);
+        link(findBucket(n.timerTime), n);
+    }
+    
+    void deschedule(N node) {
+        if (node.isScheduled()) {
+            unlink(node);
+        }
+    }
+    
+    void advance(long now, Expirer<N> expirer) {
+        long previous = nanos;
+        long current = now - origin;
+        if (current <= previous) {
+            return;
+        }
+        nanos = current;
+        for (int i = 0; i < SHIFTS.length; i++) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long currentTicks = current >>> SHIFTS[i];
+            if (currentTicks <= previousTicks) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks, now, expirer);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void expire(int level, long previousTicks, long currentTicks, long now, Expirer<N> expirer) {
+        Node[] buckets = wheel[level];
+        int mask = buckets.length - 1;
+        int steps = (int) Math.min(currentTicks - previousTicks + 1, buckets.length);
+        int start = (int) (previousTicks & mask);
+        for (int i = start; i < start + steps; i++) {
+            Node sentinel = buckets[i & mask];
+            Node node = sentinel.timerNext;
+            // Detach whole bucket, so nodes can be rescheduled (even into the same bucket) safely
+            sentinel.timerPrev = sentinel;
+            sentinel.timerNext = sentinel;
+            while (node != sentinel) {
+                Node next = node.timerNext;
+                node.timerPrev = null;
+                node.timerNext = null;
+                if (node.timerTime <= nanos) {
+                    expirer.onExpire((N) node, now);
+                } else {
+                    // Not yet, so cascade into a lower level
+                    link(findBucket(node.timerTime), node);
+                }
+                node = next;
+            }
+        }
+    }
+    
+    private Node findBucket(long time) {
+        long duration = time - nanos;
+        int last = wheel.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (duration < (1L << SHIFTS[i + 1])) {
+                long ticks = time >>> SHIFTS[i];
+                int index = (int) (ticks & (wheel[i].length - 1));
+                return wheel[i][index];
+            }
+        }
+        return wheel[last][0];
+    }
+    
+    private static void link(Node sentinel, Node node) {
+        node.timerPrev = sentinel.timerPrev;
+        node.timerNext = sentinel;
+        sentinel.timerPrev.timerNext = node;
+        sentinel.timerPrev = node;
+    }
+    
+    private static void unlink(Node node) {
+        node.timerPrev.timerNext = node.timerNext;
+        node.timerNext.timerPrev = node.timerPrev;
+        node.timerPrev = null;
+        node.timerNext = null;
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket which limits the rate of the consumed units and adapts its rate to throttling.
+ * 
+ * Units are reserved in advance (the bucket can go into debt), so the callers are queued 
+ * by their arrival and wait smoothly for their turn instead of competing on retries. 
+ * Reservations are corrected later by the actually consumed units. 
+ * On throttling, rate is decreased multiplicatively and it recovers linearly back to the maximum rate over time.
+ */
+class TokenBucket {
+
+    private static final double THROTTLE_DECREASE_FACTOR = 0.7;
+    // Rate is recovered from the minimum to the maximum in this duration if there is no throttling
+    private static final double RECOVERY_SECONDS = 30;
+    
+    private final double maxRate;
+    private final double minRate;
+    private final double burstSeconds;
+    private double rate;
+    private double tokens;
+    private long lastRefillTime;
+    
+    TokenBucket(double maxRate, double burstSeconds) {
+        if (maxRate <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + maxRate);
+        }
+        this.maxRate = maxRate;
+        this.minRate = Math.max(1, maxRate / 100);
+        this.burstSeconds = burstSeconds;
+        this.rate = maxRate;
+        this.tokens = maxRate * burstSeconds;
+        this.lastRefillTime = System.nanoTime();
+    }
+    
+    private void refill(long now) {
+        double elapsedSeconds = (now - lastRefillTime) / (double) TimeUnit.SECONDS.toNanos(1);
+        if (elapsedSeconds <= 0) {
+            return;
+        }
+        lastRefillTime = now;
+        rate = Math.min(maxRate, rate + maxRate * elapsedSeconds / RECOVERY_SECONDS);
+        tokens = Math.min(rate * burstSeconds, tokens + rate * elapsedSeconds);
+    }
+    
+    /**
+     * Reserves the given units and returns how long (in nanoseconds) the caller should wait before consuming them.
+     */
+    synchronized long reserve(double units) {
+        refill(System.nanoTime());
+        tokens -= units;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+    
+    /**
+     * Reserves the given units and waits until they can be consumed.
+     */
+    void acquire(double units) {
+        long waitNanos = reserve(units);
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for capacity", e);
+            }
+        }
+    }
+    
+    /**
+     * Corrects the reservation by the difference between the actually consumed and reserved units.
+     */
+    synchronized void adjust(double units) {
+        tokens -= units;
+    }
+    
+    synchronized void onThrottle() {
+        refill(System.nanoTime());
+        rate = Math.max(minRate, rate * THROTTLE_DECREASE_FACTOR);
+        // Whatever is left has already been shown to be more than the table can take
+        tokens = Math.min(tokens, 0);
+    }
+    
+    synchronized double getRate() {
+        return rate;
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import tr.com.serkanozal.samba.metrics.SambaCounter;
+import tr.com.serkanozal.samba.metrics.SambaGauge;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+
+/**
+ * Buffers the writes to be written later in batches.
+ * 
+ * Repeated writes to the same key are coalesced, so only the last one is written. 
+ * Pending writes are flushed periodically and also as soon as count of the pending keys reaches the threshold. 
+ * Flushes are serialized, so when {@link #flush()} returns, 
+ * all the writes buffered before the call have been written (or failed). 
+ * Writes being flushed are still served by {@link #get(String)} until they are written.
+ * Periodic and threshold flushes are skipped while the writer is not ready, 
+ * so they never block the shared executor (which the writer itself might be waiting for) on the writer.
+ */
+class WriteBehindBuffer {
+
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindBuffer.class);
+    
+    private final ConcurrentMap<String, PendingWrite> pendingWrites = 
+            new ConcurrentHashMap<String, PendingWrite>();
+    // Size of "ConcurrentHashMap" is not a constant time operation, so count of the pending keys is kept aside
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean thresholdFlushScheduled = new AtomicBoolean();
+    private final Writer writer;
+    private final ScheduledExecutorService executorService;
+    private final long flushIntervalMillis;
+    private final int flushThreshold;
+    private final SambaCounter coalescedWrites;
+    private final SambaCounter flushes;
+    private final SambaCounter flushFailures;
+    private volatile Map<String, PendingWrite> flushingWrites = Collections.emptyMap();
+    private volatile ScheduledFuture<?> periodicFlush;
+    
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            thresholdFlushScheduled.set(false);
+            if (!writer.isReady()) {
+                // Pending writes are kept to be written by the next periodic flush
+                return;
+            }
+            try {
+                flush();
+            } catch (Throwable t) {
+                // Failed writes are kept to be retried by the next flush
+                LOGGER.error("Error occurred while flushing pending writes!", t);
+            }
+        }
+    };
+    
+    WriteBehindBuffer(Writer writer, ScheduledExecutorService executorService, 
+                      long flushIntervalMillis, int flushThreshold, SambaMetrics metrics) {
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive: " + flushIntervalMillis);
+        }
+        if (flushThreshold <= 0) {
+            throw new IllegalArgumentException("Flush threshold must be positive: " + flushThreshold);
+        }
+        this.writer = writer;
+        this.executorService = executorService;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flushThreshold = flushThreshold;
+        this.coalescedWrites = metrics.counter("writeBehindCoalescedWrites");
+        this.flushes = metrics.counter("writeBehindFlushes");
+        this.flushFailures = metrics.counter("writeBehindFlushFailures");
+        metrics.gauge("writeBehindPendingWrites", new SambaGauge() {
+            @Override
+            public long getValue() {
+                return pendingCount.get();
+            }
+        });
+    }
+    
+    interface Writer {
+        
+        /**
+         * Writes the given pending writes where <code>null</code> values are removals.
+         */
+        void write(Map<String, PendingWrite> writes);
+        
+        /**
+         * Returns <code>true</code> if the writes can be written without waiting for the writer to be ready.
+         */
+        boolean isReady();
+        
+    }
+    
+    static final class PendingWrite {
+        
+        final Object value;
+        final long expirationTime;
+        
+        PendingWrite(Object value, long expirationTime) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+        
+        boolean isExpired() {
+            return expirationTime != SambaGlobalCache.Entry.NO_EXPIRATION
+                    && expirationTime <= System.currentTimeMillis();
+        }
+        
+    }
+    
+    void start() {
+        periodicFlush = 
+                executorService.scheduleWithFixedDelay(
+                        flushTask, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops the periodic flushes and writes all the pending writes.
+     */
+    void stop() {
+        ScheduledFuture<?> flushTaskFuture = periodicFlush;
+        if (flushTaskFuture != null) {
+            flushTaskFuture.cancel(false);
+        }
+        flush();
+    }
+    
+    /**
+     * Buffers the value (or removal if it is <code>null</code>) with its expiration time (epoch millis).
+     */
+    void add(String key, Object value, long expirationTime) {
+        if (pendingWrites.put(key, new PendingWrite(value, expirationTime)) != null) {
+            coalescedWrites.increment();
+        } else if (pendingCount.incrementAndGet() >= flushThreshold
+                && thresholdFlushScheduled.compareAndSet(false, true)) {
+            executorService.execute(flushTask);
+        }
+    }
+    
+    /**
+     * Gets the pending write of the key (including the one being flushed) 
+     * or <code>null</code> if there is no pending write.
+     */
+    PendingWrite get(String key) {
+        PendingWrite pendingWrite = pendingWrites.get(key);
+        if (pendingWrite == null) {
+            pendingWrite = flushingWrites.get(key);
+        }
+        return pendingWrite;
+    }
+    
+    int size() {
+        return pendingCount.get();
+    }
+    
+    /**
+     * Writes all the pending writes and returns when they are written.
+     */
+    synchronized void flush() {
+        Map<String, PendingWrite> writes = new ConcurrentHashMap<String, PendingWrite>();
+        // Writes are moved to the flushing ones before being removed from the pending ones, 
+        // so they are never invisible to the readers
+        flushingWrites = writes;
+        for (Map.Entry<String, PendingWrite> e : pendingWrites.entrySet()) {
+            writes.put(e.getKey(), e.getValue());
+            if (!pendingWrites.remove(e.getKey(), e.getValue())) {
+                // Overwritten in the meantime, so it will be written by the next flush
+                writes.remove(e.getKey());
+            }
+        }
+        write(writes);
+    }
+    
+    /**
+     * Writes the pending write of the given key (if there is any) and returns when it is written, 
+     * so the key can be updated conditionally on its latest value.
+     */
+    synchronized void flush(String key) {
+        PendingWrite pendingWrite = pendingWrites.get(key);
+        if (pendingWrite != null) {
+            Map<String, PendingWrite> writes = Collections.singletonMap(key, pendingWrite);
+            flushingWrites = writes;
+            if (pendingWrites.remove(key, pendingWrite)) {
+                write(writes);
+            } else {
+                flushingWrites = Collections.emptyMap();
+            }
+        }
+    }
+    
+    private void write(Map<String, PendingWrite> writes) {
+        try {
+            if (writes.isEmpty()) {
+                return;
+            }
+            pendingCount.addAndGet(-writes.size());
+            try {
+                writer.write(writes);
+                flushes.increment();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(String.format("%d pending writes have been flushed", writes.size()));
+                }
+            } catch (RuntimeException e) {
+                flushFailures.increment();
+                // Put the failed writes back unless they have been overwritten in the meantime
+                for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+                    if (pendingWrites.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                        pendingCount.incrementAndGet();
+                    }
+                }
+                throw e;
+            }
+        } finally {
+            flushingWrites = Collections.emptyMap();
+        }
+    }
+    
+    /**
+     * Discards all the pending writes.
+     */
+    synchronized void clear() {
+        for (Map.Entry<String, PendingWrite> e : pendingWrites.entrySet()) {
+            if (pendingWrites.remove(e.getKey(), e.getValue())) {
+                pendingCount.decrementAndGet();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.metrics;
+
+import org.cliffc.high_scale_lib.ConcurrentAutoTable;
+
+/**
+ * Counter which is striped over multiple cells as it is contended, 
+ * so concurrent increments don't contend on a single memory location.
+ */
+public final class SambaCounter {
+
+    private final ConcurrentAutoTable cells = new ConcurrentAutoTable();
+    
+    SambaCounter() {
+        
+    }
+    
+    public void increment() {
+        cells.increment();
+    }
+    
+    public void add(long delta) {
+        cells.add(delta);
+    }
+    
+    public long get() {
+        return cells.get();
+    }
+
+}
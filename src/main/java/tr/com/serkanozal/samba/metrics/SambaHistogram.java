@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values (such as latencies or sizes) with power of two buckets.
+ * Buckets are striped by thread, so concurrent recordings mostly don't touch the same cache lines.
+ * Percentiles are approximated by the upper bound of their buckets, so they are accurate within a factor of two.
+ */
+public final class SambaHistogram {
+
+    static final int BUCKET_COUNT = 64;
+    private static final int STRIPE_COUNT = stripeCount();
+    private static final int STRIPE_MASK = STRIPE_COUNT - 1;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(STRIPE_COUNT * BUCKET_COUNT);
+    private final SambaCounter sum = new SambaCounter();
+    private final AtomicLong max = new AtomicLong();
+    
+    SambaHistogram() {
+        
+    }
+    
+    private static int stripeCount() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+        return Integer.highestOneBit(processors) << (Integer.bitCount(processors) > 1 ? 1 : 0);
+    }
+    
+    /**
+     * Gets the bucket of the value. Bucket <code>i</code> holds the values in range <code>[2^(i-1), 2^i)</code> 
+     * and bucket <code>0</code> holds zero.
+     */
+    static int bucketOf(long value) {
+        return BUCKET_COUNT - Long.numberOfLeadingZeros(value);
+    }
+    
+    static long upperBoundOf(int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+    
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int stripe = (int) Thread.currentThread().getId() & STRIPE_MASK;
+        buckets.incrementAndGet(stripe * BUCKET_COUNT + Math.min(bucketOf(value), BUCKET_COUNT - 1));
+        sum.add(value);
+        // Maximum is rarely exceeded, so it is mostly a plain read
+        long currentMax = max.get();
+        while (value > currentMax) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+            currentMax = max.get();
+        }
+    }
+    
+    public SambaHistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < buckets.length(); i++) {
+            counts[i % BUCKET_COUNT] += buckets.get(i);
+        }
+        return new SambaHistogramSnapshot(counts, sum.get(), max.get());
+    }
+
+}
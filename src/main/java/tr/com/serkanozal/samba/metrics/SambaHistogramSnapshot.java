@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.metrics;
+
+/**
+ * Point-in-time view of a {@link SambaHistogram}. 
+ * As the histogram is recorded concurrently, the values are consistent with each other only approximately.
+ */
+public final class SambaHistogramSnapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+    
+    SambaHistogramSnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public long getSum() {
+        return sum;
+    }
+    
+    public long getMax() {
+        return max;
+    }
+    
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+    
+    /**
+     * Gets the approximate value below which the given percentage (between <code>0</code> and <code>100</code>) 
+     * of the recorded values fall.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(SambaHistogram.upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+    
+    @Override
+    public String toString() {
+        return "SambaHistogramSnapshot [" + 
+                    "count=" + count + 
+                    ", mean=" + getMean() + 
+                    ", p50=" + getPercentile(50) + 
+                    ", p99=" + getPercentile(99) + 
+                    ", max=" + max + 
+               "]";
+    }
+
+}
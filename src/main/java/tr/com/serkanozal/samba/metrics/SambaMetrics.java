@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named group of metrics (counters, histograms and gauges) of a component.
+ * Metrics are created on their first request and the same instance is returned afterwards, 
+ * so components are expected to hold the metrics they update instead of looking them up each time.
+ */
+public class SambaMetrics {
+
+    private final String name;
+    private final ConcurrentMap<String, SambaCounter> counters = 
+            new ConcurrentHashMap<String, SambaCounter>();
+    private final ConcurrentMap<String, SambaHistogram> histograms = 
+            new ConcurrentHashMap<String, SambaHistogram>();
+    private final ConcurrentMap<String, SambaGauge> gauges = 
+            new ConcurrentHashMap<String, SambaGauge>();
+    
+    public SambaMetrics(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public SambaCounter counter(String name) {
+        SambaCounter counter = counters.get(name);
+        if (counter == null) {
+            SambaCounter newCounter = new SambaCounter();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+    
+    public SambaHistogram histogram(String name) {
+        SambaHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            SambaHistogram newHistogram = new SambaHistogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+    
+    public void gauge(String name, SambaGauge gauge) {
+        gauges.put(name, gauge);
+    }
+    
+    public SambaMetricsSnapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, SambaCounter> e : counters.entrySet()) {
+            counterValues.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, SambaGauge> e : gauges.entrySet()) {
+            counterValues.put(e.getKey(), e.getValue().getValue());
+        }
+        Map<String, SambaHistogramSnapshot> histogramValues = new TreeMap<String, SambaHistogramSnapshot>();
+        for (Map.Entry<String, SambaHistogram> e : histograms.entrySet()) {
+            histogramValues.put(e.getKey(), e.getValue().snapshot());
+        }
+        return new SambaMetricsSnapshot(name, counterValues, histogramValues);
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes a metrics group over JMX. 
+ * Counters and gauges are exposed with their names, 
+ * histograms are exposed by their statistics such as <code>&lt;name&gt;.p99</code>.
+ * Metrics can be created after registration, so attributes are resolved on each request.
+ */
+class SambaMetricsMBean implements DynamicMBean {
+
+    private static final String[] HISTOGRAM_STATISTICS = { "count", "mean", "p50", "p90", "p99", "p999", "max" };
+    
+    private final SambaMetrics metrics;
+    
+    SambaMetricsMBean(SambaMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        SambaMetricsSnapshot snapshot = metrics.snapshot();
+        Object value = valueOf(snapshot, attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+    
+    private static Object valueOf(SambaMetricsSnapshot snapshot, String attribute) {
+        Long value = snapshot.getValues().get(attribute);
+        if (value != null) {
+            return value;
+        }
+        int separatorIndex = attribute.lastIndexOf('.');
+        if (separatorIndex < 0) {
+            return null;
+        }
+        SambaHistogramSnapshot histogram = snapshot.getHistogram(attribute.substring(0, separatorIndex));
+        if (histogram == null) {
+            return null;
+        }
+        String statistic = attribute.substring(separatorIndex + 1);
+        if ("count".equals(statistic)) {
+            return histogram.getCount();
+        } else if ("mean".equals(statistic)) {
+            return histogram.getMean();
+        } else if ("p50".equals(statistic)) {
+            return (double) histogram.getPercentile(50);
+        } else if ("p90".equals(statistic)) {
+            return (double) histogram.getPercentile(90);
+        } else if ("p99".equals(statistic)) {
+            return (double) histogram.getPercentile(99);
+        } else if ("p999".equals(statistic)) {
+            return (double) histogram.getPercentile(99.9);
+        } else if ("max".equals(statistic)) {
+            return histogram.getMax();
+        }
+        return null;
+    }
+    
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SambaMetricsSnapshot snapshot = metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Object value = valueOf(snapshot, attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+    
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        SambaMetricsSnapshot snapshot = metrics.snapshot();
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<MBeanAttributeInfo>();
+        for (String name : snapshot.getValues().keySet()) {
+            attributeInfos.add(
+                    new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+        for (Map.Entry<String, SambaHistogramSnapshot> e : snapshot.getHistograms().entrySet()) {
+            for (String statistic : HISTOGRAM_STATISTICS) {
+                String name = e.getKey() + "." + statistic;
+                String type = 
+                        "count".equals(statistic) || "max".equals(statistic)
+                            ? Long.class.getName()
+                            : Double.class.getName();
+                attributeInfos.add(new MBeanAttributeInfo(name, type, name, true, false, false));
+            }
+        }
+        return new MBeanInfo(
+                getClass().getName(), 
+                "Metrics of " + metrics.getName(), 
+                attributeInfos.toArray(new MBeanAttributeInfo[attributeInfos.size()]), 
+                null, 
+                new MBeanOperationInfo[0], 
+                null);
+    }
+    
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(
+                new NoSuchMethodException(actionName), "Metrics have no operation: " + actionName);
+    }
+    
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        // Attributes have no setter, so they are not found for writing (like the ones of standard MBeans)
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+    
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+}
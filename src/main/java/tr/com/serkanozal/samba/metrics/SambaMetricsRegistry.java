@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the metrics of all the components. 
+ * Each registered metrics group is also exposed as an MBean named 
+ * <code>tr.com.serkanozal.samba:type=SambaMetrics,name=&lt;name&gt;</code>.
+ */
+public final class SambaMetricsRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaMetricsRegistry.class);
+    
+    private static final String JMX_DOMAIN = "tr.com.serkanozal.samba";
+    private static final ConcurrentMap<String, SambaMetrics> METRICS_MAP = 
+            new ConcurrentHashMap<String, SambaMetrics>();
+    
+    private SambaMetricsRegistry() {
+        
+    }
+    
+    /**
+     * Creates and registers metrics group with the given name. 
+     * If the name is already used (such as by another instance of the same cache type), 
+     * a sequence number is appended to the name.
+     */
+    public static SambaMetrics register(String name) {
+        SambaMetrics metrics = new SambaMetrics(name);
+        for (int i = 2; METRICS_MAP.putIfAbsent(metrics.getName(), metrics) != null; i++) {
+            metrics = new SambaMetrics(name + "-" + i);
+        }
+        registerMBean(metrics);
+        return metrics;
+    }
+    
+    public static void unregister(SambaMetrics metrics) {
+        if (METRICS_MAP.remove(metrics.getName(), metrics)) {
+            try {
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = objectNameOf(metrics);
+                if (mbeanServer.isRegistered(objectName)) {
+                    mbeanServer.unregisterMBean(objectName);
+                }
+            } catch (Throwable t) {
+                LOGGER.warn("Unable to unregister MBean of metrics " + metrics.getName(), t);
+            }
+        }
+    }
+    
+    public static SambaMetrics getMetrics(String name) {
+        return METRICS_MAP.get(name);
+    }
+    
+    /**
+     * Takes snapshots of all the registered metrics by their names.
+     */
+    public static Map<String, SambaMetricsSnapshot> snapshot() {
+        Map<String, SambaMetricsSnapshot> snapshots = new TreeMap<String, SambaMetricsSnapshot>();
+        for (SambaMetrics metrics : METRICS_MAP.values()) {
+            snapshots.put(metrics.getName(), metrics.snapshot());
+        }
+        return snapshots;
+    }
+    
+    private static ObjectName objectNameOf(SambaMetrics metrics) throws Exception {
+        return new ObjectName(JMX_DOMAIN + ":type=SambaMetrics,name=" + ObjectName.quote(metrics.getName()));
+    }
+    
+    private static void registerMBean(SambaMetrics metrics) {
+        // Metrics are still available programmatically, so JMX is not a must
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new SambaMetricsMBean(metrics), objectNameOf(metrics));
+        } catch (Throwable t) {
+            LOGGER.warn("Unable to register MBean of metrics " + metrics.getName(), t);
+        }
+    }
+
+}
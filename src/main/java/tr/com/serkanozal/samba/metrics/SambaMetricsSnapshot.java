@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Point-in-time view of the metrics of a component.
+ */
+public final class SambaMetricsSnapshot {
+
+    private final String name;
+    private final Map<String, Long> values;
+    private final Map<String, SambaHistogramSnapshot> histograms;
+    
+    SambaMetricsSnapshot(String name, Map<String, Long> values, Map<String, SambaHistogramSnapshot> histograms) {
+        this.name = name;
+        this.values = Collections.unmodifiableMap(values);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Gets the values of the counters and gauges by their names.
+     */
+    public Map<String, Long> getValues() {
+        return values;
+    }
+    
+    /**
+     * Gets the value of the counter or gauge, or <code>0</code> if there is no such metric.
+     */
+    public long getValue(String name) {
+        Long value = values.get(name);
+        return value != null ? value : 0;
+    }
+    
+    public Map<String, SambaHistogramSnapshot> getHistograms() {
+        return histograms;
+    }
+    
+    public SambaHistogramSnapshot getHistogram(String name) {
+        return histograms.get(name);
+    }
+    
+    @Override
+    public String toString() {
+        return "SambaMetricsSnapshot [" + 
+                    "name=" + name + 
+                    ", values=" + values + 
+                    ", histograms=" + histograms + 
+               "]";
+    }
+
+}
@@ -15,9 +15,18 @@
  */
 package tr.com.serkanozal.samba;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.AssertionFailedError;
@@ -268,6 +277,238 @@ public abstract class BaseSambaFieldTest {
         checkConsistency(field2, 100);
     }
     
+    @Test
+    public void test_fieldAtomicOperations() throws InterruptedException {
+        String fieldId = UUID.randomUUID().toString();
+        final SambaField<Long> field1 = new SambaField<Long>(fieldId, cache1);
+        final SambaField<Long> field2 = new SambaField<Long>(fieldId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertEquals(5, field1.addAndGet(5));
+        Assert.assertEquals(3, field1.addAndGet(-2));
+        checkConsistency(field2, 3L);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Thread[] threads = new Thread[10];
+        final CyclicBarrier barrier = new CyclicBarrier(threads.length);
+        
+        for (int i = 0; i < threads.length; i++) {
+            final SambaField<Long> field = i % 2 == 0 ? field1 : field2;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (BrokenBarrierException e) {
+                        e.printStackTrace();
+                    }
+                    for (int j = 0; j < 10; j++) {
+                        field.addAndGet(1);
+                    }
+                };
+            };
+            threads[i].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        checkConsistency(field1, 103L);
+        checkConsistency(field2, 103L);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        SambaField<List<String>> listField = 
+                new SambaField<List<String>>(UUID.randomUUID().toString(), cache1);
+        listField.appendToList(Arrays.asList("a", "b"));
+        listField.appendToList(Arrays.asList("c"));
+        checkConsistency(listField, Arrays.asList("a", "b", "c"));
+        
+        ////////////////////////////////////////////////////////// 
+        
+        SambaField<Set<String>> setField = 
+                new SambaField<Set<String>>(UUID.randomUUID().toString(), cache1);
+        setField.addToSet(Arrays.asList("a", "b", "c"));
+        setField.addToSet(Arrays.asList("b", "d"));
+        setField.removeFromSet(Arrays.asList("a"));
+        checkConsistency(setField, new HashSet<String>(Arrays.asList("b", "c", "d")));
+        
+        ////////////////////////////////////////////////////////// 
+        
+        SambaField<String> stringField = 
+                new SambaField<String>(UUID.randomUUID().toString(), cache1);
+        Assert.assertNull(stringField.setIfAbsent("Value-1"));
+        Assert.assertEquals("Value-1", stringField.setIfAbsent("Value-2"));
+        Assert.assertEquals("Value-1", stringField.get());
+    }
+    
+    @Test
+    public void test_counterField() throws InterruptedException {
+        String fieldId = UUID.randomUUID().toString();
+        final SambaCounterField field1 = 
+                new SambaCounterField(fieldId, cache1, 4, 0, TimeUnit.MILLISECONDS);
+        final SambaCounterField field2 = 
+                new SambaCounterField(fieldId, cache2, 4, 1, TimeUnit.HOURS);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertEquals(0, field1.sum());
+        Assert.assertEquals(0, field2.sum());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Thread[] threads = new Thread[10];
+        final CyclicBarrier barrier = new CyclicBarrier(threads.length);
+        
+        for (int i = 0; i < threads.length; i++) {
+            final SambaCounterField field = i % 2 == 0 ? field1 : field2;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (BrokenBarrierException e) {
+                        e.printStackTrace();
+                    }
+                    for (int j = 0; j < 10; j++) {
+                        field.increment();
+                    }
+                };
+            };
+            threads[i].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        checkSum(field1, 100);
+        checkSum(field2, 100);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Cached sum of the second field is not refreshed but it reflects its own updates
+        field1.add(5);
+        field2.decrement();
+        Assert.assertEquals(99, field2.sum());
+        checkSum(field2, 104);
+        checkSum(field1, 104);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.reset();
+        checkSum(field1, 0);
+    }
+    
+    @Test
+    public void test_fieldAsyncOperations() throws InterruptedException, ExecutionException {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, cache1);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertNull(field1.getAsync().get());
+        
+        field1.setAsync("Value-1").get();
+        Assert.assertEquals("Value-1", field1.getAsync().get());
+        checkConsistency(field2, "Value-1");
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertFalse(field1.compareAndSetAsync("Value-0", "Value-2").get());
+        Assert.assertEquals("Value-1", field1.getAsync().get());
+        
+        Assert.assertTrue(field1.compareAndSetAsync("Value-1", "Value-2").get());
+        Assert.assertEquals("Value-2", field1.getAsync().get());
+        checkConsistency(field2, "Value-2");
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.clearAsync().get();
+        Assert.assertNull(field1.getAsync().get());
+        checkConsistency(field2, null);
+    }
+    
+    @Test
+    public void test_batchOperations() {
+        String keyPrefix = UUID.randomUUID().toString() + "-";
+        List<String> keys = Arrays.asList(keyPrefix + 1, keyPrefix + 2, keyPrefix + 3);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertTrue(cache1.getAll(Collections.<String>emptyList()).isEmpty());
+        cache1.putAll(Collections.<String, Object>emptyMap());
+        cache1.removeAll(Collections.<String>emptyList());
+        Assert.assertTrue(cache1.getAll(keys).isEmpty());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Map<String, Object> entries = new HashMap<String, Object>();
+        entries.put(keyPrefix + 1, "Value-1");
+        entries.put(keyPrefix + 2, "Value-2");
+        cache1.putAll(entries);
+        // Only present keys are returned
+        Map<String, Object> values = cache1.getAll(keys);
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals("Value-1", valueOf(values.get(keyPrefix + 1)));
+        Assert.assertEquals("Value-2", valueOf(values.get(keyPrefix + 2)));
+        Assert.assertFalse(values.containsKey(keyPrefix + 3));
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Entries with null values are removed
+        entries = new HashMap<String, Object>();
+        entries.put(keyPrefix + 1, null);
+        entries.put(keyPrefix + 3, "Value-3");
+        cache1.putAll(entries);
+        values = cache1.getAll(keys);
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals("Value-2", valueOf(values.get(keyPrefix + 2)));
+        Assert.assertEquals("Value-3", valueOf(values.get(keyPrefix + 3)));
+        
+        ////////////////////////////////////////////////////////// 
+        
+        cache1.removeAll(Arrays.asList(keyPrefix + 2, keyPrefix + 4));
+        values = cache1.getAll(keys);
+        Assert.assertEquals(1, values.size());
+        Assert.assertEquals("Value-3", valueOf(values.get(keyPrefix + 3)));
+        Assert.assertNull(valueOf(cache1.get(keyPrefix + 2)));
+        
+        cache1.removeAll(keys);
+        Assert.assertTrue(cache1.getAll(keys).isEmpty());
+    }
+    
+    private static Object valueOf(Object value) {
+        // Values of some caches are returned within their proxies
+        return value instanceof SambaValueProxy ? ((SambaValueProxy) value).getValue() : value;
+    }
+    
+    private void checkSum(SambaCounterField field, long expectedSum) {
+        if (field.getCache().getConsistencyModel() == SambaCacheConsistencyModel.STRONG_CONSISTENCY) {
+            Assert.assertEquals(expectedSum, field.refresh());
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long finish = start + 30 * 1000; // 30 seconds later
+        while (System.currentTimeMillis() < finish) {
+            if (field.refresh() == expectedSum) {
+                return;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+        throw new AssertionFailedError(
+                String.format("Expected sum %d couldn't be retrieved eventually!", expectedSum));
+    }
+    
     private void checkConsistency(SambaField<?> field, Object expectedValue) {
         SambaCacheConsistencyModel consistencyModel = field.getConsistencyModel();
         switch (consistencyModel) {
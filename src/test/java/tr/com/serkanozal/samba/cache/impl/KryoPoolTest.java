@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+
+public class KryoPoolTest {
+
+    private final KryoPool kryoPool = new KryoPool(2, Collections.<Class<?>>emptyList());
+    private final Map<Byte, SambaSerializer> serializers = new HashMap<Byte, SambaSerializer>();
+    
+    private ByteBuffer encode(Object obj, CompressionCodec codec, int compressionThreshold) {
+        return encode(obj, null, codec, compressionThreshold);
+    }
+    
+    private ByteBuffer encode(Object obj, SambaSerializer serializer, 
+                              CompressionCodec codec, int compressionThreshold) {
+        PooledKryo kryo = kryoPool.borrow();
+        try {
+            return kryo.encode(obj, serializer, codec, compressionThreshold);
+        } finally {
+            kryoPool.release(kryo);
+        }
+    }
+    
+    private Object decode(ByteBuffer data) {
+        PooledKryo kryo = kryoPool.borrow();
+        try {
+            return kryo.decode(data, serializers);
+        } finally {
+            kryoPool.release(kryo);
+        }
+    }
+    
+    @Test
+    public void test_smallValueIsNotCompressed() {
+        ByteBuffer data = encode("Value", CompressionCodec.DEFLATE, 1024);
+        Assert.assertEquals(CompressionCodec.NONE.header, data.get(0));
+        Assert.assertEquals("Value", decode(data));
+    }
+    
+    @Test
+    public void test_largeValueIsCompressed() {
+        List<String> value = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            value.add("Value-" + (i % 100));
+        }
+        ByteBuffer compressed = encode(value, CompressionCodec.DEFLATE, 1024);
+        ByteBuffer uncompressed = encode(value, CompressionCodec.NONE, 1024);
+        Assert.assertEquals(CompressionCodec.DEFLATE.header, compressed.get(0));
+        Assert.assertEquals(CompressionCodec.NONE.header, uncompressed.get(0));
+        Assert.assertTrue(compressed.remaining() < uncompressed.remaining());
+        Assert.assertEquals(value, decode(compressed));
+        Assert.assertEquals(value, decode(uncompressed));
+    }
+    
+    @Test
+    public void test_incompressibleValueIsStoredUncompressed() {
+        byte[] value = new byte[8192];
+        new Random(0).nextBytes(value);
+        ByteBuffer data = encode(value, CompressionCodec.DEFLATE, 1024);
+        Assert.assertEquals(CompressionCodec.NONE.header, data.get(0));
+        Assert.assertArrayEquals(value, (byte[]) decode(data));
+    }
+    
+    @Test
+    public void test_valueWithoutHeaderIsDecoded() {
+        // Written as before the codec header was introduced
+        Output output = new Output(64);
+        new Kryo().writeClassAndObject(output, "Value");
+        Assert.assertEquals("Value", decode(ByteBuffer.wrap(output.toBytes())));
+    }
+    
+    @Test
+    public void test_builtinSerializersAreUsedForCommonTypes() {
+        Object[] values = {
+            "Value-\u00e7\u011f", new byte[] { 1, 2, 3 }, Long.MIN_VALUE, -1, (short) 7, (byte) 8, 
+            Math.PI, 1.5F, Boolean.TRUE, 'c'
+        };
+        for (Object value : values) {
+            ByteBuffer data = encode(value, CompressionCodec.NONE, 1024);
+            Assert.assertNotEquals(BuiltinSerializers.KRYO_ID, data.get(1));
+            Object decodedValue = decode(data);
+            if (value instanceof byte[]) {
+                Assert.assertArrayEquals((byte[]) value, (byte[]) decodedValue);
+            } else {
+                Assert.assertEquals(value, decodedValue);
+            }
+        }
+        ByteBuffer data = encode(Collections.singletonList("Value"), CompressionCodec.NONE, 1024);
+        Assert.assertEquals(BuiltinSerializers.KRYO_ID, data.get(1));
+    }
+    
+    @Test
+    public void test_customSerializerIsUsed() {
+        SambaSerializer serializer = new ReversedStringSerializer();
+        ByteBuffer data = encode("Value", serializer, CompressionCodec.NONE, 1024);
+        Assert.assertEquals(serializer.getId(), data.get(1));
+        try {
+            decode(data.duplicate());
+            Assert.fail("Value written by unregistered serializer must not be decoded");
+        } catch (IllegalStateException e) {
+        }
+        serializers.put(serializer.getId(), serializer);
+        Assert.assertEquals("Value", decode(data));
+    }
+    
+    private static class ReversedStringSerializer implements SambaSerializer {
+        
+        @Override
+        public byte getId() {
+            return 16;
+        }
+        
+        @Override
+        public byte[] serialize(Object value) {
+            return new StringBuilder((String) value).reverse().toString().getBytes();
+        }
+        
+        @Override
+        public Object deserialize(byte[] data, int offset, int length) {
+            return new StringBuilder(new String(data, offset, length)).reverse().toString();
+        }
+        
+    }
+    
+    @Test
+    public void test_valueIsDecodedFromSlicedBuffer() {
+        ByteBuffer data = encode("Value", CompressionCodec.NONE, 1024);
+        ByteBuffer sliced = ByteBuffer.allocate(data.remaining() + 8);
+        sliced.position(8);
+        sliced.put(data);
+        sliced.position(8);
+        Assert.assertEquals("Value", decode(sliced.slice()));
+    }
+
+}
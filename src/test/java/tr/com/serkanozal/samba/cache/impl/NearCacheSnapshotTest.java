@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache.Entry;
+
+public class NearCacheSnapshotTest {
+
+    private static final OffHeapStore.Codec STRING_CODEC = new OffHeapStore.Codec() {
+        @Override
+        public ByteBuffer encode(String key, Object value) {
+            if ("Unserializable".equals(value)) {
+                throw new IllegalArgumentException("Unable to serialize");
+            }
+            return ByteBuffer.wrap(((String) value).getBytes());
+        }
+        
+        @Override
+        public Object decode(ByteBuffer data) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return new String(bytes);
+        }
+    };
+    
+    private File file;
+    
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("samba-snapshot-", ".snapshot");
+        file.delete();
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    @Test
+    public void test_writeAndRead() throws IOException {
+        SambaLocalCache localCache = new SambaLocalCache();
+        localCache.putVersioned("Key-1", "Value-1", 1);
+        localCache.putVersioned("Key-2", "Value-2", 2, 1, TimeUnit.HOURS);
+        localCache.putVersioned("Key-3", "Unserializable", 3);
+        Map<String, String> sequenceNumbers = new HashMap<String, String>();
+        sequenceNumbers.put("Shard-1", "100");
+        sequenceNumbers.put("Shard-2", null);
+        StreamConsumer.Checkpoint checkpoint = 
+                new StreamConsumer.Checkpoint("StreamArn", sequenceNumbers, Collections.singleton("Shard-0"));
+        
+        Assert.assertEquals(2, NearCacheSnapshot.write(file, checkpoint, localCache, STRING_CODEC));
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+        
+        NearCacheSnapshot snapshot = NearCacheSnapshot.read(file, STRING_CODEC);
+        Assert.assertEquals("StreamArn", snapshot.checkpoint.streamArn);
+        Assert.assertEquals(sequenceNumbers, snapshot.checkpoint.sequenceNumbers);
+        Assert.assertEquals(Collections.singleton("Shard-0"), snapshot.checkpoint.completedShardIds);
+        Assert.assertEquals(2, snapshot.entries.size());
+        
+        Entry entry1 = snapshot.entries.get("Key-1");
+        Assert.assertEquals("Value-1", entry1.value);
+        Assert.assertEquals(1, entry1.version);
+        Assert.assertFalse(entry1.hasExpiration());
+        
+        Entry entry2 = snapshot.entries.get("Key-2");
+        Assert.assertEquals("Value-2", entry2.value);
+        Assert.assertEquals(2, entry2.version);
+        long remainingTtl = entry2.expirationTime - System.currentTimeMillis();
+        Assert.assertTrue(remainingTtl > TimeUnit.MINUTES.toMillis(59));
+        Assert.assertTrue(remainingTtl <= TimeUnit.HOURS.toMillis(1));
+    }
+    
+    @Test
+    public void test_snapshotIsReplaced() throws IOException {
+        SambaLocalCache localCache = new SambaLocalCache();
+        StreamConsumer.Checkpoint checkpoint = 
+                new StreamConsumer.Checkpoint(
+                        "StreamArn", Collections.<String, String>emptyMap(), Collections.<String>emptySet());
+        localCache.put("Key", "Value-1");
+        NearCacheSnapshot.write(file, checkpoint, localCache, STRING_CODEC);
+        localCache.put("Key", "Value-2");
+        NearCacheSnapshot.write(file, checkpoint, localCache, STRING_CODEC);
+        
+        Assert.assertEquals("Value-2", NearCacheSnapshot.read(file, STRING_CODEC).entries.get("Key").value);
+    }
+    
+    @Test(expected = IOException.class)
+    public void test_notSnapshotFile() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        } finally {
+            out.close();
+        }
+        NearCacheSnapshot.read(file, STRING_CODEC);
+    }
+
+}
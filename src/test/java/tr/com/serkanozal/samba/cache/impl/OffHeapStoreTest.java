@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.SambaField;
+import tr.com.serkanozal.samba.SambaValueProxy;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+
+public class OffHeapStoreTest {
+
+    private static final long MEMORY_BUDGET = 1024 * 1024;
+    
+    private static ByteBuffer bytesOf(String value) {
+        return ByteBuffer.wrap(value.getBytes());
+    }
+    
+    private static String stringOf(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes);
+    }
+    
+    @Test
+    public void test_putAndRemove() {
+        OffHeapStore store = new OffHeapStore(MEMORY_BUDGET, new SambaMetrics("offHeapStoreTest"));
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(store.put("Key-" + i, bytesOf("Value-" + i), i, OffHeapStore.NO_EXPIRATION));
+        }
+        // Replaces the existing one
+        Assert.assertTrue(store.put("Key-0", bytesOf("NewValue-0"), 100, OffHeapStore.NO_EXPIRATION));
+        Assert.assertEquals(1000, store.size());
+        
+        OffHeapStore.Entry entry = store.remove("Key-0");
+        Assert.assertEquals("NewValue-0", stringOf(entry.value));
+        Assert.assertEquals(100, entry.version);
+        Assert.assertFalse(entry.isExpired());
+        Assert.assertNull(store.remove("Key-0"));
+        for (int i = 1; i < 1000; i++) {
+            entry = store.remove("Key-" + i);
+            Assert.assertEquals("Value-" + i, stringOf(entry.value));
+            Assert.assertEquals(i, entry.version);
+        }
+        Assert.assertEquals(0, store.size());
+        Assert.assertEquals(0, store.usedBytes());
+    }
+    
+    @Test
+    public void test_memoryBudgetIsNotExceeded() {
+        SambaMetrics metrics = new SambaMetrics("offHeapStoreTest");
+        OffHeapStore store = new OffHeapStore(MEMORY_BUDGET, metrics);
+        byte[] value = new byte[1000];
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(store.put("Key-" + i, ByteBuffer.wrap(value), 0, OffHeapStore.NO_EXPIRATION));
+        }
+        Assert.assertTrue(store.usedBytes() <= MEMORY_BUDGET);
+        // Indexes are charged to the budget as well as the slabs
+        Assert.assertTrue(store.allocatedBytes() <= MEMORY_BUDGET);
+        Assert.assertTrue(store.size() < 10000);
+        Assert.assertEquals(10000 - store.size(), metrics.counter("offHeapEvictions").get());
+        // The last one is never evicted to make room for itself
+        Assert.assertNotNull(store.remove("Key-9999"));
+        
+        // Doesn't fit into a slab at all
+        Assert.assertFalse(
+                store.put("Key", ByteBuffer.wrap(new byte[(int) MEMORY_BUDGET]), 0, OffHeapStore.NO_EXPIRATION));
+        Assert.assertEquals(1, metrics.counter("offHeapRejections").get());
+    }
+    
+    @Test
+    public void test_slabsAreReclaimedForOtherSizeClasses() {
+        SambaMetrics metrics = new SambaMetrics("offHeapStoreTest");
+        OffHeapStore store = new OffHeapStore(MEMORY_BUDGET, metrics);
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertTrue(store.put("Key-" + i, bytesOf("Value-" + i), i, OffHeapStore.NO_EXPIRATION));
+        }
+        Assert.assertTrue(metrics.counter("offHeapEvictions").get() > 0);
+        // All the slabs have been carved for small records, but they still make room for the large ones
+        byte[] value = new byte[8 * 1024];
+        for (int i = 0; i < 1000; i++) {
+            value[0] = (byte) i;
+            Assert.assertTrue(store.put("LargeKey-" + i, ByteBuffer.wrap(value), i, OffHeapStore.NO_EXPIRATION));
+        }
+        Assert.assertEquals(0, metrics.counter("offHeapRejections").get());
+        Assert.assertTrue(store.allocatedBytes() <= MEMORY_BUDGET);
+        OffHeapStore.Entry entry = store.remove("LargeKey-999");
+        Assert.assertEquals((byte) 999, entry.value.get(0));
+        // And the small ones again
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertTrue(store.put("Key-" + i, bytesOf("Value-" + i), i, OffHeapStore.NO_EXPIRATION));
+        }
+        Assert.assertEquals("Value-99999", stringOf(store.remove("Key-99999").value));
+        Assert.assertTrue(store.allocatedBytes() <= MEMORY_BUDGET);
+    }
+    
+    @Test
+    public void test_expiredEntry() {
+        OffHeapStore store = new OffHeapStore(MEMORY_BUDGET, new SambaMetrics("offHeapStoreTest"));
+        store.put("Key", bytesOf("Value"), 0, System.nanoTime() - 1);
+        Assert.assertTrue(store.remove("Key").isExpired());
+    }
+    
+    @Test
+    public void test_spillToDisk() {
+        File spillDirectory = new File(System.getProperty("java.io.tmpdir"), "samba-test-" + System.nanoTime());
+        SambaMetrics metrics = new SambaMetrics("offHeapStoreTest");
+        OffHeapStore store = new OffHeapStore(MEMORY_BUDGET, spillDirectory, metrics);
+        try {
+            byte[] value = new byte[1000];
+            for (int i = 0; i < 10000; i++) {
+                value[0] = (byte) i;
+                Assert.assertTrue(store.put("Key-" + i, ByteBuffer.wrap(value), i, OffHeapStore.NO_EXPIRATION));
+            }
+            Assert.assertTrue(store.allocatedBytes() <= MEMORY_BUDGET);
+            Assert.assertTrue(metrics.counter("diskSpillEvictions").get() > 0);
+            OffHeapStore.Entry entry = store.remove("Key-9999");
+            Assert.assertEquals(9999, entry.version);
+            Assert.assertEquals((byte) 9999, entry.value.get(0));
+            Assert.assertEquals(1, spillDirectory.listFiles().length);
+            
+            // Spill file is closed and deleted along with the store
+            store.close();
+            Assert.assertEquals(0, spillDirectory.listFiles().length);
+            Assert.assertFalse(store.put("Key", bytesOf("Value"), 0, OffHeapStore.NO_EXPIRATION));
+            Assert.assertNull(store.remove("Key-9998"));
+            Assert.assertEquals(0, store.size());
+            Assert.assertEquals(0, store.allocatedBytes());
+        } finally {
+            store.close();
+            spillDirectory.delete();
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void test_localCacheCannotHaveBothOffHeapAndDiskSpillTiers() {
+        Properties props = new Properties();
+        props.setProperty("test.offHeapMemoryBudget", String.valueOf(MEMORY_BUDGET));
+        props.setProperty("test.diskSpillBudget", String.valueOf(MEMORY_BUDGET));
+        new SambaLocalCache(props, "test");
+    }
+    
+    @Test
+    public void test_localCacheMovesEvictedEntriesOffHeap() {
+        Properties props = new Properties();
+        props.setProperty("test.maximumSize", "10");
+        props.setProperty("test.offHeapMemoryBudget", String.valueOf(MEMORY_BUDGET));
+        SambaLocalCache cache = new SambaLocalCache(props, "test");
+        SambaField<String> field = new SambaField<String>("Field", cache);
+        field.set("Value");
+        Assert.assertEquals("Value", field.get());
+        for (int i = 0; i < 1000; i++) {
+            cache.put("Key-" + i, "Value-" + i);
+        }
+        Assert.assertEquals(1001, cache.size());
+        Assert.assertTrue(cache.getMetrics().counter("demotions").get() > 0);
+        // Value is read back from the off-heap tier and its proxy given out before is invalidated
+        Assert.assertEquals("Value", field.get());
+        for (int i = 0; i < 1000; i++) {
+            SambaValueProxy proxy = (SambaValueProxy) cache.get("Key-" + i);
+            Assert.assertEquals("Value-" + i, proxy.getValue());
+        }
+        Assert.assertTrue(cache.getMetrics().counter("promotions").get() > 0);
+        
+        Assert.assertTrue(cache.replace("Key-0", "Value-0", "NewValue-0"));
+        Assert.assertEquals(5, cache.addAndGet("Counter", 5));
+        cache.remove("Key-1");
+        Assert.assertNull(cache.get("Key-1"));
+        for (int i = 1000; i < 2000; i++) {
+            cache.put("Key-" + i, "Value-" + i);
+        }
+        Assert.assertEquals("NewValue-0", ((SambaValueProxy) cache.get("Key-0")).getValue());
+        Assert.assertEquals(10L, cache.addAndGet("Counter", 5));
+        
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void test_localCacheMovesSerializedFormOffHeapAsIs() {
+        Properties props = new Properties();
+        props.setProperty("test.maximumSize", "10");
+        props.setProperty("test.offHeapMemoryBudget", String.valueOf(MEMORY_BUDGET));
+        SambaLocalCache cache = new SambaLocalCache(props, "test", new OffHeapStore.Codec() {
+            @Override
+            public ByteBuffer encode(String key, Object value) {
+                throw new UnsupportedOperationException("Value must not be serialized again");
+            }
+            
+            @Override
+            public Object decode(ByteBuffer data) {
+                return stringOf(data.duplicate());
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            cache.putVersioned("Key-" + i, "Value-" + i, bytesOf("Value-" + i), i);
+        }
+        Assert.assertTrue(cache.getMetrics().counter("demotions").get() > 0);
+        for (int i = 0; i < 100; i++) {
+            SambaValueProxy proxy = (SambaValueProxy) cache.get("Key-" + i);
+            Assert.assertEquals("Value-" + i, proxy.getValue());
+            Assert.assertEquals(i, proxy.getVersion());
+        }
+        Assert.assertEquals(100, cache.size());
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.SambaField;
+import tr.com.serkanozal.samba.cache.SambaEntryWeigher;
+
+public class SambaBoundedLocalCacheTest {
+
+    @Test
+    public void test_sizeIsBounded() {
+        SambaLocalCache cache = new SambaLocalCache(100);
+        for (int i = 0; i < 10000; i++) {
+            cache.put("Key-" + i, "Value-" + i);
+        }
+        Assert.assertTrue(cache.size() <= 100);
+    }
+    
+    @Test
+    public void test_weightIsBounded() {
+        SambaLocalCache cache = new SambaLocalCache(1000, new SambaEntryWeigher() {
+            @Override
+            public int weigh(String key, Object value) {
+                return ((String) value).length();
+            }
+        });
+        for (int i = 0; i < 10000; i++) {
+            cache.put("Key-" + i, "Value-" + i);
+        }
+        // Each value weighs at least 7 ("Value-0")
+        Assert.assertTrue(cache.size() <= 1000 / 7);
+    }
+    
+    @Test
+    public void test_frequentlyAccessedEntriesAreRetained() {
+        SambaLocalCache cache = new SambaLocalCache(100);
+        for (int i = 0; i < 10; i++) {
+            cache.put("HotKey-" + i, "HotValue-" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            for (int j = 0; j < 10; j++) {
+                cache.get("HotKey-" + j);
+            }
+            cache.put("ColdKey-" + i, "ColdValue-" + i);
+        }
+        int retained = 0;
+        for (int i = 0; i < 10; i++) {
+            if (cache.get("HotKey-" + i) != null) {
+                retained++;
+            }
+        }
+        Assert.assertEquals(10, retained);
+    }
+    
+    @Test
+    public void test_evictedValueIsInvalidatedOnField() {
+        SambaLocalCache cache = new SambaLocalCache(10);
+        SambaField<String> field = new SambaField<String>("Field", cache);
+        field.set("Value");
+        Assert.assertEquals("Value", field.get());
+        for (int i = 0; i < 1000; i++) {
+            cache.put("Key-" + i, "Value-" + i);
+            cache.get("Key-" + i);
+            cache.get("Key-" + i);
+        }
+        Assert.assertNull(cache.get("Field"));
+        Assert.assertNull(field.get());
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.SambaField;
+import tr.com.serkanozal.samba.metrics.SambaMetricsRegistry;
+
+public class SambaExpiringLocalCacheTest {
+
+    @Test
+    public void test_valueIsExpiredAfterTtl() throws InterruptedException {
+        SambaLocalCache cache = new SambaLocalCache(SambaLocalCache.UNBOUNDED);
+        cache.put("Key", "Value", 100, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(cache.get("Key"));
+        Thread.sleep(200);
+        Assert.assertNull(cache.get("Key"));
+        Assert.assertEquals(0, cache.size());
+    }
+    
+    @Test
+    public void test_expiredValueIsInvalidatedOnField() throws InterruptedException {
+        SambaLocalCache cache = new SambaLocalCache(SambaLocalCache.UNBOUNDED);
+        SambaField<String> field = new SambaField<String>("Field", cache);
+        field.set("Value", 100, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("Value", field.get());
+        // Expired by the background ticker without any access to the cache
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(field.get());
+    }
+    
+    @Test
+    public void test_idleValueIsExpiredButAccessedValueIsRetained() throws InterruptedException {
+        SambaLocalCache cache = 
+                new SambaLocalCache(SambaLocalCache.UNBOUNDED, null, 200, TimeUnit.MILLISECONDS);
+        SambaField<String> accessedField = new SambaField<String>("AccessedField", cache);
+        SambaField<String> idleField = new SambaField<String>("IdleField", cache);
+        accessedField.set("AccessedValue");
+        idleField.set("IdleValue");
+        Assert.assertEquals("AccessedValue", accessedField.get());
+        Assert.assertEquals("IdleValue", idleField.get());
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(50);
+            Assert.assertEquals("AccessedValue", accessedField.get());
+        }
+        Assert.assertNull(cache.get("IdleField"));
+        Assert.assertNotNull(cache.get("AccessedField"));
+    }
+    
+    @Test
+    public void test_expiredValueCanBeReplacedAsAbsent() throws InterruptedException {
+        SambaLocalCache cache = new SambaLocalCache(SambaLocalCache.UNBOUNDED);
+        cache.put("Key", "Value-1", 50, TimeUnit.MILLISECONDS);
+        Thread.sleep(100);
+        Assert.assertFalse(cache.replace("Key", "Value-1", "Value-2"));
+        Assert.assertTrue(cache.replace("Key", null, "Value-2"));
+    }
+    
+    @Test
+    public void test_closedCacheReleasesTickerAndMetrics() throws InterruptedException {
+        SambaLocalCache cache = new SambaLocalCache(SambaLocalCache.UNBOUNDED);
+        cache.put("Key", "Value", 100, TimeUnit.MILLISECONDS);
+        String metricsName = cache.getMetrics().getName();
+        Assert.assertNotNull(SambaMetricsRegistry.getMetrics(metricsName));
+        
+        cache.close();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(SambaMetricsRegistry.getMetrics(metricsName));
+        // Background ticker is stopped, so the expired value is not purged without any access to the cache
+        cache.put("Key", "Value", 100, TimeUnit.MILLISECONDS);
+        Thread.sleep(300);
+        Assert.assertEquals(1, cache.size());
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.SambaValueProxy;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache.NearCache;
+
+public class SambaNearCacheTest {
+
+    @Test
+    public void test_slotCountIsRoundedUpToPowerOfTwo() {
+        Assert.assertEquals(1024, new NearCache(new SambaLocalCache(), 1000).getSlotCount());
+        Assert.assertEquals(4096, new NearCache(new SambaLocalCache(), 4096).getSlotCount());
+        Assert.assertTrue(new NearCache(new SambaLocalCache()).getSlotCount() >= 1024);
+    }
+    
+    @Test
+    public void test_keysAreSpreadOverSlots() {
+        NearCache nearCache = new NearCache(new SambaLocalCache(), 1024);
+        Set<Integer> slots = new HashSet<Integer>();
+        // Hash codes of these keys only differ in their high bits
+        for (int i = 0; i < 64; i++) {
+            slots.add(nearCache.getSlot(new String(new char[] { (char) (i << 10), 'k' })));
+        }
+        Assert.assertTrue(slots.size() > 32);
+    }
+    
+    @Test
+    public void test_ownedSlotIsPopulated() {
+        NearCache nearCache = new NearCache(new SambaLocalCache(), 1024);
+        long ownId = nearCache.tryOwn("key");
+        try {
+            Assert.assertTrue(nearCache.putIfAvailable(ownId, "key", "value", 1));
+        } finally {
+            nearCache.releaseIfOwned(ownId, "key");
+        }
+        Assert.assertEquals(0, nearCache.getOwnFailureCount());
+        Assert.assertEquals(0, nearCache.getPutFailureCount());
+    }
+    
+    @Test
+    public void test_ownershipFailuresAreCounted() {
+        NearCache nearCache = new NearCache(new SambaLocalCache(), 1024);
+        // Completed count of a fresh slot is 0, so complete an operation first to get a non-zero own id
+        nearCache.releaseIfOwned(nearCache.tryOwn("key"), "key");
+        
+        long ownId1 = nearCache.tryOwn("key");
+        long ownId2 = nearCache.tryOwn("key");
+        try {
+            Assert.assertTrue(ownId1 >= 0);
+            Assert.assertTrue(ownId2 < 0);
+            Assert.assertFalse(nearCache.putIfAvailable(ownId1, "key", "value1", 1));
+            Assert.assertFalse(nearCache.putIfAvailable(ownId2, "key", "value2", 2));
+        } finally {
+            nearCache.releaseIfOwned(ownId2, "key");
+            nearCache.releaseIfOwned(ownId1, "key");
+        }
+        Assert.assertEquals(1, nearCache.getOwnFailureCount());
+        Assert.assertEquals(2, nearCache.getPutFailureCount());
+        Assert.assertNull(nearCache.get("key"));
+    }
+
+    @Test
+    public void test_restoredEntriesAreUnmarkedOnceWritten() {
+        NearCache nearCache = new NearCache(new SambaLocalCache(), 1024);
+        Set<String> restoredKeys = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            nearCache.put("key" + i, "value" + i);
+            restoredKeys.add("key" + i);
+        }
+        nearCache.markRestored(restoredKeys);
+        Assert.assertTrue(nearCache.isRestored("key0"));
+        
+        long ownId = nearCache.tryOwn("key0");
+        try {
+            Assert.assertTrue(nearCache.putIfAvailable(ownId, "key0", "newValue0", 2));
+        } finally {
+            nearCache.releaseIfOwned(ownId, "key0");
+        }
+        nearCache.remove("key1");
+        Assert.assertFalse(nearCache.isRestored("key0"));
+        Assert.assertFalse(nearCache.isRestored("key1"));
+        Assert.assertTrue(nearCache.isRestored("key2"));
+        Assert.assertEquals(1, nearCache.getRestoredKeys().size());
+        
+        nearCache.clearRestored();
+        Assert.assertFalse(nearCache.isRestored("key2"));
+        Assert.assertTrue(nearCache.getRestoredKeys().isEmpty());
+    }
+    
+    @Test
+    public void test_localEntriesAreReplacedByVersion() {
+        SambaLocalCache cache = new SambaLocalCache();
+        Assert.assertFalse(cache.replaceVersioned("key", 1, "value"));
+        
+        cache.putVersioned("key", "value1", 1);
+        Assert.assertFalse(cache.replaceVersioned("key", 2, "value2"));
+        Assert.assertEquals("value1", cache.getVersioned("key").getValue());
+        Assert.assertTrue(cache.replaceVersioned("key", 1, "value2"));
+        Assert.assertEquals("value2", cache.getVersioned("key").getValue());
+        // Replaced value has no remote version
+        Assert.assertFalse(cache.getVersioned("key").hasVersion());
+        Assert.assertFalse(cache.replaceVersioned("key", 1, "value3"));
+        
+        // Entries without version are replaced by their value when no version is expected
+        Assert.assertTrue(cache.replaceVersioned("key", SambaValueProxy.NO_VERSION, "value3"));
+        Assert.assertEquals("value3", cache.getVersioned("key").getValue());
+        Assert.assertTrue(cache.replaceVersioned("key", SambaValueProxy.NO_VERSION, null));
+        Assert.assertNull(cache.getVersioned("key"));
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThawDetectorTest {
+
+    @Test
+    public void test_thawIsNotDetectedWhileTicking() throws InterruptedException {
+        final AtomicInteger thawCount = new AtomicInteger();
+        ThawDetector detector = new ThawDetector(1000, new ThawDetector.ThawListener() {
+            @Override
+            public void onThaw(long thawTimeMillis, long frozenMillis) {
+                thawCount.incrementAndGet();
+            }
+        });
+        detector.start();
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(100);
+            Assert.assertFalse(detector.checkThawed());
+        }
+        Assert.assertEquals(0, thawCount.get());
+    }
+    
+    @Test
+    public void test_thawIsDetectedOnceWhenTicksAreMissed() throws InterruptedException {
+        final AtomicInteger thawCount = new AtomicInteger();
+        final long[] frozen = new long[1];
+        // Ticker is not started, so it looks like the process has been frozen
+        ThawDetector detector = new ThawDetector(200, new ThawDetector.ThawListener() {
+            @Override
+            public void onThaw(long thawTimeMillis, long frozenMillis) {
+                thawCount.incrementAndGet();
+                frozen[0] = frozenMillis;
+            }
+        });
+        Thread.sleep(300);
+        Assert.assertTrue(detector.checkThawed());
+        Assert.assertFalse(detector.checkThawed());
+        Assert.assertEquals(1, thawCount.get());
+        Assert.assertTrue(frozen[0] >= 200);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void test_freezeThresholdMustBeLongerThanTickInterval() {
+        new ThawDetector(100, new ThawDetector.ThawListener() {
+            @Override
+            public void onThaw(long thawTimeMillis, long frozenMillis) {
+            }
+        });
+    }
+    
+    @Test
+    public void test_thawPolicyIsParsedIgnoringCase() {
+        Assert.assertEquals(SambaTieredCache.ThawPolicy.DRAIN, SambaTieredCache.ThawPolicy.of("drain"));
+        Assert.assertEquals(SambaTieredCache.ThawPolicy.VALIDATE, SambaTieredCache.ThawPolicy.of("VALIDATE"));
+    }
+
+}
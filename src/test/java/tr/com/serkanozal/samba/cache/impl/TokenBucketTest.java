@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+
+public class TokenBucketTest {
+
+    @Test
+    public void test_burstIsServedWithoutWaiting() {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(0, bucket.reserve(1));
+        }
+    }
+    
+    @Test
+    public void test_callersAreQueuedWhenBucketIsEmpty() {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        Assert.assertEquals(0, bucket.reserve(100));
+        long wait1 = bucket.reserve(10);
+        long wait2 = bucket.reserve(10);
+        // Each 10 units take 100 milliseconds at 100 units per second
+        Assert.assertTrue(wait1 > TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertTrue(wait1 <= TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertTrue(wait2 > wait1 + TimeUnit.MILLISECONDS.toNanos(50));
+    }
+    
+    @Test
+    public void test_reservationIsCorrectedByConsumedUnits() {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        Assert.assertEquals(0, bucket.reserve(100));
+        // Reserved 100 units but only 50 of them were consumed
+        bucket.adjust(-50);
+        Assert.assertEquals(0, bucket.reserve(50));
+        Assert.assertTrue(bucket.reserve(10) > 0);
+    }
+    
+    @Test
+    public void test_rateIsDecreasedOnThrottle() {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        bucket.onThrottle();
+        Assert.assertTrue(bucket.getRate() < 100);
+        Assert.assertTrue(bucket.reserve(1) > 0);
+        for (int i = 0; i < 100; i++) {
+            bucket.onThrottle();
+        }
+        // Rate never drops below the minimum
+        Assert.assertTrue(bucket.getRate() >= 1);
+    }
+    
+    @Test
+    public void test_throttleBackoffIsJittered() {
+        DynamoDBRateLimiter rateLimiter = new DynamoDBRateLimiter(100, 100, new SambaMetrics("test"));
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            long backoff = rateLimiter.throttleBackoffMillis(3);
+            Assert.assertTrue(backoff >= 0 && backoff <= 400);
+            min = Math.min(min, backoff);
+            max = Math.max(max, backoff);
+        }
+        Assert.assertTrue(max > min);
+    }
+
+    @Test
+    public void test_reservationIsGivenBackOnError() {
+        // Bucket has room for a single write, so the next one would wait a second unless it is given back
+        DynamoDBRateLimiter rateLimiter = new DynamoDBRateLimiter(1, 1, new SambaMetrics("test"));
+        for (int i = 0; i < 3; i++) {
+            Request<PutItemRequest> request = 
+                    new DefaultRequest<PutItemRequest>(new PutItemRequest(), "AmazonDynamoDBv2");
+            long start = System.nanoTime();
+            rateLimiter.beforeRequest(request);
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            rateLimiter.afterError(request, null, new AmazonServiceException("Validation failed"));
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache.Entry;
+import tr.com.serkanozal.samba.cache.impl.WriteBehindBuffer.PendingWrite;
+import tr.com.serkanozal.samba.metrics.SambaMetrics;
+
+public class WriteBehindBufferTest {
+
+    private ScheduledExecutorService executorService;
+    private List<Map<String, PendingWrite>> writtenBatches;
+    private volatile boolean failWrites;
+    private CountDownLatch writerReady;
+    
+    @Before
+    public void setup() {
+        executorService = Executors.newSingleThreadScheduledExecutor();
+        writtenBatches = new ArrayList<Map<String, PendingWrite>>();
+        failWrites = false;
+        writerReady = new CountDownLatch(0);
+    }
+    
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+    
+    private WriteBehindBuffer createBuffer(long flushIntervalMillis, int flushThreshold) {
+        return new WriteBehindBuffer(
+                new WriteBehindBuffer.Writer() {
+                    @Override
+                    public void write(Map<String, PendingWrite> writes) {
+                        try {
+                            // Like the global cache waiting for its table, writes wait for the writer to be ready
+                            writerReady.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        if (failWrites) {
+                            throw new IllegalStateException("Write failed");
+                        }
+                        synchronized (writtenBatches) {
+                            writtenBatches.add(new HashMap<String, PendingWrite>(writes));
+                        }
+                    }
+                    
+                    @Override
+                    public boolean isReady() {
+                        return writerReady.getCount() == 0;
+                    }
+                }, 
+                executorService, flushIntervalMillis, flushThreshold, new SambaMetrics("test"));
+    }
+    
+    @Test
+    public void test_repeatedWritesAreCoalesced() {
+        WriteBehindBuffer buffer = createBuffer(TimeUnit.HOURS.toMillis(1), 100);
+        for (int i = 0; i < 10; i++) {
+            buffer.add("key", "value-" + i, Entry.NO_EXPIRATION);
+        }
+        buffer.add("removed", "value", Entry.NO_EXPIRATION);
+        buffer.add("removed", null, Entry.NO_EXPIRATION);
+        Assert.assertEquals(2, buffer.size());
+        Assert.assertEquals("value-9", buffer.get("key").value);
+        Assert.assertNull(buffer.get("removed").value);
+        
+        buffer.flush();
+        
+        Assert.assertEquals(0, buffer.size());
+        Assert.assertNull(buffer.get("key"));
+        Assert.assertEquals(1, writtenBatches.size());
+        Assert.assertEquals(2, writtenBatches.get(0).size());
+        Assert.assertEquals("value-9", writtenBatches.get(0).get("key").value);
+    }
+    
+    @Test
+    public void test_writesAreFlushedOnThreshold() throws InterruptedException {
+        WriteBehindBuffer buffer = createBuffer(TimeUnit.HOURS.toMillis(1), 3);
+        buffer.add("key-1", "value", Entry.NO_EXPIRATION);
+        buffer.add("key-2", "value", Entry.NO_EXPIRATION);
+        buffer.add("key-3", "value", Entry.NO_EXPIRATION);
+        long finish = System.currentTimeMillis() + 10 * 1000;
+        while (buffer.size() > 0 && System.currentTimeMillis() < finish) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, buffer.size());
+        synchronized (writtenBatches) {
+            Assert.assertEquals(1, writtenBatches.size());
+            Assert.assertEquals(3, writtenBatches.get(0).size());
+        }
+    }
+    
+    @Test
+    public void test_writesAreFlushedPeriodically() throws InterruptedException {
+        WriteBehindBuffer buffer = createBuffer(50, 100);
+        buffer.start();
+        buffer.add("key", "value", Entry.NO_EXPIRATION);
+        long finish = System.currentTimeMillis() + 10 * 1000;
+        while (buffer.size() > 0 && System.currentTimeMillis() < finish) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, buffer.size());
+    }
+    
+    @Test
+    public void test_failedWritesAreKeptUnlessOverwritten() {
+        WriteBehindBuffer buffer = createBuffer(TimeUnit.HOURS.toMillis(1), 100);
+        buffer.add("key-1", "value-1", Entry.NO_EXPIRATION);
+        buffer.add("key-2", "value-2", Entry.NO_EXPIRATION);
+        
+        failWrites = true;
+        try {
+            buffer.flush();
+            Assert.fail("Flush should have failed");
+        } catch (IllegalStateException e) {
+        }
+        Assert.assertEquals(2, buffer.size());
+        Assert.assertEquals("value-1", buffer.get("key-1").value);
+        
+        failWrites = false;
+        buffer.flush("key-1");
+        Assert.assertEquals(1, buffer.size());
+        Assert.assertNull(buffer.get("key-1"));
+        Assert.assertEquals("value-2", buffer.get("key-2").value);
+    }
+    
+    @Test
+    public void test_pendingWritesAreFlushedOnStop() throws InterruptedException {
+        WriteBehindBuffer buffer = createBuffer(50, 100);
+        buffer.start();
+        buffer.add("key", "value", Entry.NO_EXPIRATION);
+        buffer.stop();
+        Assert.assertEquals(0, buffer.size());
+        Assert.assertEquals(1, writtenBatches.size());
+        // Periodic flushes are not done anymore
+        buffer.add("key", "newValue", Entry.NO_EXPIRATION);
+        Thread.sleep(200);
+        Assert.assertEquals(1, buffer.size());
+        Assert.assertEquals(1, writtenBatches.size());
+    }
+
+    @Test
+    public void test_backgroundFlushesDontBlockExecutorUntilWriterIsReady() throws InterruptedException {
+        writerReady = new CountDownLatch(1);
+        WriteBehindBuffer buffer = createBuffer(20, 2);
+        buffer.start();
+        buffer.add("key-1", "value", Entry.NO_EXPIRATION);
+        buffer.add("key-2", "value", Entry.NO_EXPIRATION);
+        
+        // Writer is made ready by a task on the same executor whose first attempt fails and is retried later, 
+        // so it never runs if any flush blocks the executor
+        final CountDownLatch initialized = new CountDownLatch(1);
+        executorService.schedule(new Runnable() {
+            private int attempt;
+            
+            @Override
+            public void run() {
+                if (attempt++ == 0) {
+                    executorService.schedule(this, 50, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                writerReady.countDown();
+                initialized.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        
+        Assert.assertTrue(initialized.await(10, TimeUnit.SECONDS));
+        long finish = System.currentTimeMillis() + 10 * 1000;
+        while (buffer.size() > 0 && System.currentTimeMillis() < finish) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, buffer.size());
+        synchronized (writtenBatches) {
+            Assert.assertEquals(1, writtenBatches.size());
+            Assert.assertEquals(2, writtenBatches.get(0).size());
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
+
+public class SambaMetricsTest {
+
+    @Test
+    public void test_counterIsIncrementedConcurrently() throws InterruptedException {
+        final SambaCounter counter = new SambaMetrics("test").counter("counter");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(40000, counter.get());
+    }
+    
+    @Test
+    public void test_histogramPercentilesAreApproximated() {
+        SambaHistogram histogram = new SambaMetrics("test").histogram("histogram");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        SambaHistogramSnapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500500, snapshot.getSum());
+        Assert.assertEquals(1000, snapshot.getMax());
+        Assert.assertEquals(500.5, snapshot.getMean(), 0.001);
+        // Percentiles are accurate within a factor of two
+        long p50 = snapshot.getPercentile(50);
+        Assert.assertTrue(p50 >= 500 && p50 < 1024);
+        Assert.assertEquals(1000, snapshot.getPercentile(100));
+    }
+    
+    @Test
+    public void test_metricsAreRegisteredWithUniqueNames() throws Exception {
+        SambaMetrics metrics1 = SambaMetricsRegistry.register("test.unique");
+        SambaMetrics metrics2 = SambaMetricsRegistry.register("test.unique");
+        try {
+            Assert.assertNotEquals(metrics1.getName(), metrics2.getName());
+            metrics1.counter("counter").add(3);
+            Assert.assertEquals(3, SambaMetricsRegistry.snapshot().get(metrics1.getName()).getValue("counter"));
+            Assert.assertEquals(0, SambaMetricsRegistry.snapshot().get(metrics2.getName()).getValue("counter"));
+            
+            ObjectName objectName = 
+                    new ObjectName("tr.com.serkanozal.samba:type=SambaMetrics,name=" + 
+                                   ObjectName.quote(metrics1.getName()));
+            Assert.assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "counter"));
+        } finally {
+            SambaMetricsRegistry.unregister(metrics1);
+            SambaMetricsRegistry.unregister(metrics2);
+        }
+        Assert.assertNull(SambaMetricsRegistry.getMetrics(metrics1.getName()));
+    }
+    
+    @Test
+    public void test_metricsMBeanIsReadOnly() throws Exception {
+        SambaMetrics metrics = SambaMetricsRegistry.register("test.readOnly");
+        try {
+            metrics.counter("counter").increment();
+            ObjectName objectName = 
+                    new ObjectName("tr.com.serkanozal.samba:type=SambaMetrics,name=" + 
+                                   ObjectName.quote(metrics.getName()));
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                mbeanServer.setAttribute(objectName, new Attribute("counter", 5L));
+                Assert.fail("Attribute must not be writable");
+            } catch (AttributeNotFoundException e) {
+            }
+            try {
+                mbeanServer.invoke(objectName, "reset", new Object[0], new String[0]);
+                Assert.fail("Operation must not be found");
+            } catch (ReflectionException e) {
+                Assert.assertTrue(e.getTargetException() instanceof NoSuchMethodException);
+            }
+            Assert.assertEquals(1L, mbeanServer.getAttribute(objectName, "counter"));
+        } finally {
+            SambaMetricsRegistry.unregister(metrics);
+        }
+    }
+    
+    @Test
+    public void test_localCacheOperationsAreCounted() {
+        SambaLocalCache cache = new SambaLocalCache(100);
+        try {
+            cache.put("key", "value");
+            cache.get("key");
+            cache.get("absentKey");
+            cache.replace("key", "otherValue", "newValue");
+            cache.remove("key");
+            
+            SambaMetricsSnapshot snapshot = cache.getMetrics().snapshot();
+            Assert.assertEquals(1, snapshot.getValue("puts"));
+            Assert.assertEquals(1, snapshot.getValue("hits"));
+            Assert.assertEquals(1, snapshot.getValue("misses"));
+            Assert.assertEquals(1, snapshot.getValue("replaceFailures"));
+            Assert.assertEquals(1, snapshot.getValue("removes"));
+        } finally {
+            SambaMetricsRegistry.unregister(cache.getMetrics());
+        }
+    }
+
+}